@@ -0,0 +1,128 @@
+package common;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/** HTTP client shared by every outbound call between the naming and storage servers.
+ *
+ * A single java.net.http.HttpClient keeps its connections alive and pools them, so repeated calls to the same server
+ * reuse a connection instead of setting up a new one each time. Calls are also limited per target server, so that a
+ * burst of replications or deletions cannot open an unbounded number of connections to one server.
+ *
+ * A pooled connection that the other side has closed is only found out when a request is sent over it, and the
+ * request then fails with an IOException although the server never saw it. Requests that may safely be applied twice
+ * are therefore sent once more when the first attempt fails that way: those whose HTTP method is idempotent, and
+ * those the caller marks as idempotent, which the POST methods of the servers often are.
+ *
+ * The client is configured with system properties:
+ * <ul>
+ * <li>dfs.http.version: HTTP_1_1 (the default) or HTTP_2. The servers in this project speak HTTP/1.1, and HTTP/2 is
+ *     only used where the other side agrees to it.</li>
+ * <li>dfs.http.connectTimeoutMs: how long to wait for a connection, 5000 by default.</li>
+ * <li>dfs.http.maxPerTarget: how many calls may be outstanding to one server at a time, 16 by default.</li>
+ * </ul>
+ */
+public final class SharedHttpClient {
+
+    private static final SharedHttpClient shared = new SharedHttpClient(
+            HttpClient.Version.valueOf(System.getProperty("dfs.http.version", "HTTP_1_1")),
+            Duration.ofMillis(Long.getLong("dfs.http.connectTimeoutMs", 5000)),
+            Integer.getInteger("dfs.http.maxPerTarget", 16));
+
+    private final HttpClient client;
+    private final int maxPerTarget;
+
+    // One semaphore per "host:port", created the first time the target is called.
+    private final ConcurrentHashMap<String, Semaphore> targets = new ConcurrentHashMap<String, Semaphore>();
+
+    public SharedHttpClient(HttpClient.Version version, Duration connectTimeout, int maxPerTarget) {
+        // Daemon threads, so that the client never keeps a server process alive on its own.
+        ExecutorService executor = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "http-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.client = HttpClient.newBuilder()
+                .version(version)
+                .connectTimeout(connectTimeout)
+                .executor(executor)
+                .build();
+        this.maxPerTarget = maxPerTarget;
+    }
+
+    /** Returns the client shared by the whole process. */
+    public static SharedHttpClient get() {
+        return shared;
+    }
+
+    /** Posts a JSON body to a method of the server at the given address and returns the response as a string. */
+    public HttpResponse<String> postJson(String ip, int port, String method, String json)
+            throws IOException, InterruptedException {
+        return this.postJson(ip, port, method, json, false);
+    }
+
+    /** Same as above, sending the request once more if it fails with an IOException and is marked idempotent. */
+    public HttpResponse<String> postJson(String ip, int port, String method, String json, boolean idempotent)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://" + ip + ":" + port + method))
+                .setHeader("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build();
+        return this.send(request, HttpResponse.BodyHandlers.ofString(), idempotent);
+    }
+
+    /** Sends a request, waiting first if too many calls to the same server are already outstanding. A request whose
+     * HTTP method is idempotent is sent once more if it fails with an IOException. */
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        return this.send(request, handler, false);
+    }
+
+    /** Same as above, also sending the request once more if it is marked idempotent. The body publisher of such a
+     * request must be able to publish the body again, as those built from a string, an array or a file can. */
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler, boolean idempotent)
+            throws IOException, InterruptedException {
+        URI uri = request.uri();
+        Semaphore permits = this.targets.computeIfAbsent(uri.getHost() + ":" + uri.getPort(),
+                target -> new Semaphore(this.maxPerTarget, true));
+        permits.acquire();
+        try {
+            try {
+                return this.client.send(request, handler);
+            } catch (HttpTimeoutException e) {
+                // The server is slow rather than the connection stale. Another attempt would only double the wait.
+                throw e;
+            } catch (IOException e) {
+                if (!idempotent && !isIdempotent(request.method())) {
+                    throw e;
+                }
+                return this.client.send(request, handler);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static boolean isIdempotent(String method) {
+        switch (method) {
+            case "GET":
+            case "HEAD":
+            case "PUT":
+            case "DELETE":
+            case "OPTIONS":
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package jsonhelper;
+
+public class WriteReturn {
+    public boolean success;
+    public long bytes_written;
+    public long length;
+
+    public WriteReturn(boolean success, long bytes_written, long length) {
+        this.success = success;
+        this.bytes_written = bytes_written;
+        this.length = length;
+    }
+}
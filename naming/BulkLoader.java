@@ -0,0 +1,58 @@
+package naming;
+
+import storage.StorageServerInfo;
+
+/** Adds the files of a registering storage server to the NamingDirectory, one after another.
+ *
+ * Files of a storage server mostly arrive a directory at a time, and in a sorted or positional listing siblings always
+ * do. Rather than walk down from the root for every file, the loader starts each walk at the deepest directory the
+ * file shares with the one before it, found by climbing up from the last parent. A file in the same directory as the
+ * one before costs a single lookup, however deep the directory is. Files in any order are still added correctly,
+ * only with less to share.
+ *
+ * A loader belongs to one registration and is not safe to share between threads. */
+public final class BulkLoader {
+
+    private final NamingDirectory tree;
+    private final StorageServerInfo storage;
+
+    // Path of the last file added, and the directory it was added to, which is at depth previous.length - 1.
+    private String[] previous;
+    private DirectoryNode parent;
+
+    BulkLoader(NamingDirectory tree, StorageServerInfo storage) {
+        this.tree = tree;
+        this.storage = storage;
+    }
+
+    /** Storage server whose files the loader adds. */
+    public StorageServerInfo getStorage() {
+        return this.storage;
+    }
+
+    /** Adds a file held by the storage server. The result tells whether the path already existed, as for
+     * NamingDirectory.addElement. */
+    public PathLookup add(String[] pathName) {
+        if (pathName.length == 0) {
+            return this.tree.addElement(pathName, this.storage);
+        }
+
+        DirectoryNode start = this.tree.getRoot();
+        int shared = 0;
+        if (this.parent != null) {
+            int limit = Math.min(this.previous.length, pathName.length) - 1;
+            while (shared < limit && this.previous[shared].equals(pathName[shared])) {
+                shared++;
+            }
+            start = this.parent;
+            for (int depth = this.previous.length - 1; depth > shared; depth--) {
+                start = start.getParent();
+            }
+        }
+
+        PathLookup lookup = this.tree.addNode(start, shared, pathName, true, this.storage);
+        this.previous = pathName;
+        this.parent = lookup.getNode().getParent();
+        return lookup;
+    }
+}
@@ -1,45 +1,205 @@
-  package naming;
+package naming;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
-public class DirectoryNode<String> {
+import storage.StorageServerInfo;
 
-    // Contains the directory name
-    private String data;
+public class DirectoryNode {
 
-    // Recording the parent as well as the children for the current node.
-    private DirectoryNode parent;
-    private ArrayList<DirectoryNode> children;
+    // Directories with up to this many children keep them in an array rather than a map.
+    private static final int SMALL_DIRECTORY = 8;
+    private static final DirectoryNode[] NO_CHILDREN = new DirectoryNode[0];
+
+    private static final AtomicReferenceFieldUpdater<DirectoryNode, Object> CHILDREN =
+            AtomicReferenceFieldUpdater.newUpdater(DirectoryNode.class, Object.class, "children");
+
+    // Contains the directory name. Names are interned, so that the same name in many directories is held once.
+    private final String data;
+
+    // Recording the parent as well as the children for the current node. Most nodes are files or small directories,
+    // so the children are null until there are some, then an array that is replaced whole on every change, and only
+    // past SMALL_DIRECTORY a concurrent map indexed by name, so that a lookup costs the same no matter how wide the
+    // directory is. Either way lookups and listings never block, and creates or deletes only contend with others in
+    // the same directory.
+    private final DirectoryNode parent;
+    private volatile Object children;
+
+    // Set before the node is detached from its parent. Anything added below a removed node is lost with it.
+    private volatile boolean removed;
 
     // Signifies whether the Node is a File or a Directory.
     public boolean isDir;
     public boolean isFile;
 
-    // Lock for each Node.
-    public RWLocks lock;
+    // Shared locks taken on the node towards its next replication, kept while the node has no lock. Its lock, if
+    // it has one, is kept in the lock table of the NamingDirectory, which also reads and writes this.
+    byte reads;
+
+    // Storage server holding the original copy of a file, so that it can be found without searching every server.
+    // The servers holding replicas are recorded by the lock, which makes and invalidates them.
+    private volatile StorageServerInfo storage;
 
     public DirectoryNode(String data, DirectoryNode parent) {
-        this.data = data;
+        this.data = data.intern();
         this.parent = parent;
-        this.children = new ArrayList<DirectoryNode>();
         this.isDir = false;
         this.isFile = false;
-        this.lock = new RWLocks();
     }
 
     public String getData() {
         return this.data;
     }
 
-    public ArrayList<DirectoryNode> getChildren() {
-        return this.children;
+    /** View of the children, in no particular order. It is safe to iterate while other threads add or remove
+     * children. */
+    public Collection<DirectoryNode> getChildren() {
+        Object children = this.children;
+        if (children == null) {
+            return Collections.emptyList();
+        } else if (children instanceof DirectoryNode[]) {
+            return Arrays.asList((DirectoryNode[]) children);
+        }
+        return map(children).values();
+    }
+
+    /** Returns the child with the given name, or null if there is none. */
+    public DirectoryNode getChild(String name) {
+        Object children = this.children;
+        if (children == null) {
+            return null;
+        } else if (children instanceof DirectoryNode[]) {
+            for (DirectoryNode child : (DirectoryNode[]) children) {
+                if (child.data.equals(name)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+        return map(children).get(name);
+    }
+
+    /** Adds a child under its own name unless one of that name is already there. Returns the child that was
+     * already there, or null if the new child was added. */
+    public DirectoryNode putChildIfAbsent(DirectoryNode child) {
+        while (true) {
+            Object children = this.children;
+            if (children != null && !(children instanceof DirectoryNode[])) {
+                return map(children).putIfAbsent(child.data, child);
+            }
+
+            DirectoryNode[] small = children == null ? NO_CHILDREN : (DirectoryNode[]) children;
+            for (DirectoryNode existing : small) {
+                if (existing.data.equals(child.data)) {
+                    return existing;
+                }
+            }
+
+            Object grown;
+            if (small.length < SMALL_DIRECTORY) {
+                DirectoryNode[] array = Arrays.copyOf(small, small.length + 1);
+                array[small.length] = child;
+                grown = array;
+            } else {
+                ConcurrentHashMap<String, DirectoryNode> map = new ConcurrentHashMap<String, DirectoryNode>();
+                for (DirectoryNode existing : small) {
+                    map.put(existing.data, existing);
+                }
+                map.put(child.data, child);
+                grown = map;
+            }
+            if (CHILDREN.compareAndSet(this, children, grown)) {
+                return null;
+            }
+        }
+    }
+
+    /** Removes the given child. Returns false if it is no longer a child, because another thread removed it first. */
+    public boolean removeChild(DirectoryNode child) {
+        while (true) {
+            Object children = this.children;
+            if (children == null) {
+                return false;
+            } else if (!(children instanceof DirectoryNode[])) {
+                return map(children).remove(child.data, child);
+            }
+
+            DirectoryNode[] small = (DirectoryNode[]) children;
+            int index = 0;
+            while (index < small.length && small[index] != child) {
+                index++;
+            }
+            if (index == small.length) {
+                return false;
+            }
+
+            DirectoryNode[] shrunk = null;
+            if (small.length > 1) {
+                shrunk = new DirectoryNode[small.length - 1];
+                System.arraycopy(small, 0, shrunk, 0, index);
+                System.arraycopy(small, index + 1, shrunk, index, shrunk.length - index);
+            }
+            if (CHILDREN.compareAndSet(this, children, shrunk)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean hasChildren() {
+        Object children = this.children;
+        if (children == null) {
+            return false;
+        } else if (children instanceof DirectoryNode[]) {
+            return ((DirectoryNode[]) children).length > 0;
+        }
+        return !map(children).isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentHashMap<String, DirectoryNode> map(Object children) {
+        return (ConcurrentHashMap<String, DirectoryNode>) children;
     }
 
     public DirectoryNode getParent() {
         return this.parent;
     }
 
-    public void modifyChildren(ArrayList<DirectoryNode> children) {
-        this.children = children;
+    /** Returns the path of the node from the root, as it was when the node was added. */
+    public String getPath() {
+        if (this.parent == null) {
+            return "/";
+        }
+        StringBuilder path = new StringBuilder();
+        for (DirectoryNode node = this; node.parent != null; node = node.parent) {
+            path.insert(0, node.data).insert(0, '/');
+        }
+        return path.toString();
+    }
+
+    /** Returns the storage server holding the original copy of the file, or null for a directory. */
+    public StorageServerInfo getStorage() {
+        return this.storage;
+    }
+
+    public void setStorage(StorageServerInfo storage) {
+        this.storage = storage;
+    }
+
+    /** Marks the node as removed. This must happen before it is detached from its parent. */
+    public void markRemoved() {
+        this.removed = true;
+    }
+
+    /** Whether the node and all of its ancestors are still in the tree. */
+    public boolean isAttached() {
+        for (DirectoryNode node = this; node != null; node = node.parent) {
+            if (node.removed) {
+                return false;
+            }
+        }
+        return true;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,65 @@
+package naming;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.gson.stream.JsonWriter;
+
+/** Files a registering storage server has that the naming server already had, to be sent back for deletion.
+ *
+ * A server that marks its listing as positional gets its duplicates back as ranges of positions in that listing,
+ * written as a flat "ranges" array of the first position and the number of files of each range. Duplicates come in
+ * runs, such as a whole directory that another server registered first, so a range costs the same however many files
+ * it covers. Any other server gets a "files" array of paths, kept meanwhile as the nodes the duplicates collided with
+ * rather than as strings. */
+final class DuplicateSet {
+
+    private final boolean ranged;
+    private final List<DirectoryNode> nodes = new ArrayList<DirectoryNode>();
+
+    // Pairs of the first position and the number of files, in order of position.
+    private long[] ranges = new long[16];
+    private int size;
+
+    DuplicateSet(boolean ranged) {
+        this.ranged = ranged;
+    }
+
+    /** Records the file at the given position of the listing as a duplicate of the given node. Positions must be
+     * added in increasing order. */
+    void add(long position, DirectoryNode node) {
+        if (!this.ranged) {
+            this.nodes.add(node);
+            return;
+        }
+        if (this.size > 0 && this.ranges[this.size - 2] + this.ranges[this.size - 1] == position) {
+            this.ranges[this.size - 1]++;
+            return;
+        }
+        if (this.size == this.ranges.length) {
+            this.ranges = Arrays.copyOf(this.ranges, this.size * 2);
+        }
+        this.ranges[this.size++] = position;
+        this.ranges[this.size++] = 1;
+    }
+
+    /** Writes the duplicates as the body of the response to the registration. */
+    void writeTo(JsonWriter json) throws IOException {
+        json.beginObject();
+        if (this.ranged) {
+            json.name("ranges").beginArray();
+            for (int i = 0; i < this.size; i++) {
+                json.value(this.ranges[i]);
+            }
+        } else {
+            json.name("files").beginArray();
+            for (DirectoryNode node : this.nodes) {
+                json.value(node.getPath());
+            }
+        }
+        json.endArray();
+        json.endObject();
+    }
+}
@@ -0,0 +1,551 @@
+package naming;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+import storage.StorageServerInfo;
+
+/** Makes the namespace of the naming server durable, so that a restarted naming server has its whole tree back
+ * without waiting for every storage server to register again.
+ *
+ * Every change to the namespace is appended to a log: files and directories created, paths deleted, storage servers
+ * registered, replicas made and replicas invalidated. Records are not written one by one. A single writer thread
+ * takes everything queued since its last write, writes it and forces it to disk once, so that any number of requests
+ * arriving together share one sync. A request is only answered once its records are on disk.
+ *
+ * Every so often the log is rolled over to a new segment and a compact binary snapshot of the tree, the registered
+ * servers and the replicas is written, after which the segments before it are deleted. The snapshot is taken while the
+ * namespace keeps changing, so it may hold some of the changes made after the roll-over and not others. Replaying the
+ * segments after it sets every path they touch to its final state, which is why applying a record twice does no harm.
+ *
+ * A batch that fails to be written or forced fails the requests waiting on it. Whatever part of it reached the segment
+ * is cut off again, or if even that fails, writing goes on in a new segment, so that the next batch is never appended
+ * after torn bytes at which replay would stop short of it.
+ *
+ * Changes are made to the tree while holding the journal's monitor, and queue their record before letting go of it,
+ * so that the log holds changes in the order they were made.
+ *
+ * The journal is kept in the directory named by the dfs.naming.journal.dir system property, and is not kept at all if
+ * the property is not set. A snapshot is taken every dfs.naming.journal.snapshotInterval records, 100000 by default.
+ */
+public final class NamespaceJournal {
+
+    // Kinds of record.
+    private static final byte FILE_CREATED = 1;
+    private static final byte DIRECTORY_CREATED = 2;
+    private static final byte DELETED = 3;
+    private static final byte REGISTERED = 4;
+    private static final byte REPLICATED = 5;
+    private static final byte INVALIDATED = 6;
+
+    // No record comes anywhere near this long. A longer one is the torn tail of a segment.
+    private static final int MAX_RECORD = 1 << 20;
+
+    private static final int SNAPSHOT_MAGIC = 0x4446534e;
+    private static final String SNAPSHOT = "namespace.snapshot";
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+    private final long snapshotInterval;
+
+    // The namespace the journal records, and the registered servers that file records refer to by index.
+    private NamingDirectory tree;
+    private List<StorageServerInfo> servers;
+
+    // Records queued since the writer last took them, and the future completed once they are on disk. The future of
+    // the batch last taken lets a caller with nothing queued wait for what it queued before. Guarded by this.
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingData = new DataOutputStream(this.pending);
+    private final ByteArrayOutputStream scratch = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(this.scratch);
+    private final CRC32C crc = new CRC32C();
+    private CompletableFuture<Void> batch = new CompletableFuture<Void>();
+    private CompletableFuture<Void> taken = CompletableFuture.completedFuture(null);
+    private long sinceSnapshot;
+    private boolean closed;
+
+    // The segment being written and its number. Guarded by output, which the writer holds while writing a batch.
+    // The segment is null after a failed batch could not be cut off, until the next batch opens a new one.
+    private final Object output = new Object();
+    private final Opener opener;
+    private FileChannel segment;
+    private long sequence;
+
+    private Thread writer;
+    private final Object snapshotting = new Object();
+    private final AtomicBoolean snapshotStarted = new AtomicBoolean();
+
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong commitNanos = new AtomicLong();
+    private final AtomicLong snapshots = new AtomicLong();
+
+    public NamespaceJournal(File directory, long snapshotInterval) {
+        this(directory, snapshotInterval, file -> FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                                                   StandardOpenOption.WRITE,
+                                                                   StandardOpenOption.APPEND));
+    }
+
+    /** Creates a journal whose segments are opened by the given opener, which must open them for appending. */
+    public NamespaceJournal(File directory, long snapshotInterval, Opener opener) {
+        this.directory = directory;
+        this.snapshotInterval = snapshotInterval;
+        this.opener = opener;
+    }
+
+    /** Returns a journal configured by the dfs.naming.journal.* system properties, or null if the namespace is not to
+     * be journaled. */
+    public static NamespaceJournal fromProperties() {
+        String directory = System.getProperty("dfs.naming.journal.dir");
+        if (directory == null) {
+            return null;
+        }
+        return new NamespaceJournal(new File(directory),
+                                    Long.getLong("dfs.naming.journal.snapshotInterval", 100000));
+    }
+
+    /** Loads the last snapshot, and replays the log after it, into an empty tree and server list, then starts logging
+     * the changes made to them. Nothing else may change the tree until this returns. */
+    public void open(NamingDirectory tree, List<StorageServerInfo> servers) throws IOException {
+        this.tree = tree;
+        this.servers = servers;
+        Files.createDirectories(this.directory.toPath());
+
+        long first = 0;
+        File snapshot = new File(this.directory, SNAPSHOT);
+        if (snapshot.exists()) {
+            first = this.load(snapshot);
+        }
+
+        long last = first - 1;
+        for (Map.Entry<Long, File> entry : this.segments().entrySet()) {
+            if (entry.getKey() < first) {
+                // Left behind by a snapshot that was written but not cleaned up after.
+                entry.getValue().delete();
+            } else {
+                this.replay(entry.getValue());
+                last = entry.getKey();
+            }
+        }
+
+        // A segment whose tail was torn by a crash is never appended to: writing starts in a new one.
+        this.sequence = last + 1;
+        this.segment = this.openSegment(this.sequence);
+        this.writer = new Thread(this::write, "journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /** Writes everything still queued and stops the journal. */
+    public void close() throws IOException {
+        synchronized (this) {
+            this.closed = true;
+            this.notifyAll();
+        }
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while closing the journal");
+        }
+        synchronized (this.output) {
+            if (this.segment != null) {
+                this.segment.close();
+            }
+        }
+    }
+
+    /** Records that a file was created, stored on the given server. */
+    public synchronized void fileCreated(String[] path, StorageServerInfo storage) {
+        try {
+            this.begin(FILE_CREATED).writeUTF(join(path));
+            this.record.writeInt(storage == null ? -1 : this.servers.indexOf(storage));
+            this.end();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /** Records that a directory was created. */
+    public synchronized void directoryCreated(String[] path) {
+        this.pathRecord(DIRECTORY_CREATED, join(path));
+    }
+
+    /** Records that a path, and everything below it, was deleted. */
+    public synchronized void deleted(String[] path) {
+        this.pathRecord(DELETED, join(path));
+    }
+
+    /** Records that a storage server registered. It must have just been added to the end of the server list. */
+    public synchronized void registered(StorageServerInfo server) {
+        try {
+            this.begin(REGISTERED).writeUTF(server.getStorage_ip());
+            this.record.writeInt(server.getClient_port());
+            this.record.writeInt(server.getCommand_port());
+            this.end();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /** Records that a replica of the file was made on the server with the given command port. */
+    public synchronized void replicated(String filepath, int port) {
+        this.replicaRecord(REPLICATED, filepath, port);
+    }
+
+    /** Records that the replica of the file on the server with the given command port was invalidated, and is kept
+     * by that server as a stale replica. */
+    public synchronized void invalidated(String filepath, int port) {
+        this.replicaRecord(INVALIDATED, filepath, port);
+    }
+
+    /** Waits until every record queued so far, by any thread, is on disk. */
+    public void sync() throws IOException {
+        CompletableFuture<Void> durable;
+        synchronized (this) {
+            durable = this.pending.size() == 0 ? this.taken : this.batch;
+        }
+        try {
+            durable.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the journal");
+        } catch (ExecutionException e) {
+            throw new IOException("unable to write the journal", e.getCause());
+        }
+    }
+
+    /** Rolls the log over to a new segment, writes a snapshot of the namespace, and deletes the segments it replaces.
+     * Changes go on being made and logged while the snapshot is written. One snapshot is written at a time. */
+    public void snapshot() throws IOException {
+        synchronized (this.snapshotting) {
+            // Only waits for the batch being written. Whatever was written before is already in the tree, so the
+            // walk that follows sees it.
+            long first;
+            synchronized (this.output) {
+                if (this.segment != null) {
+                    this.segment.close();
+                }
+                first = ++this.sequence;
+                this.segment = this.openSegment(first);
+            }
+            synchronized (this) {
+                this.sinceSnapshot = 0;
+            }
+
+            this.store(first);
+            this.snapshots.incrementAndGet();
+            for (File old : this.segments().headMap(first).values()) {
+                old.delete();
+            }
+        }
+    }
+
+    /** Statistics for the journal: records logged, syncs made for them, time spent syncing, and snapshots taken. */
+    public Map<String, Long> statistics() {
+        Map<String, Long> statistics = new HashMap<String, Long>();
+        statistics.put("records", this.records.get());
+        statistics.put("commits", this.commits.get());
+        statistics.put("commit_nanos", this.commitNanos.get());
+        statistics.put("snapshots", this.snapshots.get());
+        return statistics;
+    }
+
+    /** Starts a record of the given kind. The caller holds this monitor. */
+    private DataOutputStream begin(byte kind) throws IOException {
+        this.scratch.reset();
+        this.record.writeByte(kind);
+        return this.record;
+    }
+
+    /** Queues the record just written, framed by its length and checksum, and wakes the writer. */
+    private void end() throws IOException {
+        byte[] body = this.scratch.toByteArray();
+        this.crc.reset();
+        this.crc.update(body, 0, body.length);
+        this.pendingData.writeInt(body.length);
+        this.pendingData.writeInt((int) this.crc.getValue());
+        this.pendingData.write(body);
+        this.records.incrementAndGet();
+        this.sinceSnapshot++;
+        this.notifyAll();
+    }
+
+    private void pathRecord(byte kind, String path) {
+        try {
+            this.begin(kind).writeUTF(path);
+            this.end();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void replicaRecord(byte kind, String filepath, int port) {
+        try {
+            this.begin(kind).writeUTF(filepath);
+            this.record.writeInt(port);
+            this.end();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /** Writes batches of records until the journal is closed. */
+    private void write() {
+        while (true) {
+            byte[] batch;
+            CompletableFuture<Void> done;
+            boolean snapshot;
+            synchronized (this) {
+                while (this.pending.size() == 0 && !this.closed) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (this.pending.size() == 0) {
+                    return;
+                }
+                batch = this.pending.toByteArray();
+                this.pending.reset();
+                done = this.batch;
+                this.taken = done;
+                this.batch = new CompletableFuture<Void>();
+                snapshot = this.sinceSnapshot >= this.snapshotInterval;
+            }
+
+            long start = System.nanoTime();
+            try {
+                synchronized (this.output) {
+                    this.append(batch);
+                }
+                this.commits.incrementAndGet();
+                this.commitNanos.addAndGet(System.nanoTime() - start);
+                done.complete(null);
+            } catch (IOException e) {
+                done.completeExceptionally(e);
+            }
+
+            if (snapshot && this.snapshotStarted.compareAndSet(false, true)) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        this.snapshot();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        this.snapshotStarted.set(false);
+                    }
+                }, "snapshot");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /** Appends a batch to the segment and forces it to disk. If that fails, the segment is cut back to where the batch
+     * started, or if it cannot be, given up for a new one. The caller holds output. */
+    private void append(byte[] batch) throws IOException {
+        if (this.segment == null) {
+            this.segment = this.openSegment(++this.sequence);
+        }
+        long length = this.segment.size();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            while (buffer.hasRemaining()) {
+                this.segment.write(buffer);
+            }
+            this.segment.force(false);
+        } catch (IOException e) {
+            try {
+                this.segment.truncate(length);
+                this.segment.force(false);
+            } catch (IOException cutting) {
+                e.addSuppressed(cutting);
+                try {
+                    this.segment.close();
+                } catch (IOException closing) {
+                    e.addSuppressed(closing);
+                }
+                this.segment = null;
+            }
+            throw e;
+        }
+    }
+
+    /** Writes a snapshot of the namespace, to be followed on recovery by the segments from the given one on: the
+     * registered servers, then the tree in the compact form written by NamingDirectory.writeTo. It is written beside
+     * the last snapshot and only then moved over it, so a crash leaves one or the other. */
+    private void store(long first) throws IOException {
+        File temporary = new File(this.directory, SNAPSHOT + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(first);
+
+            List<StorageServerInfo> servers = new ArrayList<StorageServerInfo>(this.servers);
+            Map<StorageServerInfo, Integer> indices = new IdentityHashMap<StorageServerInfo, Integer>();
+            out.writeInt(servers.size());
+            for (StorageServerInfo server : servers) {
+                indices.put(server, indices.size());
+                out.writeUTF(server.getStorage_ip());
+                out.writeInt(server.getClient_port());
+                out.writeInt(server.getCommand_port());
+            }
+
+            this.tree.writeTo(out, indices);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary.toPath(), new File(this.directory, SNAPSHOT).toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Loads a snapshot into the tree and server list, and returns the first segment to replay after it. */
+    private long load(File snapshot) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException(snapshot + " is not a namespace snapshot");
+            }
+            long first = in.readLong();
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                this.servers.add(new StorageServerInfo(in.readUTF(), in.readInt(), in.readInt()));
+            }
+
+            this.tree.readFrom(in, this.servers);
+            return first;
+        }
+    }
+
+    /** Applies the records of a segment, in order, up to its end or to the first record torn by a crash. */
+    private void replay(File segment) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 1 << 16))) {
+            while (true) {
+                byte[] body;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD) {
+                        return;
+                    }
+                    body = new byte[length];
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    return;
+                }
+                this.crc.reset();
+                this.crc.update(body, 0, body.length);
+                if ((int) this.crc.getValue() != checksum) {
+                    return;
+                }
+                this.apply(new DataInputStream(new ByteArrayInputStream(body)));
+            }
+        }
+    }
+
+    /** Applies one record to the tree and server list. */
+    private void apply(DataInputStream record) throws IOException {
+        byte kind = record.readByte();
+        if (kind == REGISTERED) {
+            this.servers.add(new StorageServerInfo(record.readUTF(), record.readInt(), record.readInt()));
+            return;
+        }
+
+        String path = record.readUTF();
+        String[] components = NamingDirectory.parse(path);
+        switch (kind) {
+            case FILE_CREATED: {
+                int storage = record.readInt();
+                PathLookup lookup = this.tree.addElement(components);
+                if (lookup.isFile()) {
+                    // A snapshot taken while the file was being created may have it without its server.
+                    lookup.getNode().setStorage(storage < 0 ? null : this.servers.get(storage));
+                }
+                break;
+            }
+            case DIRECTORY_CREATED:
+                this.tree.addDirectory(components);
+                break;
+            case DELETED:
+                this.tree.deleteFile(components);
+                break;
+            case REPLICATED:
+            case INVALIDATED: {
+                int port = record.readInt();
+                DirectoryNode node = this.tree.resolve(components, components.length);
+                if (node != null && kind == REPLICATED) {
+                    this.tree.restoreReplicated(node, path, port);
+                } else if (node != null) {
+                    this.tree.restoreInvalidated(node, path, port);
+                }
+                break;
+            }
+            default:
+                throw new IOException("unknown journal record " + kind);
+        }
+    }
+
+    /** Returns the segments of the log, by number. */
+    private TreeMap<Long, File> segments() {
+        TreeMap<Long, File> segments = new TreeMap<Long, File>();
+        File[] files = this.directory.listFiles();
+        if (files == null) {
+            return segments;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                                               name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    // Not one of ours.
+                }
+            }
+        }
+        return segments;
+    }
+
+    private FileChannel openSegment(long sequence) throws IOException {
+        return this.opener.open(new File(this.directory, SEGMENT_PREFIX + sequence + SEGMENT_SUFFIX));
+    }
+
+    private static String join(String[] path) {
+        return "/" + String.join("/", path);
+    }
+
+    /** Opens a segment of the log for appending. */
+    public interface Opener {
+        FileChannel open(File file) throws IOException;
+    }
+}
@@ -1,419 +1,643 @@
 package naming;
 
 import java.lang.String;
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import storage.StorageServerInfo;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
 public class NamingDirectory {
 
+    // Flags written before each node by writeTo.
+    private static final int FILE = 1;
+    private static final int STORED = 2;
+    private static final int REPLICATED = 4;
+
     private DirectoryNode root;
-    private boolean isUnique;
-    private boolean directoryStatus;
-    private boolean fileStatus;
+
+    // Journal every change is recorded in, or null if the namespace is not journaled.
+    private NamespaceJournal journal;
+
+    // Locks of the nodes that are locked, waited for, or have replicas. A node gets its lock the first time it is
+    // locked, and loses it once nothing holds or waits for it and it records no replicas, so that the many nodes that
+    // are never or seldom locked cost nothing. Every change to an entry is made in the table's compute, which is what
+    // keeps a lock from being dropped between a request finding it and queueing on it.
+    private final ConcurrentHashMap<DirectoryNode, RWLocks> locks = new ConcurrentHashMap<DirectoryNode, RWLocks>();
 
     public NamingDirectory(String[] pathName) {
         // Construct tree with root node
         this.root = new DirectoryNode(pathName[0], null);
-        this.isUnique = true;
-        this.directoryStatus = false;
-        this.fileStatus = false;
-    }
-
-    /**  Add a file to a directory */
-    public void addElement(DirectoryNode node, String[] pathName) {
-        ArrayList<DirectoryNode> tempChild = new ArrayList<DirectoryNode>();
-        // Remember, only one unique path per level
-        if (pathName.length == 1) {
-            // Reached the leaf directory file
-
-            if (node.getChildren().size()==0) {
-                // There is a unique leaf node for the parent node
-                ArrayList<DirectoryNode> children = node.getChildren();
-                DirectoryNode child = new DirectoryNode(pathName[0], node);
-                child.isFile = true;
-                child.isDir = false;
-                children.add(child);
-                node.modifyChildren(children);
-                this.isUnique = true;
-            } else {
-                ArrayList<DirectoryNode> children = node.getChildren();
-                for (DirectoryNode child : children) {
-                    if (child.getData().equals(pathName[0])) {
-                        // Entire path exists till the last node.
-                        this.isUnique = false;
-                        return;
-                    }
-                }
-                // A unique path has come, add it as new child to the current node
-                DirectoryNode child = new DirectoryNode(pathName[0], node);
-                child.isFile = true;
-                child.isDir = false;
-                tempChild.add(child);
-                this.isUnique = true;
-            }
-            node.getChildren().addAll(tempChild);
-            return;
-        }
-
-        if (node.getChildren().size()==0) {
-            // Unique node has come in and needs to be added
-            DirectoryNode child = new DirectoryNode(pathName[0], node);
-            child.isFile = false;
-            child.isDir = true;
-            tempChild.add(child);
-
-            addElement(tempChild.get(0), Arrays.copyOfRange(pathName,1,pathName.length));
-        } else {
-            ArrayList<DirectoryNode> children = node.getChildren();
-            for (DirectoryNode child : children) {
-                if (child.getData().equals(pathName[0])) {
-                    // First portion of incoming path exists, continue traversal
-                    addElement(child, Arrays.copyOfRange(pathName,1,pathName.length));
-                    return;
-                }
-            }
-            // A unique path has come, add it as new child to the current node
-            DirectoryNode child = new DirectoryNode(pathName[0], node);
-            child.isFile = false;
-            child.isDir = true;
-            tempChild.add(child);
-            addElement(tempChild.get(0), Arrays.copyOfRange(pathName,1,pathName.length));
-        }
-        node.getChildren().addAll(tempChild);
-        return;
+        this.root.isDir = true;
     }
 
-    /** Traverse through tree and pass the file node to delete exists */
-    public DirectoryNode deleteFile(DirectoryNode node, String[] pathName) {
-        if (pathName[0].equals("/")) {
-            return node;
+    /** Records every change made from now on in the journal. Changes made before, such as those the journal itself
+     * replays, are not recorded. */
+    public void setJournal(NamespaceJournal journal) {
+        this.journal = journal;
+    }
+
+    /** Waits until every change made so far is on disk. Returns at once if the namespace is not journaled. */
+    public void sync() throws IOException {
+        if (this.journal != null) {
+            this.journal.sync();
         }
-        // Remember, only one unique path per level
-        if (pathName.length == 1) {
-            // Reached the leaf directory file
+    }
 
-            if (node.getChildren().size()==0) {
-                // Unique leaf node come in. So we cant delete and hence no return of directory
-                return null;
-            } else {
-                ArrayList<DirectoryNode> children = node.getChildren();
-                for (DirectoryNode child : children) {
-                    if (child.getData().equals(pathName[0]) && child.getChildren().size()==0) {
-                        // Path exists till the last node. We return the child whose path matches so that deletion can
-                        // be carried out.
-                        children.remove(child);
-                        return child;
-                    } else if (child.getData().equals(pathName[0]) && child.isDir) {
-                        // This piece of code is triggered whenever the Path is a directory. We need to return the
-                        // node back to the delete function to delete.
-                        if (child.isDir && !child.isFile) {
-                            children.remove(child);
-                            return child;
-                        }
-                    }
-                }
-                return null;
+    /** Splits a path string into its components. Repeated slashes are collapsed and the root path gives an empty
+     * array, so the result can be handed to every method of this class. This is the only place a path gets parsed. */
+    public static String[] parse(String path) {
+        int count = 0;
+        int length = path.length();
+        for (int i = 0; i < length; i++) {
+            if (path.charAt(i) != '/' && (i == 0 || path.charAt(i - 1) == '/')) {
+                count++;
             }
         }
 
-        if (node.getChildren().size()==0) {
-            return null;
-        } else {
-            ArrayList<DirectoryNode> children = node.getChildren();
-            for (DirectoryNode child : children) {
-                if (child.getData().equals(pathName[0])) {
-                    // First portion of incoming path exists, continue traversal to delete
-                    DirectoryNode r = deleteFile(child, Arrays.copyOfRange(pathName,1,pathName.length));
-                    if (r != null) {
-                        return r;
-                    } else {
-                        return null;
-                    }
+        String[] components = new String[count];
+        int index = 0;
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || path.charAt(i) == '/') {
+                if (start >= 0) {
+                    components[index++] = path.substring(start, i);
+                    start = -1;
                 }
+            } else if (start < 0) {
+                start = i;
             }
-            return null;
         }
+        return components;
     }
 
-    /** Traverse through tree to check if file exists */
-    public boolean fileExists(DirectoryNode node, String[] pathName) {
-        if (pathName[0].equals("/")) {
-            return true;
+    /** Returns the node the path refers to, or null if there is none. */
+    public DirectoryNode resolve(String path) {
+        String[] components = parse(path);
+        return resolve(components, components.length);
+    }
+
+    /** Returns the node reached by walking the first depth components from the root, or null if there is none.
+     * Passing depth - 1 resolves the parent. Nothing is allocated on the way down. */
+    public DirectoryNode resolve(String[] components, int depth) {
+        DirectoryNode node = this.root;
+        for (int i = 0; i < depth && node != null; i++) {
+            node = node.getChild(components[i]);
         }
-        // Remember, only one unique path per level
-        if (pathName.length == 1) {
-            // Reached the leaf directory file
+        return node;
+    }
 
-            if (node.getChildren().size()==0) {
-                // This is a unique node.
-                return false;
-            } else {
-                ArrayList<DirectoryNode> children = node.getChildren();
-                for (DirectoryNode child : children) {
-                    if (child.getData().equals(pathName[0]) && child.getChildren().size()==0) {
-                        // Path exisits completely.
-                        this.fileStatus = child.isFile;
-                        this.directoryStatus = child.isDir;
-                        return true;
+    /** Look up the node the path refers to. The result belongs to the caller alone. */
+    public PathLookup lookup(String[] pathName) {
+        DirectoryNode node = resolve(pathName, pathName.length);
+        return new PathLookup(node, node != null);
+    }
+
+    /**  Add a file to a directory. The result tells whether the path already existed, in which case it is a
+     * duplicate and nothing was added. */
+    public PathLookup addElement(String[] pathName) {
+        return addNode(pathName, true, null);
+    }
+
+    /**  Add a file to a directory, recording the storage server that holds it. The server is in place before the
+     * file becomes visible, so anyone who finds the file can also find where it is stored. */
+    public PathLookup addElement(String[] pathName, StorageServerInfo storage) {
+        return addNode(pathName, true, storage);
+    }
+
+    /**  Add a directory */
+    public PathLookup addDirectory(String[] pathName) {
+        return addNode(pathName, false, null);
+    }
+
+    /** Returns a loader adding the files of a registering storage server one after another, each walk starting
+     * where the last one left off. */
+    public BulkLoader bulkLoader(StorageServerInfo storage) {
+        return new BulkLoader(this, storage);
+    }
+
+    /** Walks down the path creating missing directories on the way, and adds the last component as a file or a
+     * directory. If the last component already exists, the path is not unique and nothing is added.
+     *
+     * No lock is taken: every node is published with an atomic put-if-absent on its parent's child map, so two
+     * threads adding the same path agree on a single node. If a directory on the path is deleted while the node is
+     * being added, the node went down with it and the whole walk is retried from the root. A journaled node is logged
+     * as it is published; see publish. */
+    private PathLookup addNode(String[] pathName, boolean file, StorageServerInfo storage) {
+        return addNode(this.root, 0, pathName, file, storage);
+    }
+
+    /** Adds a node as addNode does, but starting the walk at a directory the caller has already found at the given
+     * depth of the path. If that directory has since been deleted, the walk is retried from the root. */
+    PathLookup addNode(DirectoryNode start, int depth, String[] pathName, boolean file, StorageServerInfo storage) {
+        if (pathName.length == 0) {
+            // The root always exists and is never registered, so it is not reported as a duplicate either.
+            return new PathLookup(this.root, false);
+        }
+
+        int last = pathName.length - 1;
+        while (true) {
+            DirectoryNode node = start;
+            for (int i = depth; i < last; i++) {
+                DirectoryNode child = node.getChild(pathName[i]);
+                if (child == null) {
+                    // Unique node has come in and needs to be added
+                    DirectoryNode created = new DirectoryNode(pathName[i], node);
+                    created.isFile = false;
+                    created.isDir = true;
+                    child = node.putChildIfAbsent(created);
+                    if (child == null) {
+                        child = created;
                     }
                 }
-                return false;
+                node = child;
             }
+
+            DirectoryNode leaf = node.getChild(pathName[last]);
+            boolean existed = leaf != null;
+            if (!existed) {
+                // A unique path has come, add it as new child to the current node
+                DirectoryNode created = new DirectoryNode(pathName[last], node);
+                created.isFile = file;
+                created.isDir = !file;
+                created.setStorage(storage);
+                leaf = this.publish(node, created, pathName, storage);
+                existed = leaf != created;
+            }
+
+            if (leaf.isAttached()) {
+                return new PathLookup(leaf, existed);
+            }
+            start = this.root;
+            depth = 0;
         }
+    }
 
-        if (node.getChildren().size()==0) {
-            return false;
-        } else {
-            ArrayList<DirectoryNode> children = node.getChildren();
-            for (DirectoryNode child : children) {
-                if (child.getData().equals(pathName[0])) {
-                    // First portion of incoming path exists, continue traversal
-                    if (fileExists(child, Arrays.copyOfRange(pathName,1,pathName.length))) {
-                        return true;
-                    } else {
-                        return false;
-                    }
+    /** Adds the last node of a path to its parent, and returns it, unless the parent already has a child of that
+     * name, which is returned instead.
+     *
+     * A journaled node is logged in the same step, under the journal's monitor, which appending to the journal takes
+     * anyway. Deletes detach under it too, so a node that is still attached when it is logged is logged before the
+     * delete of it or of a directory above it, and one that is not is never logged: the caller retries. The walks to
+     * the parent and to the node deleted stay outside it, so changes to the tree are serialized only for as long as
+     * it takes to queue their records. */
+    private DirectoryNode publish(DirectoryNode parent, DirectoryNode created, String[] pathName,
+                                  StorageServerInfo storage) {
+        if (this.journal == null) {
+            DirectoryNode existing = parent.putChildIfAbsent(created);
+            return existing == null ? created : existing;
+        }
+        synchronized (this.journal) {
+            DirectoryNode existing = parent.putChildIfAbsent(created);
+            if (existing != null) {
+                return existing;
+            }
+            if (created.isAttached()) {
+                if (created.isFile) {
+                    this.journal.fileCreated(pathName, storage);
+                } else {
+                    this.journal.directoryCreated(pathName);
                 }
             }
-            return false;
+            return created;
         }
     }
 
-
-    /** Traverse directory to check if it exists */
-    public boolean dirExists(DirectoryNode node, String[] pathName) {
-        if (pathName[0].equals("/")) {
-            return true;
+    /** Detach the node the path refers to from the tree and return it, so that the delete function can clean up
+     * after it. Returns the root itself for the root path, without detaching anything. If two threads delete the
+     * same path, only one of them gets the node back. A journaled delete is logged as the node is detached; see
+     * publish. */
+    public DirectoryNode deleteFile(String[] pathName) {
+        DirectoryNode node = resolve(pathName, pathName.length);
+        if (node == null || node == this.root) {
+            return node;
         }
-        // Remember, only one unique path per level
-        if (pathName.length == 1) {
-            // Reached the leaf directory file
-
-            if (node.getChildren().size()==0) {
-                return false;
-            } else {
-                ArrayList<DirectoryNode> children = node.getChildren();
-                for (DirectoryNode child : children) {
-                    if (child.getData().equals(pathName[0]) && child.isDir) {
-                        // Directory exists
-                        if (child.isDir && !child.isFile) {
-                            this.fileStatus = child.isFile;
-                            this.directoryStatus = child.isDir;
-                            return true;
-                        }
-                    }
-                }
-                return false;
+        // Both an empty node and a directory can be deleted.
+        if (node.hasChildren() && !(node.isDir && !node.isFile)) {
+            return null;
+        }
+        if (this.journal == null) {
+            return detach(node) ? node : null;
+        }
+        synchronized (this.journal) {
+            if (!detach(node)) {
+                return null;
             }
+            this.journal.deleted(pathName);
+            return node;
         }
+    }
 
-        if (node.getChildren().size()==0) {
-            return false;
-        } else {
-            ArrayList<DirectoryNode> children = node.getChildren();
-            for (DirectoryNode child : children) {
-                if (child.getData().equals(pathName[0])) {
-                    // First portion of incoming path exists, continue traversal
-                    if (dirExists(child, Arrays.copyOfRange(pathName,1,pathName.length))) {
-                        return true;
-                    } else {
-                        return false;
-                    }
-                }
+    private static boolean detach(DirectoryNode node) {
+        // Mark first, so that a concurrent add below this node notices it and starts over.
+        node.markRemoved();
+        return node.getParent().removeChild(node);
+    }
+
+    /** Calls the action with the path and node of every file at or below the given node, which lives at the given
+     * path. The subtree is walked without recursion, so deep trees cannot overflow the stack. */
+    public static void forEachFile(DirectoryNode node, String path, BiConsumer<String, DirectoryNode> action) {
+        Deque<DirectoryNode> nodes = new ArrayDeque<DirectoryNode>();
+        Deque<String> paths = new ArrayDeque<String>();
+        nodes.push(node);
+        paths.push(path);
+        while (!nodes.isEmpty()) {
+            DirectoryNode current = nodes.pop();
+            String currentPath = paths.pop();
+            if (current.isFile) {
+                action.accept(currentPath, current);
+            }
+            String prefix = currentPath.endsWith("/") ? currentPath : currentPath + "/";
+            for (DirectoryNode child : current.getChildren()) {
+                nodes.push(child);
+                paths.push(prefix + child.getData());
             }
-            return false;
         }
     }
 
-    public ArrayList<String> getFiles(DirectoryNode node, String[] pathName) {
+    /** Check if a file exists at the path */
+    public boolean fileExists(String[] pathName) {
+        return lookup(pathName).isFile();
+    }
+
+    /** Check if a directory exists at the path */
+    public boolean dirExists(String[] pathName) {
+        return dirExists(pathName, pathName.length);
+    }
+
+    /** Check if a directory exists at the first depth components of the path, which is how parents are checked */
+    public boolean dirExists(String[] pathName, int depth) {
+        DirectoryNode node = resolve(pathName, depth);
+        return node != null && node.isDir;
+    }
+
+    /** List the names of the entries in a directory, in name order. The children of a node have no order of their
+     * own, so they are sorted, as writeTo does, for /list to give the same answer every time. */
+    public ArrayList<String> getFiles(String[] pathName) {
         ArrayList<String> tempFiles = new ArrayList<String>();
-        if (pathName[0].equals("/")) {
-            ArrayList<DirectoryNode> children = node.getChildren();
-            for (DirectoryNode child : children) {
-                String filename = (String) child.getData();
-                tempFiles.add(filename);
-            }
+        DirectoryNode node = resolve(pathName, pathName.length);
+        if (node == null) {
             return tempFiles;
         }
+        for (DirectoryNode child : node.getChildren()) {
+            tempFiles.add(child.getData());
+        }
+        Collections.sort(tempFiles);
+        return tempFiles;
+    }
 
-        // At the leaf directories
-        if (pathName.length == 1) {
-            ArrayList<DirectoryNode> children = node.getChildren();
-            for (DirectoryNode child : children) {
-                if (child.getData().equals(pathName[0])) {
-                    ArrayList<DirectoryNode> subchildren = child.getChildren();
-                    for (DirectoryNode subchilds : subchildren) {
-                            if (subchilds.isFile) {
-                            tempFiles.add((String) subchilds.getData());
-                            }
-                    }
-                    return tempFiles;
+    /**  Add a Lock. Exclusive determines whether it is shared or exclusive
+     * regServers help us to iterate through to find which server has what file.
+     *
+     * There is no tree-wide monitor: each node's lock is its own, and a request only ever waits on the nodes of its
+     * own path. Locks are always taken from the root down, which is what keeps two requests from waiting on each
+     * other in a cycle. The root itself is locked by lockRoot. Returns false, holding nothing below the root, if the
+     * path disappears during the walk. If taking a lock fails, nothing below the root is held either, and the failure
+     * is thrown. */
+    public boolean addLock(String[] pathName, boolean exclusive, List<StorageServerInfo> regServers, String filepath) throws InterruptedException, IOException
+    {
+        DirectoryNode[] held = new DirectoryNode[pathName.length];
+        int locked = 0;
+        boolean complete = false;
+        DirectoryNode node = this.root;
+        try {
+            for (int i = 0; i < pathName.length; i++) {
+                node = node.getChild(pathName[i]);
+                if (node == null) {
+                    // The path was deleted while we were waiting.
+                    return false;
+                }
+                if (i < pathName.length - 1) {
+                    // Every directory on the way is locked for shared access.
+                    acquire(node, false, regServers, filepath, null);
+                } else {
+                    // Path Exists till the last node and you need to lock depending on the flag.
+                    acquire(node, exclusive, regServers, filepath, exclusive ? null : node.getStorage());
+                }
+                held[locked++] = node;
+            }
+            complete = true;
+            return true;
+        } finally {
+            if (!complete) {
+                // Give back the directories locked so far, which are all held for shared access.
+                for (int j = 0; j < locked; j++) {
+                    releaseHeld(held[j]);
                 }
             }
         }
+    }
 
-        if (node.getChildren().size()==0) {
-            return tempFiles;
-        } else {
-            ArrayList<DirectoryNode> children = node.getChildren();
-            for (DirectoryNode child : children) {
-                if (child.getData().equals(pathName[0])) {
-                    return (getFiles(child, Arrays.copyOfRange(pathName,1,pathName.length)));
-                }
+    /**  Release a Lock. Exclusive determines whether it is shared or exclusive
+     *
+     * The root and every directory on the way are released from shared access along with the path itself, as lockRoot
+     * and addLock took them. The path itself goes first: returns false, releasing nothing, if it is not locked that
+     * way, because the client unlocked what it never locked or unlocked it twice. A request that held the path also
+     * holds every directory above it, so those are then released in turn, from the bottom up. */
+    public boolean releaseLock(String[] pathName, boolean exclusive) throws InterruptedException
+    {
+        if (pathName.length == 0) {
+            return release(this.root, false);
+        }
+        DirectoryNode[] path = new DirectoryNode[pathName.length];
+        DirectoryNode node = this.root;
+        for (int i = 0; i < pathName.length; i++) {
+            node = node.getChild(pathName[i]);
+            if (node == null) {
+                return false;
             }
+            path[i] = node;
+        }
+        if (!release(path[path.length - 1], exclusive)) {
+            return false;
         }
+        for (int i = path.length - 2; i >= 0; i--) {
+            releaseHeld(path[i]);
+        }
+        releaseHeld(this.root);
+        return true;
+    }
 
-        return tempFiles;
+    /** Locks the root, which every lock request does before locking anything below it. */
+    public void lockRoot(boolean exclusive, List<StorageServerInfo> regServers, String filepath) throws InterruptedException, IOException
+    {
+        acquire(this.root, exclusive, regServers, filepath, null);
     }
 
-    /**  Add a directory */
-    public void addDirectory(DirectoryNode node, String[] pathName) {
-        ArrayList<DirectoryNode> tempChild = new ArrayList<DirectoryNode>();
-        // Remember, only one unique path per level
-        if (pathName.length == 1) {
-            // Reached the leaf directory file
-            if (node.getChildren().size()==0) {
-                // Unique Directory.
-                ArrayList<DirectoryNode> children = node.getChildren();
-                DirectoryNode child = new DirectoryNode(pathName[0], node);
-                child.isFile = false;
-                child.isDir = true;
-                children.add(child);
-                node.modifyChildren(children);
-                this.isUnique = true;
+    /** Releases the root. Returns false, releasing nothing, if the root is not locked that way. */
+    public boolean unlockRoot(boolean exclusive) throws InterruptedException
+    {
+        return release(this.root, exclusive);
+    }
+
+    /** Locks a node, creating its lock if it has none. Primary is the server holding the file when a shared lock on
+     * it may cause a replication, and null otherwise. The lock stays pinned until the node is released. */
+    private void acquire(DirectoryNode node, boolean exclusive, List<StorageServerInfo> regServers,
+                         String filepath, StorageServerInfo primary) throws InterruptedException, IOException {
+        RWLocks lock = this.settle(node, 1);
+        boolean queued = false;
+        try {
+            if (exclusive) {
+                lock.getWriteLock(regServers, filepath, this.journal);
             } else {
-                ArrayList<DirectoryNode> children = node.getChildren();
-                for (DirectoryNode child : children) {
-                    if (child.getData().equals(pathName[0])) {
-                        // Exists till the last node
-                        this.isUnique = false;
-                        return;
-                    }
-                }
-                // A unique path has come, add it as new child to the current node
-                DirectoryNode child = new DirectoryNode(pathName[0], node);
-                child.isFile = false;
-                child.isDir = true;
-                tempChild.add(child);
-                this.isUnique = true;
+                lock.getReadLock(regServers, filepath, primary, this.journal);
             }
-            node.getChildren().addAll(tempChild);
-            return;
-        }
-
-        if (node.getChildren().size()==0) {
-            DirectoryNode child = new DirectoryNode(pathName[0], node);
-            child.isFile = false;
-            child.isDir = true;
-            tempChild.add(child);
-
-            addDirectory(tempChild.get(0), Arrays.copyOfRange(pathName,1,pathName.length));
-        } else {
-            ArrayList<DirectoryNode> children = node.getChildren();
-            for (DirectoryNode child : children) {
-                if (child.getData().equals(pathName[0])) {
-                    // First portion of incoming path exists, continue traversal
-                    addDirectory(child, Arrays.copyOfRange(pathName,1,pathName.length));
-                    return;
-                }
+            queued = true;
+        } finally {
+            if (!queued) {
+                // Interrupted while waiting: the request has left the queue, so nothing holds this pin.
+                this.settle(node, -1);
             }
-            // A unique path has come, add it as new child to the current node
-            DirectoryNode child = new DirectoryNode(pathName[0], node);
-            child.isFile = false;
-            child.isDir = true;
-            tempChild.add(child);
-            addDirectory(tempChild.get(0), Arrays.copyOfRange(pathName,1,pathName.length));
         }
-        node.getChildren().addAll(tempChild);
-        return;
     }
 
-    /**  Add a Lock. Exclusive determines whether it is shared or exclusive
-     * regServers help us to iterate through to find which server has what file. */
-    public synchronized boolean addLock(DirectoryNode node, String[] pathName, boolean exclusive, int n, ArrayList<StorageServerInfo> regServers, String filepath) throws InterruptedException, IOException
-    {
-        ArrayList<DirectoryNode> tempChild = new ArrayList<DirectoryNode>();
-        // Remember, only one unique path per level
-        if (pathName.length == 1) {
-            // Reached the leaf directory file
-            ArrayList<DirectoryNode> children = node.getChildren();
-            for (DirectoryNode child : children) {
-                if (child.getData().equals(pathName[0])) {
-                    // Path Exists till the last node and you need to lock depending on the flag.
-                    if (exclusive == true)
-                    {
-                        child.lock.getWriteLock(n, regServers, filepath);
-                    } else {
-                        child.lock.getReadLock(n, regServers, filepath, true);
-                    }
-                    return true;
+    /** Releases a node locked by acquire, and drops its lock if it is then idle. Returns false, releasing nothing, if
+     * the node is not locked that way. The check and the release are one step of the node's lock, so of two requests
+     * releasing its last hold, only one succeeds. A lock that is held is pinned, so it is never dropped under us. */
+    private boolean release(DirectoryNode node, boolean exclusive) {
+        RWLocks lock = this.locks.get(node);
+        if (lock == null || !(exclusive ? lock.tryReleaseWriteLock() : lock.tryReleaseReadLock())) {
+            return false;
+        }
+        this.settle(node, -1);
+        return true;
+    }
+
+    /** Releases a directory this request is known to hold for shared access.
+     *
+     * @throws IllegalStateException If the directory is not locked. */
+    private void releaseHeld(DirectoryNode node) {
+        if (!release(node, false)) {
+            throw new IllegalStateException("Released " + node.getData() + " while it is not locked.");
+        }
+    }
+
+    /** Changes the number of requests pinning the lock of a node, creating the lock if there is none. Once nothing
+     * pins it and it records no replicas, the lock is dropped, keeping only its count of reads on the node, and the
+     * result is null.
+     *
+     * @throws IllegalStateException If more pins are given back than were taken, in which case nothing changes. */
+    private RWLocks settle(DirectoryNode node, int pins) {
+        return this.locks.compute(node, (key, lock) -> {
+            if (lock == null) {
+                lock = new RWLocks();
+                lock.readNumber = key.reads;
+            }
+            if (lock.pins + pins < 0) {
+                throw new IllegalStateException("Lock of " + key.getData() + " unpinned more often than pinned.");
+            }
+            lock.pins += pins;
+            if (lock.pins == 0 && !lock.hasReplicas()) {
+                key.reads = (byte) Math.min(lock.readNumber, Byte.MAX_VALUE);
+                return null;
+            }
+            return lock;
+        });
+    }
+
+    /** Returns the lock of a node, or null if it has none, in which case nothing holds or waits for the node and it
+     * has no replicas. */
+    public RWLocks lockIfPresent(DirectoryNode node) {
+        return this.locks.get(node);
+    }
+
+    /** Drops the lock of a node that is being deleted once nothing holds it, whatever replicas it still records. The
+     * caller has already deleted the replicas. */
+    public void forgetLock(DirectoryNode node) {
+        this.locks.computeIfPresent(node, (key, lock) -> lock.pins == 0 ? null : lock);
+    }
+
+    /** Restores a replica of a file recorded by the journal or a snapshot. */
+    public void restoreReplicated(DirectoryNode node, String filepath, int port) {
+        this.settle(node, 1).restoreReplicated(filepath, port);
+        this.settle(node, -1);
+    }
+
+    /** Restores a stale replica of a file recorded by the journal or a snapshot. */
+    public void restoreInvalidated(DirectoryNode node, String filepath, int port) {
+        this.settle(node, 1).restoreInvalidated(filepath, port);
+        this.settle(node, -1);
+    }
+
+    /** Writes the tree in a compact binary form, read back by readFrom. Nodes are written in pre-order, each as a
+     * flags byte, its name, the index of the server holding it if it is a file, the replicas its lock records if
+     * there are any, and the number of its children if it is a directory. Children are written in order of name, and
+     * each name only as what it does not share with the name before it, so a directory of similarly named files costs
+     * little more than the parts of the names that differ. Numbers are written in as few bytes as they fit in.
+     *
+     * The tree may change while it is written. Each directory is then written as it was when its children were
+     * listed, which is what the journal's snapshots expect. */
+    public void writeTo(DataOutput out, Map<StorageServerInfo, Integer> servers) throws IOException {
+        Deque<DirectoryNode> nodes = new ArrayDeque<DirectoryNode>();
+        Deque<String> previous = new ArrayDeque<String>();
+        nodes.push(this.root);
+        previous.push("");
+        while (!nodes.isEmpty()) {
+            DirectoryNode node = nodes.pop();
+            String before = previous.pop();
+            boolean file = node.isFile;
+            Integer storage = file ? servers.get(node.getStorage()) : null;
+            RWLocks lock = this.locks.get(node);
+            Map<String, Set<Integer>> replicas = lock == null ? Collections.emptyMap() : lock.replicas();
+            Map<String, Set<Integer>> stale = lock == null ? Collections.emptyMap() : lock.staleReplicas();
+
+            int flags = (file ? FILE : 0) | (storage != null ? STORED : 0)
+                    | (replicas.isEmpty() && stale.isEmpty() ? 0 : REPLICATED);
+            out.writeByte(flags);
+            if (node != this.root) {
+                writeName(out, before, node.getData());
+            }
+            if (storage != null) {
+                writeNumber(out, storage);
+            }
+            if ((flags & REPLICATED) != 0) {
+                writeReplicas(out, replicas);
+                writeReplicas(out, stale);
+            }
+            if (!file) {
+                DirectoryNode[] children = node.getChildren().toArray(new DirectoryNode[0]);
+                Arrays.sort(children, Comparator.comparing(DirectoryNode::getData));
+                writeNumber(out, children.length);
+                for (int i = children.length - 1; i >= 0; i--) {
+                    nodes.push(children[i]);
+                    previous.push(i == 0 ? "" : children[i - 1].getData());
                 }
             }
-            return true;
         }
-        ArrayList<DirectoryNode> children = node.getChildren();
-        for (DirectoryNode child : children) {
-            if (child.getData().equals(pathName[0])) {
-                // First portion of incoming path exists, continue traversal
-                child.lock.getReadLock(n, regServers, filepath, false);
-                addLock(child, Arrays.copyOfRange(pathName,1,pathName.length), exclusive, n, regServers, filepath);
-                return true;
+    }
+
+    /** Reads a tree written by writeTo into this one, which must be empty. Servers are looked up by the indices the
+     * tree was written with. The walk keeps its own stack, so deep trees cannot overflow the thread's. */
+    public void readFrom(DataInput in, List<StorageServerInfo> servers) throws IOException {
+        // Each directory on the stack is paired with the number of its children still to be read, and the name of
+        // the last one read.
+        Deque<DirectoryNode> nodes = new ArrayDeque<DirectoryNode>();
+        Deque<Integer> remaining = new ArrayDeque<Integer>();
+        Deque<String> previous = new ArrayDeque<String>();
+        nodes.push(this.root);
+        remaining.push(this.readNode(in, in.readByte(), this.root, servers));
+        previous.push("");
+        while (!nodes.isEmpty()) {
+            int left = remaining.pop();
+            if (left == 0) {
+                nodes.pop();
+                previous.pop();
+                continue;
+            }
+            remaining.push(left - 1);
+
+            DirectoryNode parent = nodes.peek();
+            int flags = in.readByte();
+            String name = readName(in, previous.pop());
+            previous.push(name);
+            DirectoryNode node = new DirectoryNode(name, parent);
+            int children = this.readNode(in, flags, node, servers);
+            parent.putChildIfAbsent(node);
+            if (!node.isFile) {
+                nodes.push(node);
+                remaining.push(children);
+                previous.push("");
             }
         }
-        return true;
     }
 
-    /**  Release a Lock. Exclusive determines whether it is shared or exclusive */
-    public synchronized boolean releaseLock(DirectoryNode node, String[] pathName, boolean exclusive) throws InterruptedException
-    {
-        ArrayList<DirectoryNode> tempChild = new ArrayList<DirectoryNode>();
-        // Remember, only one unique path per level
-        if (pathName.length == 1) {
-            // Reached the leaf directory file
-            ArrayList<DirectoryNode> children = node.getChildren();
-            for (DirectoryNode child : children) {
-                if (child.getData().equals(pathName[0])) {
-                    // Exists till the last node and now releaseLock
-                    if (exclusive == true)
-                    {
-                        child.lock.releaseWriteLock();
-                    }
-                    else
-                    {
-                        child.lock.releaseReadLock();
+    /** Reads what follows the name of a node, and returns the number of its children. */
+    private int readNode(DataInput in, int flags, DirectoryNode node, List<StorageServerInfo> servers)
+            throws IOException {
+        boolean file = (flags & FILE) != 0;
+        node.isFile = file;
+        node.isDir = !file;
+        if ((flags & STORED) != 0) {
+            node.setStorage(servers.get(readNumber(in)));
+        }
+        if ((flags & REPLICATED) != 0) {
+            for (boolean stale : new boolean[] {false, true}) {
+                int entries = readNumber(in);
+                for (int i = 0; i < entries; i++) {
+                    String filepath = in.readUTF();
+                    int ports = readNumber(in);
+                    for (int j = 0; j < ports; j++) {
+                        if (stale) {
+                            restoreInvalidated(node, filepath, readNumber(in));
+                        } else {
+                            restoreReplicated(node, filepath, readNumber(in));
+                        }
                     }
-                    return true;
                 }
             }
-            return true;
         }
-        ArrayList<DirectoryNode> children = node.getChildren();
-        for (DirectoryNode child : children) {
-            if (child.getData().equals(pathName[0])) {
-                // First portion of incoming path exists, continue traversal
-                child.lock.releaseReadLock();
-                releaseLock(child, Arrays.copyOfRange(pathName,1,pathName.length), exclusive);
-                return true;
+        return file ? 0 : readNumber(in);
+    }
+
+    /** Writes a name as the length of the prefix it shares with the name before it, and the rest in UTF-8. */
+    private static void writeName(DataOutput out, String before, String name) throws IOException {
+        int shared = 0;
+        int limit = Math.min(before.length(), name.length());
+        while (shared < limit && before.charAt(shared) == name.charAt(shared)) {
+            shared++;
+        }
+        // Never split a character that takes two chars.
+        if (shared > 0 && shared < name.length() && Character.isLowSurrogate(name.charAt(shared))) {
+            shared--;
+        }
+        byte[] rest = name.substring(shared).getBytes(StandardCharsets.UTF_8);
+        writeNumber(out, shared);
+        writeNumber(out, rest.length);
+        out.write(rest);
+    }
+
+    private static String readName(DataInput in, String before) throws IOException {
+        int shared = readNumber(in);
+        byte[] rest = new byte[readNumber(in)];
+        in.readFully(rest);
+        return before.substring(0, shared) + new String(rest, StandardCharsets.UTF_8);
+    }
+
+    private static void writeReplicas(DataOutput out, Map<String, Set<Integer>> replicas) throws IOException {
+        writeNumber(out, replicas.size());
+        for (Map.Entry<String, Set<Integer>> entry : replicas.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeNumber(out, entry.getValue().size());
+            for (int port : entry.getValue()) {
+                writeNumber(out, port);
             }
         }
-        return true;
     }
 
-    public boolean isDirectoryStatus() {
-        return this.directoryStatus;
+    /** Writes a number that is not negative in seven bit groups, lowest first, each but the last with its top bit
+     * set. */
+    private static void writeNumber(DataOutput out, int number) throws IOException {
+        while ((number & ~0x7f) != 0) {
+            out.writeByte((number & 0x7f) | 0x80);
+            number >>>= 7;
+        }
+        out.writeByte(number);
     }
 
-    public boolean isFileStatus() {
-        return this.fileStatus;
+    private static int readNumber(DataInput in) throws IOException {
+        int number = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readByte();
+            number |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return number;
+            }
+        }
+        throw new IOException("malformed number in namespace");
     }
 
     public DirectoryNode getRoot() {
         return this.root;
     }
-
-    public boolean isUnique() {
-        return this.isUnique;
-    }
-}
\ No newline at end of file
+}
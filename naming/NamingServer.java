@@ -5,15 +5,20 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.*;
 import jsonhelper.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import common.SharedHttpClient;
 import storage.StorageServerInfo;
-import java.util.Random;
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import java.net.URI;
-import java.net.http.HttpClient;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpExchange;
 import java.net.http.HttpRequest;
@@ -57,12 +62,19 @@ public class NamingServer
     /** Gson object which can parse json to an object. */
     protected Gson gson;
 
-    /** Maintain a list of all registered servers*/
-    private ArrayList<StorageServerInfo> regServers;
-    private ArrayList<StorageServerInfo> currServers;
+    /** Maintain a list of all registered servers. Readers iterate over a snapshot, so only registration needs to
+     * synchronize on it. */
+    private List<StorageServerInfo> regServers;
 
     /** Directory of all files */
     private NamingDirectory directree;
+    /** Journal the directory and the registered servers are recovered from and recorded in, or null if they are
+     * kept in memory alone. */
+    private NamespaceJournal journal;
+    /** Servers whose files may already be in the tree, recorded against them, that are let in when they register
+     * again: those recovered from the journal, and those whose registration failed partway. Guarded by regServers. */
+    private final Set<StorageServerInfo> returning =
+            Collections.newSetFromMap(new IdentityHashMap<StorageServerInfo, Boolean>());
     /** Initial root node */
     private DirectoryNode rootdir;
 
@@ -84,13 +96,20 @@ public class NamingServer
         service_skeleton.setExecutor(Executors.newCachedThreadPool());
 
         this.gson = new Gson();
-        this.regServers = new ArrayList<StorageServerInfo>();
+        this.regServers = new CopyOnWriteArrayList<StorageServerInfo>();
 
         // Add root node to directory
         String[] initList = new String[] {"root"};
         this.directree = new NamingDirectory(initList);
         this.rootdir = directree.getRoot();
-        this.currServers = new ArrayList<StorageServerInfo>();
+
+        // Recover the namespace left by the last run before anything can change it.
+        this.journal = NamespaceJournal.fromProperties();
+        if (this.journal != null) {
+            this.journal.open(this.directree, this.regServers);
+            this.returning.addAll(this.regServers);
+            this.directree.setJournal(this.journal);
+        }
     }
 
     /** Sets the files the next storage server to connect is expected to
@@ -151,6 +170,13 @@ public class NamingServer
     {
         this.service_skeleton.stop(0);
         this.registration_skeleton.stop(0);
+        if (this.journal != null) {
+            try {
+                this.journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     private void startSkeletons() {
@@ -203,14 +229,11 @@ public class NamingServer
                     }
 
                     // Split file path to create a list of dirs
-                    Path filePath = new Path(filepath);
-                    String compressedPath = filePath.toString().replaceAll("/+","/");
-                    String[] filelist = compressedPath.substring(1).split("/");
+                    String[] filelist = NamingDirectory.parse(filepath);
 
                     if (filepath.equals("/")) {
                         // Root directory being sent
-                        filelist = new String[] {"/"};
-                        fileList = this.directree.getFiles(this.rootdir, filelist);
+                        fileList = this.directree.getFiles(filelist);
 
                         String files[] = new String[fileList.size()];
                         for (int i=0; i<fileList.size(); i++) {
@@ -221,8 +244,8 @@ public class NamingServer
                         filesReturn = new FilesReturn(files);
                         jsonString = gson.toJson(filesReturn);
                     } else {
-                        if (this.directree.dirExists(this.rootdir, filelist)) {
-                            fileList = this.directree.getFiles(this.rootdir, filelist);
+                        if (this.directree.dirExists(filelist)) {
+                            fileList = this.directree.getFiles(filelist);
 
                             String files[] = new String[fileList.size()];
                             for (int i=0; i<fileList.size(); i++) {
@@ -278,9 +301,7 @@ public class NamingServer
                         throw new IllegalArgumentException("Illegal Argument!");
                     }
 
-                    Path filePath = new Path(filepath);
-                    String compressedPath = filePath.toString().replaceAll("/+","/");
-                    String[] filelist = compressedPath.substring(1).split("/");
+                    String[] filelist = NamingDirectory.parse(filepath);
 
                     // Return root dir as true
                     if (filepath.equals("/")) {
@@ -291,20 +312,12 @@ public class NamingServer
                         return;
                     }
 
-                    if (this.directree.fileExists(this.rootdir, filelist) || this.directree.dirExists(this.rootdir, filelist)) {
+                    PathLookup lookup = this.directree.lookup(filelist);
+                    if (lookup.existed()) {
                         // Check if file or directory exists
-                        if (this.directree.isDirectoryStatus()) {
-                            boolean success = true;
-                            returnCode = 200;
-                            BooleanReturn booleanReturn = new BooleanReturn(success);
-                            jsonString = gson.toJson(booleanReturn);
-                        }
-                        if (this.directree.isFileStatus()) {
-                            boolean success = false;
-                            returnCode = 200;
-                            BooleanReturn booleanReturn = new BooleanReturn(success);
-                            jsonString = gson.toJson(booleanReturn);
-                        }
+                        returnCode = 200;
+                        BooleanReturn booleanReturn = new BooleanReturn(lookup.isDirectory());
+                        jsonString = gson.toJson(booleanReturn);
                     } else {
                         throw new FileNotFoundException("File Not Found!");
                     }
@@ -338,7 +351,6 @@ public class NamingServer
             String jsonString = "";
             int returnCode = 0;
             boolean success = false;
-            String[] parentList;
             if ("POST".equals(exchange.getRequestMethod())) {
                 PathRequest pathRequest = null;
                 try {
@@ -352,13 +364,7 @@ public class NamingServer
                         throw new IllegalArgumentException("Illegal Argument!");
                     }
 
-                    Path filePath = new Path(filepath);
-                    String[] filelist = filePath.toString().substring(1).split("/");
-                    if (filelist.length == 1) {
-                        parentList = new String[] {"/"};
-                    } else {
-                        parentList = Arrays.copyOfRange(filelist, 0, filelist.length - 1);
-                    }
+                    String[] filelist = NamingDirectory.parse(filepath);
 
                     if (filepath.equals("/")) {
                         success = false;
@@ -366,19 +372,10 @@ public class NamingServer
                         booleanReturn = new BooleanReturn(success);
                         jsonString = gson.toJson(booleanReturn);
                     } else {
-                        if (this.directree.dirExists(this.rootdir, parentList)) {
-                            // Parent directory exists
-                            if (this.directree.dirExists(this.rootdir, filelist)) {
-                                // Path provided is a directory
-                                success = false;
-                            } else if (this.directree.fileExists(this.rootdir, filelist)) {
-                                // Path provided is a file
-                                success = false;
-                            } else {
-                                // Add the directory
-                                success = true;
-                                this.directree.addDirectory(this.rootdir, filelist);
-                            }
+                        if (this.directree.dirExists(filelist, filelist.length - 1)) {
+                            // Parent directory exists. Adding fails if the path is already a file or a directory.
+                            success = !this.directree.addDirectory(filelist).existed();
+                            this.directree.sync();
                             returnCode = 200;
                             booleanReturn = new BooleanReturn(success);
                             jsonString = gson.toJson(booleanReturn);
@@ -400,6 +397,14 @@ public class NamingServer
                     ExceptionReturn exceptionReturn = new ExceptionReturn(exception_type, exception_info);
                     this.generateResponseAndClose(exchange, gson.toJson(exceptionReturn), returnCode);
                     return;
+                } catch (IOException e) {
+                    // The change is made, but could not be put on disk, so it is not acknowledged.
+                    returnCode = 500;
+                    String exception_type = "IOException";
+                    String exception_info = "Unable to record the change in the journal.";
+                    ExceptionReturn exceptionReturn = new ExceptionReturn(exception_type, exception_info);
+                    this.generateResponseAndClose(exchange, gson.toJson(exceptionReturn), returnCode);
+                    return;
                 }
             } else {
                 jsonString = "The REST method should be POST for <register>!\n";
@@ -423,21 +428,13 @@ public class NamingServer
                     pathRequest = gson.fromJson(isr, PathRequest.class);
                     String filepath = pathRequest.path;
                     BooleanReturn booleanReturn = null;
-                    String[] parentList;
 
                     // Check path validity
                     if (filepath.equals("") || filepath == null || filepath.equals("null")) {
                         throw new IllegalArgumentException("Illegal Argument!");
                     }
 
-                    Path filePath = new Path(filepath);
-                    String[] filelist = filePath.toString().substring(1).split("/");
-                    if (filelist.length == 1) {
-                        //parentList = Arrays.copyOfRange(filelist,0,filelist.length);
-                        parentList = new String[] {"/"};
-                    } else {
-                        parentList = Arrays.copyOfRange(filelist, 0, filelist.length - 1);
-                    }
+                    String[] filelist = NamingDirectory.parse(filepath);
 
                     if (filepath.equals("/")) {
                         success = false;
@@ -445,20 +442,15 @@ public class NamingServer
                         booleanReturn = new BooleanReturn(success);
                         jsonString = gson.toJson(booleanReturn);
                     } else {
-                        if (this.directree.dirExists(this.rootdir, parentList)) {
-                            // Parent directory exists
-                            if (this.directree.fileExists(this.rootdir, filelist)) {
-                                // Path provided is a file
-                                success = false;
-                            } else if (this.directree.dirExists(this.rootdir, filelist)) {
-                                success = false;
-                            } else {
-                                success = true;
-                                this.directree.addElement(this.rootdir, filelist);
-
+                        if (this.directree.dirExists(filelist, filelist.length - 1)) {
+                            // Parent directory exists. Adding fails if the path is already a file or a directory.
+                            StorageServerInfo storage = this.regServers.get(0);
+                            success = !this.directree.addElement(filelist, storage).existed();
+                            this.directree.sync();
+                            if (success) {
                                 // Send the created file to a server
                                 PathRequest request = new PathRequest(filepath);
-                                int commandPort = this.regServers.get(0).getCommand_port();
+                                int commandPort = storage.getCommand_port();
                                 try {
                                     HttpResponse<String> reponse = this.getResponse("/storage_create", commandPort, request);
                                 } catch (Exception e) {
@@ -486,6 +478,14 @@ public class NamingServer
                     ExceptionReturn exceptionReturn = new ExceptionReturn(exception_type, exception_info);
                     this.generateResponseAndClose(exchange, gson.toJson(exceptionReturn), returnCode);
                     return;
+                } catch (IOException e) {
+                    // The change is made, but could not be put on disk, so it is not acknowledged.
+                    returnCode = 500;
+                    String exception_type = "IOException";
+                    String exception_info = "Unable to record the change in the journal.";
+                    ExceptionReturn exceptionReturn = new ExceptionReturn(exception_type, exception_info);
+                    this.generateResponseAndClose(exchange, gson.toJson(exceptionReturn), returnCode);
+                    return;
                 }
             } else {
                 jsonString = "The REST method should be POST for <register>!\n";
@@ -513,23 +513,18 @@ public class NamingServer
                         throw new IllegalArgumentException("Illegal Argument!");
                     }
 
-                    Path filePath = new Path(filepath);
-                    String[] filelist = filePath.toString().substring(1).split("/");
+                    String[] filelist = NamingDirectory.parse(filepath);
 
                     // Check if files exist in directory and generate appropriate response
-                    if (this.directree.fileExists(this.rootdir, filelist)) {
+                    PathLookup lookup = this.directree.lookup(filelist);
+                    if (lookup.isFile()) {
                         returnCode = 200;
 
-                        // Loop through servers to check which server file exists in
-                        serverloop:
-                        for (StorageServerInfo s : this.regServers) {
-                            for (String filename : s.getFiles()) {
-                                if (filename.equals(filepath)) {
-                                    server_ip = s.getStorage_ip();
-                                    server_port = s.getClient_port();
-                                    break serverloop;
-                                }
-                            }
+                        // The file's node records which server it exists in
+                        StorageServerInfo storage = lookup.getNode().getStorage();
+                        if (storage != null) {
+                            server_ip = storage.getStorage_ip();
+                            server_port = storage.getClient_port();
                         }
 
                         if (server_ip.equals("") || server_port==0) {
@@ -626,8 +621,7 @@ public class NamingServer
 
                     // Split file path to create a list of dirs
                     Path filePath = new Path(filepath);
-                    String compressedPath = filePath.toString().replaceAll("/+","/");
-                    String[] filelist = compressedPath.substring(1).split("/");
+                    String[] filelist = NamingDirectory.parse(filepath);
                     HttpResponse<String> response = null;
 
                     if (filepath.equals("/")) {
@@ -636,69 +630,58 @@ public class NamingServer
                         returnCode = 200;
                         jsonString = gson.toJson(respText);
                     } else {
-                        if (this.directree.fileExists(this.rootdir, filelist) || this.directree.dirExists(this.rootdir, filelist)) {
-                            DirectoryNode dir = this.directree.deleteFile(this.rootdir, filelist);
+                        if (this.directree.lookup(filelist).existed()) {
+                            DirectoryNode dir = this.directree.deleteFile(filelist);
                             if (dir != null)
                             {
-
-                                // This set of code is to find place where the original copy exists.
-                                String server_ip = "";
-                                int server_port = 0;
-                                if (dir.isFile == true)
-                                {
-                                    for (StorageServerInfo s : regServers) {
-                                        for (String filename : s.getFiles()) {
-                                            // If the Path is a file, then we need equals.
-                                            if (filename.equals(filepath)) {
-                                                server_ip = s.getStorage_ip();
-                                                server_port = s.getCommand_port();
-                                                try {
-                                                    response = this.getResponse("/storage_delete", server_port, filePath);
-                                                } catch (Exception e) {
-                                                    e.printStackTrace();
-                                                }
-                                            }
-                                        }
+                                this.directree.sync();
+
+                                // This set of code is to find places where the original copies exist. For a file that
+                                // is the server recorded on its node; a directory is deleted from every server holding
+                                // one of the files below it. The replicas of each file, stale ones included, are deleted along the way.
+                                Set<StorageServerInfo> servers = new LinkedHashSet<StorageServerInfo>();
+                                List<CompletableFuture<Void>> invalidations = new ArrayList<CompletableFuture<Void>>();
+                                NamingDirectory.forEachFile(dir, filepath, (path, file) -> {
+                                    if (file.getStorage() != null) {
+                                        servers.add(file.getStorage());
                                     }
-                                } else {
-                                    for (StorageServerInfo s : regServers) {
-                                        for (String filename : s.getFiles()) {
-                                            // Since file is directory, we just need to match the directory part of the
-                                            // file and break the minute a first match is found.
-                                            if (filename.contains(filepath)) {
-                                                server_ip = s.getStorage_ip();
-                                                server_port = s.getCommand_port();
-                                                try {
-                                                    response = this.getResponse("/storage_delete", server_port, filePath);
-                                                } catch (Exception e) {
-                                                    e.printStackTrace();
-                                                }
-                                                break;
-                                            }
-                                        }
+                                    // A file without a lock has no replicas either.
+                                    RWLocks lock = this.directree.lockIfPresent(file);
+                                    if (lock != null) {
+                                        invalidations.add(lock.discard(path));
+                                        this.directree.forgetLock(file);
+                                    }
+                                });
+                                for (StorageServerInfo s : servers) {
+                                    try {
+                                        response = this.getResponse("/storage_delete", s.getCommand_port(), filePath);
+                                    } catch (Exception e) {
+                                        e.printStackTrace();
                                     }
                                 }
 
-                                // This code is to find places of replica and delete the replicas along with original.
+                                // The original's answer is the response, once the replicas have answered too.
                                 try {
-                                    if (!dir.lock.portmap.isEmpty()) {
-                                        Set<Integer> deletion_set = dir.lock.portmap.remove(filepath);
-                                        Map<String, Object> req = new HashMap<String, Object>();
-                                        req.put("path", filepath);
-                                        if (!deletion_set.isEmpty()) {
-                                            for (int i : deletion_set) {
-                                                response = this.getResponse("/storage_delete", deletion_set.stream().findFirst().get(), req);
-                                            }
-                                        }
-                                    }
+                                    RWLocks.awaitInvalidation(CompletableFuture.allOf(invalidations.toArray(new CompletableFuture<?>[0])));
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                                if (servers.isEmpty()) {
+                                    // No file below the path, so no server holds anything to delete.
+                                    returnCode = 200;
+                                    jsonString = gson.toJson(new BooleanReturn(true));
+                                } else if (response == null) {
+                                    // Every server holding a file below the path failed to delete it.
+                                    returnCode = 500;
+                                    String exception_type = "IOException";
+                                    String exception_info = "Unable to delete the path from its storage servers.";
+                                    jsonString = gson.toJson(new ExceptionReturn(exception_type, exception_info));
+                                } else {
                                     returnCode = 200;
                                     Map<String, Object> tempread = new HashMap<String,Object>();
                                     tempread = (Map<String, Object>) gson.fromJson(response.body(), tempread.getClass());
-                                    this.generateResponseAndClose(exchange, gson.toJson(tempread), returnCode);
-                                } catch (Exception e) {
-                                    e.printStackTrace();
+                                    jsonString = gson.toJson(tempread);
                                 }
-
                             } else {
                                 respText.put("success", "false");
                                 returnCode = 200;
@@ -722,6 +705,14 @@ public class NamingServer
                     ExceptionReturn exceptionReturn = new ExceptionReturn(exception_type, exception_info);
                     this.generateResponseAndClose(exchange, gson.toJson(exceptionReturn), returnCode);
                     return;
+                } catch (IOException e) {
+                    // The change is made, but could not be put on disk, so it is not acknowledged.
+                    returnCode = 500;
+                    String exception_type = "IOException";
+                    String exception_info = "Unable to record the change in the journal.";
+                    ExceptionReturn exceptionReturn = new ExceptionReturn(exception_type, exception_info);
+                    this.generateResponseAndClose(exchange, gson.toJson(exceptionReturn), returnCode);
+                    return;
                 }
             } else {
                 jsonString = "The REST method should be POST for <register>!\n";
@@ -745,7 +736,6 @@ public class NamingServer
             HashMap<String, Object> respText = new HashMap<String, Object>();
             String jsonString = "";
             int returnCode = 200;
-            Random rand = new Random();
             if ("POST".equals(exchange.getRequestMethod())) {
                 RegisterRequest registerRequest = null;
                 try {
@@ -756,7 +746,6 @@ public class NamingServer
                     map = (Map<String, Object>) gson.fromJson(isr, map.getClass());
                     String filepath = (String) map.get("path");
                     boolean exclusive = (boolean) map.get("exclusive");
-                    int n = rand.nextInt(40);
 
                     // Path is Null
                     if (filepath.equals("") || filepath == null || filepath.equals("null")) {
@@ -770,12 +759,7 @@ public class NamingServer
 
                     // Path is root
                     if (filepath.equals("/")) {
-                        if (exclusive) {
-                            this.rootdir.lock.getWriteLock(n, regServers, filepath);
-                        }
-                        else {
-                            this.rootdir.lock.getReadLock(n, regServers, filepath, true);
-                        }
+                        this.directree.lockRoot(exclusive, regServers, filepath);
                         returnCode = 200;
                         jsonString = "";
                         this.generateResponseAndClose(exchange, jsonString, returnCode);
@@ -783,9 +767,8 @@ public class NamingServer
                     }
 
                     // Path is not found
-                    Path filePath = new Path(filepath);
-                    String[] filelist = filePath.toString().substring(1).split("/");
-                    if (!this.directree.fileExists(this.rootdir, filelist) && !this.directree.dirExists(this.rootdir, filelist)) {
+                    String[] filelist = NamingDirectory.parse(filepath);
+                    if (!this.directree.lookup(filelist).existed()) {
                         returnCode = 404;
                         String exception_type = "FileNotFoundException";
                         String exception_info = "File/path cannot be found.";
@@ -795,14 +778,28 @@ public class NamingServer
                     }
 
                     // Else lock directory for Shared access and iterate through to lock appropriately
-                    this.rootdir.lock.getReadLock(n, regServers, (String) map.get("path"), false);
-                    boolean flag_lock = this.directree.addLock(this.rootdir, filelist, exclusive, n, regServers, (String) map.get("path"));
+                    this.directree.lockRoot(false, regServers, (String) map.get("path"));
+                    boolean flag_lock;
+                    try {
+                        flag_lock = this.directree.addLock(filelist, exclusive, regServers, (String) map.get("path"));
+                    } catch (Exception e) {
+                        // addLock has given back whatever it locked below the root, so the root goes too.
+                        this.directree.unlockRoot(false);
+                        throw e;
+                    }
                     if (flag_lock) {
                         jsonString = "";
                         returnCode = 200;
                         this.generateResponseAndClose(exchange, jsonString, returnCode);
                         return;
                     }
+
+                    // The path was deleted before all of it could be locked.
+                    this.directree.unlockRoot(false);
+                    returnCode = 404;
+                    ExceptionReturn exceptionReturn = new ExceptionReturn("FileNotFoundException", "File/path cannot be found.");
+                    this.generateResponseAndClose(exchange, gson.toJson(exceptionReturn), returnCode);
+                    return;
                 } catch (Exception e) {
                     jsonString = "Error during parse JSON object!\n";
                     returnCode = 400;
@@ -839,11 +836,13 @@ public class NamingServer
 
                     // If the filepath is root, then deal with locks directly.
                     if (filepath.equals("/")) {
-                        if (exclusive) {
-                            this.rootdir.lock.releaseWriteLock();
-                        }
-                        else {
-                            this.rootdir.lock.releaseReadLock();
+                        if (!this.directree.unlockRoot(exclusive)) {
+                            returnCode = 404;
+                            respText.put("exception_type", "IllegalArgumentException");
+                            respText.put("exception_info", "IllegalArgumentException: File/path is not locked.");
+                            jsonString = gson.toJson(respText);
+                            this.generateResponseAndClose(exchange, jsonString, returnCode);
+                            return;
                         }
                         returnCode = 200;
                         jsonString = "";
@@ -860,11 +859,10 @@ public class NamingServer
                         this.generateResponseAndClose(exchange, jsonString, returnCode);
                         return;
                     }
-                    Path filePath = new Path(filepath);
-                    String[] filelist = filePath.toString().substring(1).split("/");
+                    String[] filelist = NamingDirectory.parse(filepath);
 
                     // Both Path and File don't exist
-                    if (!this.directree.fileExists(this.rootdir, filelist)  && !this.directree.dirExists(this.rootdir, filelist)) {
+                    if (!this.directree.lookup(filelist).existed()) {
                         returnCode = 404;
                         respText.put("exception_type", "IllegalArgumentException");
                         respText.put("exception_info", "IllegalArgumentException: File/path invalid.");
@@ -873,15 +871,23 @@ public class NamingServer
                         return;
                     }
 
-                    // Else, you call the helper function to release the lock and return whether lock released or not.
-                    this.rootdir.lock.releaseReadLock();
-                    boolean flag_lock = this.directree.releaseLock(this.rootdir, filelist, exclusive);
+                    // Else, you call the helper function to release the lock, along with the root, and return whether
+                    // lock released or not.
+                    boolean flag_lock = this.directree.releaseLock(filelist, exclusive);
                     if (flag_lock) {
                         jsonString = "";
                         returnCode = 200;
                         this.generateResponseAndClose(exchange, jsonString, returnCode);
                         return;
                     }
+
+                    // Nothing was released: the path was never locked this way, or was unlocked already.
+                    returnCode = 404;
+                    respText.put("exception_type", "IllegalArgumentException");
+                    respText.put("exception_info", "IllegalArgumentException: File/path is not locked.");
+                    jsonString = gson.toJson(respText);
+                    this.generateResponseAndClose(exchange, jsonString, returnCode);
+                    return;
                 } catch (Exception e) {
                     jsonString = "Error during parse JSON object!\n";
                     returnCode = 400;
@@ -896,94 +902,186 @@ public class NamingServer
         }));
     }
 
-    /** Function for registration of NameServer */
+    /** Function for registration of NameServer.
+     *
+     * The request is read as it arrives, with a JsonReader, so the file list of a large server is never held whole:
+     * the server is admitted as soon as its address has been read, and each file is added to the tree as soon as it
+     * has been parsed, through a bulk loader that starts each walk where the last one left off. The address must
+     * therefore come before the files, as it does from the storage server; files sent first are kept until it comes.
+     *
+     * A storage server may mark its listing as positional, before the files. It thereby guarantees that the files of
+     * each directory arrive together, so the loader walks the listing and the tree side by side, each directory being
+     * found once, and that it can tell its files by their positions in the listing, so its duplicates are answered
+     * as ranges of positions rather than as paths. Nothing is assumed about the order of names within a directory. Either way they
+     * are streamed back once the whole list has been read.
+     *
+     * A request that turns out to be malformed after the server was admitted is refused, but the files already added
+     * stay, recorded against the server. The server may then register again, as one recovered from the journal
+     * does, and the files it sent before are not taken for duplicates. */
     private void register() {
         this.registration_skeleton.createContext("/register", (exchange -> {
-            String jsonString = "";
-            int returnCode = 200;
-            int command_port = 0;
-            int client_port = 0;
-            if ("POST".equals(exchange.getRequestMethod())) {
-                RegisterRequest registerRequest = null;
-                try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    registerRequest = gson.fromJson(isr, RegisterRequest.class);
-                } catch (Exception e) {
-                    jsonString = "Error during parse JSON object!\n";
-                    returnCode = 400;
-                    this.generateResponseAndClose(exchange, jsonString, returnCode);
-                    return;
-                }
-                try {
-                    String storage_ip = registerRequest.storage_ip;
-                    client_port = registerRequest.client_port;
-                    command_port = registerRequest.command_port;
-                    String[] files = registerRequest.files;
-
-                    /** Raise exception here if duplicate servers exist */
-                    if (this.regServers.size() == 0) {
-                        this.currServers.add(new StorageServerInfo(storage_ip, client_port, command_port, files));
-                    } else {
-                        for (int i=0; i < this.regServers.size(); i++) {
-                            if (this.regServers.get(i).verifySameServer(storage_ip, command_port)) {
-                                // Server already has been registered, throw exception
-                                returnCode = 409;
-                                throw new java.lang.IllegalStateException("Illegal State");
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                this.generateResponseAndClose(exchange, "The REST method should be POST for <register>!\n", 400);
+                return;
+            }
+
+            DuplicateSet repeated = null;
+            BulkLoader loader = null;
+            try {
+                JsonReader json = new JsonReader(new BufferedReader(
+                        new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)));
+                String storage_ip = null;
+                int client_port = 0;
+                int command_port = 0;
+                boolean positional = false;
+                long position = 0;
+                List<String> early = new ArrayList<String>();
+
+                json.beginObject();
+                while (json.hasNext()) {
+                    String name = json.nextName();
+                    if ("storage_ip".equals(name)) {
+                        storage_ip = json.nextString();
+                    } else if ("client_port".equals(name)) {
+                        client_port = json.nextInt();
+                    } else if ("command_port".equals(name)) {
+                        command_port = json.nextInt();
+                    } else if ("positional".equals(name)) {
+                        positional = json.nextBoolean();
+                    } else if ("files".equals(name) && json.peek() == JsonToken.BEGIN_ARRAY) {
+                        if (repeated == null) {
+                            repeated = new DuplicateSet(positional);
+                        }
+                        if (storage_ip != null && command_port != 0 && loader == null) {
+                            loader = this.admit(exchange, storage_ip, client_port, command_port);
+                            if (loader == null) {
+                                return;
+                            }
+                        }
+                        json.beginArray();
+                        while (json.hasNext()) {
+                            if (json.peek() == JsonToken.NULL) {
+                                json.skipValue();
+                            } else if (loader == null) {
+                                early.add(json.nextString());
+                                position++;
                             } else {
-                                this.currServers.add(new StorageServerInfo(storage_ip, client_port, command_port, files));
-                                break;
+                                this.load(loader, json.nextString(), position++, repeated);
                             }
                         }
+                        json.endArray();
+                    } else {
+                        json.skipValue();
                     }
-                    this.regServers = this.currServers;
-                } catch (Exception e) {
-                    returnCode = 409;
-                    String exception_type = "IllegalStateException";
-                    String exception_info = "This storage client already registered.";
-                    ExceptionReturn exceptionReturn = new ExceptionReturn(exception_type, exception_info);
-                    this.generateResponseAndClose(exchange, gson.toJson(exceptionReturn), returnCode);
-                    return;
                 }
+                json.endObject();
 
-                /** Loop over list of files obtained from server */
-                List<String> repeated_list = new ArrayList<String>();
-                for (String filename : registerRequest.files) {
-                    Path filePath = new Path(filename);
-                    String[] filelist = filePath.toString().substring(1).split("/");
-
-                    // Add new files to tree directory
-                    this.directree.addElement(this.rootdir, filelist);
-                    if (!this.directree.isUnique()) {
-                        repeated_list.add(filename);
+                if (loader == null) {
+                    loader = this.admit(exchange, storage_ip, client_port, command_port);
+                    if (loader == null) {
+                        return;
                     }
                 }
+                if (repeated == null) {
+                    repeated = new DuplicateSet(positional);
+                }
+                for (int i = 0; i < early.size(); i++) {
+                    this.load(loader, early.get(i), i, repeated);
+                }
+            } catch (Exception e) {
+                if (loader != null) {
+                    synchronized (this.regServers) {
+                        this.returning.add(loader.getStorage());
+                    }
+                }
+                this.generateResponseAndClose(exchange, "Error during parse JSON object!\n", 400);
+                return;
+            }
 
-                String[] replLists = new String[repeated_list.size()];
-                replLists = repeated_list.toArray(replLists);
+            try {
+                this.directree.sync();
+            } catch (IOException e) {
+                // The files are in the tree, but not on disk. The server may register again, as one that failed
+                // partway through registering.
+                synchronized (this.regServers) {
+                    this.returning.add(loader.getStorage());
+                }
+                ExceptionReturn exceptionReturn = new ExceptionReturn("IOException",
+                        "Unable to record the registration in the journal.");
+                this.generateResponseAndClose(exchange, gson.toJson(exceptionReturn), 500);
+                return;
+            }
 
-                FilesReturn filesReturn = new FilesReturn(replLists);
-                jsonString = gson.toJson(filesReturn);
-                returnCode = 200;
-            } else {
-                jsonString = "The REST method should be POST for <register>!\n";
-                returnCode = 400;
+            // Sent in chunks as it is written.
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0);
+            try (JsonWriter json = new JsonWriter(new BufferedWriter(
+                    new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)))) {
+                repeated.writeTo(json);
             }
-            this.generateResponseAndClose(exchange, jsonString, returnCode);
+            exchange.close();
         }));
     }
 
-    /** Function to generate reponse */
+    /** Admits a registering storage server, and returns the loader its files are added with. If the server is
+     * already registered, answers the request with a 409 and returns null. */
+    private BulkLoader admit(HttpExchange exchange, String storage_ip, int client_port, int command_port)
+            throws IOException {
+        StorageServerInfo server = null;
+        /** Raise exception here if duplicate servers exist */
+        synchronized (this.regServers) {
+            for (StorageServerInfo s : this.regServers) {
+                if (s.verifySameServer(storage_ip, command_port)) {
+                    if (this.returning.remove(s)) {
+                        // Registered before the naming server was restarted, or failed partway through registering.
+                        // Its files are already in the tree, recorded against it.
+                        server = s;
+                        break;
+                    }
+                    // Server already has been registered
+                    String exception_type = "IllegalStateException";
+                    String exception_info = "This storage client already registered.";
+                    ExceptionReturn exceptionReturn = new ExceptionReturn(exception_type, exception_info);
+                    this.generateResponseAndClose(exchange, gson.toJson(exceptionReturn), 409);
+                    return null;
+                }
+            }
+            if (server == null) {
+                server = new StorageServerInfo(storage_ip, client_port, command_port);
+                this.addServer(server);
+            }
+        }
+        return this.directree.bulkLoader(server);
+    }
+
+    /** Adds a file of a registering server to the tree. Files that were already there are duplicates, unless they
+     * were recorded as this server's own, by the journal or by an earlier attempt to register. */
+    private void load(BulkLoader loader, String filename, long position, DuplicateSet repeated) {
+        PathLookup lookup = loader.add(NamingDirectory.parse(filename));
+        if (lookup.existed() && lookup.getNode().getStorage() != loader.getStorage()) {
+            repeated.add(position, lookup.getNode());
+        }
+    }
+
+    /** Adds a newly registered server to the list. A journaled server is added under the journal's monitor, so that
+     * it is recorded before any file stored on it can be. The caller synchronizes on regServers. */
+    private void addServer(StorageServerInfo server) {
+        if (this.journal == null) {
+            this.regServers.add(server);
+            return;
+        }
+        synchronized (this.journal) {
+            this.regServers.add(server);
+            this.journal.registered(server);
+        }
+    }
+
+    /** Function to generate reponse. Goes through the shared client, so calls reuse pooled connections. Creating
+     * and deleting a file leave the same result when applied twice, so a call that fails is sent once more. */
     private HttpResponse<String> getResponse(String method,
                                                int port,
                                                Object requestObj) throws IOException, InterruptedException {
-
-        HttpResponse<String> response;
-        HttpRequest request = HttpRequest.newBuilder().uri(URI.create("http://localhost:" + port + method))
-                .setHeader("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(requestObj)))
-                .build();
-        response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
-        return response;
+        return SharedHttpClient.get().postJson("localhost", port, method, gson.toJson(requestObj), true);
     }
 
     /**
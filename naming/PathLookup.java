@@ -0,0 +1,48 @@
+package naming;
+
+/** Immutable result of looking up, or adding, a path in the NamingDirectory.
+ * Each call gets its own result, so concurrent requests never see each other's answers. */
+public final class PathLookup {
+
+    /** What the path refers to. */
+    public enum Kind { NONE, FILE, DIRECTORY }
+
+    // Node the path refers to, null if nothing was found.
+    private final DirectoryNode node;
+    private final Kind kind;
+
+    // Whether the node was already in the tree before the call. For an add, false means the call created it.
+    private final boolean existed;
+
+    public PathLookup(DirectoryNode node, boolean existed) {
+        this.node = node;
+        this.existed = existed;
+        if (node == null) {
+            this.kind = Kind.NONE;
+        } else if (node.isDir) {
+            this.kind = Kind.DIRECTORY;
+        } else {
+            this.kind = Kind.FILE;
+        }
+    }
+
+    public DirectoryNode getNode() {
+        return this.node;
+    }
+
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    public boolean existed() {
+        return this.existed;
+    }
+
+    public boolean isFile() {
+        return this.kind == Kind.FILE;
+    }
+
+    public boolean isDirectory() {
+        return this.kind == Kind.DIRECTORY;
+    }
+}
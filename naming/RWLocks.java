@@ -1,47 +1,84 @@
 package naming;
 import java.util.*;
 import java.util.Random;
+import common.SharedHttpClient;
+import jsonhelper.BooleanReturn;
 import storage.StorageServerInfo;
 import java.util.Random;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import com.google.gson.Gson;
 import java.net.URI;
-import java.net.http.HttpClient;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpExchange;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class RWLocks {
     public int readLocks = 0;
     public int writeLocks = 0;
 
     // We need to ensure fairness amongst the requests which is why every request which comes in is queued for
-    // getting access to the lock. The input to the queue is the random number generated for each request.
-    public Queue<Integer> queue;
+    // getting access to the lock. Requests are granted in queue order by whoever makes the lock available: a release
+    // hands the lock to the next writer, or to every reader at the head of the queue, and wakes only those. A request
+    // that arrives to an empty queue and a compatible lock takes it without waiting.
+    private final ReentrantLock monitor = new ReentrantLock();
+    private final Queue<Waiter> queue;
     public int readNumber = 0;
 
-    // Random number generator to generate a random number used as an ID
-    Random rand = new Random();
-    protected Gson gson;
+    // Requests holding or waiting for this lock, and requests about to do either. Guarded by the lock table of the
+    // NamingDirectory, which drops the lock once nothing pins it and it records no replicas.
+    int pins;
+
+    // Every node that has been locked has one of these, so nothing that can be shared is kept per lock: replicas
+    // are picked with the calling thread's random number generator, and one Gson serves every lock.
+    private static final Gson gson = new Gson();
 
     // Hashmap of the path along with the replicated server's command port.
     // This is especially helpful in replication (invalidation) and deletion as it helps us invalidate and
     // delete data from all the replicated servers alone while keeping the real copy as it is in the Storage Server.
-    Map<String, Set<Integer>> portmap = new HashMap<String, Set<Integer>>();
+    // Guarded by the monitor, since replications finish on background threads.
+    private final Map<String, Set<Integer>> portmap = new HashMap<String, Set<Integer>>();
+
+    // Command ports of the servers holding a stale replica of each path: one that was invalidated by a write, and is
+    // kept by its server so that the next replication to it only has to copy what changed. Guarded by the monitor.
+    private final Map<String, Set<Integer>> stale = new HashMap<String, Set<Integer>>();
+
+    // Replications of each path that have been started but have not yet finished. Each completes with the command
+    // port of the server the file was copied to.
+    private final Map<String, List<CompletableFuture<Integer>>> replicating =
+            new HashMap<String, List<CompletableFuture<Integer>>>();
+
+    // Longest time a writer waits for the replicas to confirm that they are deleted before it goes ahead anyway.
+    private static final long INVALIDATION_TIMEOUT_MS = 2000;
+
+    // Replication and invalidation requests to the storage servers are sent from here, so that no lock is held
+    // while waiting on the network.
+    private static final ExecutorService background = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "replication");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public RWLocks()
     {
         this.readLocks = 0;
         this.writeLocks = 0;
-        this.queue = new LinkedList<>();
-        this.gson = new Gson();
+        this.queue = new ArrayDeque<Waiter>();
     }
 
-    /** Function to add to the portmap */
-    public void add(String x,int y) {
+    /** Function to add to the portmap. The caller holds the monitor. */
+    private void add(String x,int y) {
         Set<Integer> set = portmap.get(x);
         if (set == null) {
             portmap.put(x, set = new HashSet<Integer>());
@@ -49,127 +86,448 @@ public class RWLocks {
         set.add(y);
     }
 
-    /** Function gets a readLock(Shared Lock) for the resource */
-    public synchronized void getReadLock(int uniqueID, ArrayList<StorageServerInfo> regServers, String filepath, boolean file) throws InterruptedException,IOException {
+    /** Forgets that a server holds a stale replica of the path. The caller holds the monitor. */
+    private void forgetStale(String filepath, int port) {
+        Set<Integer> ports = this.stale.get(filepath);
+        if (ports != null && ports.remove(port) && ports.isEmpty()) {
+            this.stale.remove(filepath);
+        }
+    }
+
+    /** A queued request. */
+    private static final class Waiter {
+        final boolean exclusive;
+        final Condition turn;
+        // Set, under the monitor, by the thread that handed the lock to this request.
+        boolean granted;
+
+        Waiter(boolean exclusive, Condition turn) {
+            this.exclusive = exclusive;
+            this.turn = turn;
+        }
+    }
+
+    /** Function gets a readLock(Shared Lock) for the resource. Primary is the storage server holding the original of
+     * the file, or null if the request is not for a file and should never cause a replication. */
+    public void getReadLock(List<StorageServerInfo> regServers, String filepath, StorageServerInfo primary) throws InterruptedException,IOException {
+        this.getReadLock(regServers, filepath, primary, null);
+    }
+
+    /** Same as above, recording the replicas the request causes in the journal, if there is one. */
+    public void getReadLock(List<StorageServerInfo> regServers, String filepath, StorageServerInfo primary,
+                            NamespaceJournal journal) throws InterruptedException,IOException {
+        this.monitor.lock();
+        try {
+            this.acquireRead(regServers, filepath, primary, journal);
+        } finally {
+            this.monitor.unlock();
+        }
+    }
+
+    private void acquireRead(List<StorageServerInfo> regServers, String filepath, StorageServerInfo primary,
+                             NamespaceJournal journal) throws InterruptedException,IOException {
 
         // This variable helps track the number of times the request has come for this file node.
         this.readNumber += 1;
 
+        // Shared access is free to take only if nobody holds it exclusively and nobody is queued ahead of us.
+        // Otherwise, the request is added into the queue, in which it will remain until a release grants it.
+        if (writeLocks == 0 && this.queue.isEmpty()) {
+            readLocks += 1;
+        } else {
+            this.await(this.enqueue(false));
+        }
+
         // This portion of code is responsible for the replication of file when the number of read requests for that
-        // file increases to more than 20. All of this happens before the file is locked for shared access.
-        if (this.readNumber > 20 && file == true)
+        // file increases to more than 20. It runs once the file is locked for shared access, so that no writer is
+        // changing the file, and only picks the servers: the copy itself is made in the background.
+        if (this.readNumber > 20 && primary != null && regServers.size() > 1)
         {
-            int n = rand.nextInt(regServers.size());
-
-            // We need to find the actual storage server which the file is present in. For this,
-            // I iterate through all the registered servers to find the first server with the occurrence of the file.
-            String server_ip = "";
-            int server_port = 0;
-            serverloop:
-            for (StorageServerInfo s : regServers) {
-                for (String filename : s.getFiles()) {
-                    if (filename.equals(filepath)) {
-                        server_ip = s.getStorage_ip();
-                        server_port = s.getClient_port();
-                        break serverloop;
+            this.replicate(regServers, filepath, primary, journal);
+        }
+    }
+
+    private void replicate(List<StorageServerInfo> regServers, String filepath, StorageServerInfo primary,
+                           NamespaceJournal journal) {
+        int n = ThreadLocalRandom.current().nextInt(regServers.size());
+
+        // The file is copied from the actual storage server which the file is present in.
+        String server_ip = primary.getStorage_ip();
+        int server_port = primary.getClient_port();
+
+        // Now apart from this server, we need to choose at random, a server whose client port does not equal
+        // the file server's client port. This is the Server to replicate the file to. A server that still has a
+        // stale replica is preferred, since it only needs what changed since.
+        while(regServers.get(n).getClient_port() == server_port)
+        {
+            n = ThreadLocalRandom.current().nextInt(regServers.size());
+        }
+        Set<Integer> stale_ports = this.stale.get(filepath);
+        if (stale_ports != null) {
+            for (int i = 0; i < regServers.size(); i++) {
+                if (regServers.get(i).getClient_port() != server_port
+                        && stale_ports.contains(regServers.get(i).getCommand_port())) {
+                    n = i;
+                    break;
+                }
+            }
+        }
+
+        // Create my object for calling Storage Copy and sending the request to the randomly selected file server
+        // to go ahead and replicate the file onto itself from the server who's details are given in the
+        // body of the HTTP Request.
+        Map<String, Object> req = new HashMap<String, Object>();
+        req.put("path", filepath);
+        req.put("server_ip",server_ip);
+        req.put("server_port",server_port);
+        int command_port = regServers.get(n).getCommand_port();
+        CompletableFuture<Integer> copy = CompletableFuture.supplyAsync(() -> {
+            HttpResponse<String> response = this.send("/storage_copy", command_port, req);
+            if (response == null || response.statusCode() != 200) {
+                throw new IllegalStateException("Replication of " + filepath + " failed.");
+            }
+            return command_port;
+        }, background);
+        this.replicating.computeIfAbsent(filepath, path -> new ArrayList<CompletableFuture<Integer>>()).add(copy);
+
+        // Once the copy is made, the random servers port is added to the Set corresponding to the filepath. This
+        // keeps track of where all the files have been replicated. A replication that was invalidated while it was
+        // running is no longer listed, and is deleted by the invalidation instead.
+        copy.whenComplete((port, error) -> {
+            this.monitor.lock();
+            try {
+                List<CompletableFuture<Integer>> copies = this.replicating.get(filepath);
+                if (copies != null && copies.remove(copy)) {
+                    if (copies.isEmpty()) {
+                        this.replicating.remove(filepath);
+                    }
+                    if (error == null) {
+                        this.add(filepath, port);
+                        this.forgetStale(filepath, port);
+                        if (journal != null) {
+                            journal.replicated(filepath, port);
+                        }
                     }
                 }
+            } finally {
+                this.monitor.unlock();
             }
+        });
+
+        // Resetting the readnumber to 0 so that duplicate replications don't keep happening.
+        this.readNumber = 0;
+    }
+
+    /** Releasing the ReadLock (Shared Access Lock) */
+    public void releaseReadLock() throws InterruptedException {
+        if (!this.tryReleaseReadLock()) {
+            throw new IllegalStateException("Shared lock released while not held.");
+        }
+    }
 
-            // Now apart from this server, we need to choose at random, a server whose client port does not equal
-            // the file server's client port. This is the Server to replicate the file to.
-            while(regServers.get(n).getClient_port() == server_port)
-            {
-                n = rand.nextInt(regServers.size());
+    /** Releases the lock from shared access, if it is held that way, and returns false otherwise. The check and the
+     * release are one step, so of two requests releasing the last shared hold, only one succeeds. */
+    public boolean tryReleaseReadLock() {
+        this.monitor.lock();
+        try {
+            if (readLocks == 0) {
+                return false;
             }
+            readLocks -= 1;
 
-            // Create my object for calling Storage Copy and sending the request to the randomly selected file server
-            // to go ahead and replicate the file onto itself from the server who's details are given in the
-            // body of the HTTP Request.
-            Map<String, Object> req = new HashMap<String, Object>();
-            req.put("path", filepath);
-            req.put("server_ip",server_ip);
-            req.put("server_port",server_port);
-            HttpResponse<String> response = this.getResponse("/storage_copy", "localhost", regServers.get(n).getCommand_port(), req);
+            // Readers at the head never wait on other readers, so only the last reader out can unblock anyone.
+            if (readLocks == 0) {
+                this.grant();
+            }
+            return true;
+        } finally {
+            this.monitor.unlock();
+        }
+    }
 
-            // Adding the random servers port to the Set corresponding to the filepath. This keeps track of where all
-            // the files have been replicated. Resetting the readnumber to 0 so that duplicate replications don't keep
-            // happening.
-            this.add(filepath, regServers.get(n).getCommand_port());
-            this.readNumber = 0;
+    public void getWriteLock(List<StorageServerInfo> regServers, String filepath) throws InterruptedException, IOException {
+        this.getWriteLock(regServers, filepath, null);
+    }
+
+    /** Same as above, recording the replicas the request invalidates in the journal, if there is one. */
+    public void getWriteLock(List<StorageServerInfo> regServers, String filepath,
+                             NamespaceJournal journal) throws InterruptedException, IOException {
+        CompletableFuture<Void> invalidation;
+        this.monitor.lock();
+        try {
+            invalidation = this.acquireWrite(regServers, filepath, journal);
+        } finally {
+            this.monitor.unlock();
         }
 
-        // Here, the request is added into the queue, in which it will remain until there are no more writeLocks and
-        // the head of the queue is the request ID of itself.
-        this.queue.add(uniqueID);
-        while (writeLocks > 0 || !(this.queue.peek() == uniqueID)) {
-            wait();
+        // The lock is ours, but the replicas must be gone before the file is changed. If a replica does not answer
+        // in time the writer goes ahead anyway; the deletion is still sent.
+        try {
+            awaitInvalidation(invalidation);
+        } catch (InterruptedException e) {
+            // The lock is held and has to be released by the caller, so keep it and leave the interrupt set.
+            Thread.currentThread().interrupt();
         }
+    }
 
-        // Locking for shared access and removing the request ID from the queue to signify that the lock for the
-        // file node has been given to that particular request from the client.
-        readLocks += 1;
-        this.queue.remove();
+    /** Waits, for at most the invalidation deadline, until every replica has answered its deletion. Returns false if
+     * they did not all answer in time. */
+    static boolean awaitInvalidation(CompletableFuture<Void> invalidation) throws InterruptedException {
+        try {
+            invalidation.get(INVALIDATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException | ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        }
     }
 
-    /** Releasing the ReadLock (Shared Access Lock) */
-    public synchronized void releaseReadLock() throws InterruptedException {
-        readLocks -= 1;
+    private CompletableFuture<Void> acquireWrite(List<StorageServerInfo> regServers, String filepath,
+                                                 NamespaceJournal journal) throws InterruptedException, IOException {
+        // We need to first invalidate all the replicas. The deletions are started here and run while we wait for the
+        // lock. The presence of the actual file server not being included in this portmap ensures that there will
+        // always be one copy of the file on the distributed system.
+        CompletableFuture<Void> invalidation = this.invalidate(filepath, journal);
 
-        // Once the lock is released, we must notify the thread which has been blocked due to the lock been present.
-        notifyAll();
+        // The lock is ours straight away if it is entirely free and nobody is queued. Otherwise, we need to put in
+        // the request in the queue until a release grants it.
+        if (readLocks == 0 && writeLocks == 0 && this.queue.isEmpty()) {
+            writeLocks += 1;
+        } else {
+            this.await(this.enqueue(true));
+        }
+        return invalidation;
+    }
+
+    /** Invalidates every replica of the file before it is written, including replications that are still running.
+     * Each replica's server keeps it as a stale copy, which is no longer served but lets the next replication to that
+     * server fetch only what the write changed. The returned future completes when every server has answered. */
+    public CompletableFuture<Void> invalidate(String filepath, NamespaceJournal journal) {
+        return this.dropReplicas(filepath, "/storage_invalidate", journal);
     }
 
-    public synchronized void getWriteLock(int uniqueID, ArrayList<StorageServerInfo> regServers, String filepath) throws InterruptedException, IOException {
-        // We need to first invalidate all the replicas. The portmap hashmap comes into play here. Since through this,
-        // we know all the replicated Servers, we simply call storage_delete on those ports. The presence of the actual
-        // file server not being included in this portmap ensures that there will always be one copy of the file on
-        // the distributed system.
-        String server_ip = "";
-        int server_port = 0;
-        StorageServerInfo s;
+    /** Forgets every replica of the file, stale or not, including replications that are still running, and deletes
+     * them from their servers, when the file itself is deleted. The returned future completes when every server has
+     * answered. */
+    public CompletableFuture<Void> discard(String filepath) {
+        this.monitor.lock();
         try {
-            Set<Integer> deletion_set = portmap.get(filepath);
             Map<String, Object> req = new HashMap<String, Object>();
             req.put("path", filepath);
-            while (!deletion_set.isEmpty()) {
-                HttpResponse<String> response = this.getResponse("/storage_delete", "localhost", deletion_set.stream().findFirst().get(), req);
-                Iterator<Integer> it = deletion_set.iterator();
-                it.remove();
+            List<CompletableFuture<?>> deletions = new ArrayList<CompletableFuture<?>>();
+            Set<Integer> stale_ports = this.stale.remove(filepath);
+            if (stale_ports != null) {
+                for (int port : stale_ports) {
+                    deletions.add(CompletableFuture.runAsync(() -> this.send("/storage_delete", port, req), background));
+                }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            deletions.add(this.dropReplicas(filepath, "/storage_delete", null));
+            return CompletableFuture.allOf(deletions.toArray(new CompletableFuture<?>[0]));
+        } finally {
+            this.monitor.unlock();
         }
+    }
 
-        // Once all the invalidation is taken care of, we need to put in the request in the queue, in which it will
-        // remain until there are no more writeLocks and the head of the queue is the request ID of itself.
-        this.queue.add(uniqueID);
-        while (readLocks > 0 || writeLocks > 0 || !(this.queue.peek() == uniqueID)) {
-            wait();
+    /** Forgets every replica of the file and sends the method to each replica's server in the background. Replicas
+     * that the method leaves stale are remembered as such, and recorded in the journal if there is one. */
+    private CompletableFuture<Void> dropReplicas(String filepath, String method, NamespaceJournal journal) {
+        this.monitor.lock();
+        try {
+            Map<String, Object> req = new HashMap<String, Object>();
+            req.put("path", filepath);
+            List<CompletableFuture<?>> deletions = new ArrayList<CompletableFuture<?>>();
+
+            // The portmap hashmap comes into play here. Since through this, we know all the replicated Servers, we
+            // simply call the method on those ports.
+            Set<Integer> deletion_set = this.portmap.remove(filepath);
+            if (deletion_set != null) {
+                for (int port : deletion_set) {
+                    deletions.add(CompletableFuture.runAsync(() -> this.drop(filepath, method, port, req, journal), background));
+                }
+            }
+
+            // Replicas that are still being made are dropped as soon as they are finished.
+            List<CompletableFuture<Integer>> copies = this.replicating.remove(filepath);
+            if (copies != null) {
+                for (CompletableFuture<Integer> copy : copies) {
+                    deletions.add(copy.thenAcceptAsync(port -> this.drop(filepath, method, port, req, journal), background));
+                }
+            }
+            return CompletableFuture.allOf(deletions.toArray(new CompletableFuture<?>[0]));
+        } finally {
+            this.monitor.unlock();
         }
+    }
 
-        // Locking for Exclusive access and removing from the queue.
-        writeLocks += 1;
-        this.queue.remove();
+    /** Sends the method that drops a replica to its server, and records the replica as stale if the server kept it. A
+     * server that cannot keep stale replicas has its replica deleted instead. */
+    private void drop(String filepath, String method, int port, Map<String, Object> req, NamespaceJournal journal) {
+        HttpResponse<String> response = this.send(method, port, req);
+        if (!method.equals("/storage_invalidate")) {
+            return;
+        }
+        if (response == null || response.statusCode() != 200) {
+            this.send("/storage_delete", port, req);
+        } else if (gson.fromJson(response.body(), BooleanReturn.class).success) {
+            this.monitor.lock();
+            try {
+                this.stale.computeIfAbsent(filepath, path -> new HashSet<Integer>()).add(port);
+                if (journal != null) {
+                    journal.invalidated(filepath, port);
+                }
+            } finally {
+                this.monitor.unlock();
+            }
+        }
     }
 
-    public synchronized void releaseWriteLock() throws InterruptedException {
-        writeLocks -= 1;
+    /** Whether the lock records any replica, stale or not, or any replication still running. */
+    public boolean hasReplicas() {
+        this.monitor.lock();
+        try {
+            return !this.portmap.isEmpty() || !this.stale.isEmpty() || !this.replicating.isEmpty();
+        } finally {
+            this.monitor.unlock();
+        }
+    }
+
+    /** Copy of the servers holding a replica of each path, by command port, for a snapshot of the namespace. */
+    public Map<String, Set<Integer>> replicas() {
+        return this.copy(this.portmap);
+    }
+
+    /** Copy of the servers holding a stale replica of each path, by command port. */
+    public Map<String, Set<Integer>> staleReplicas() {
+        return this.copy(this.stale);
+    }
 
-        // Once the lock is released, we must notify the thread which has been blocked due to the lock been present.
-        notifyAll();
+    private Map<String, Set<Integer>> copy(Map<String, Set<Integer>> replicas) {
+        this.monitor.lock();
+        try {
+            Map<String, Set<Integer>> copy = new HashMap<String, Set<Integer>>();
+            for (Map.Entry<String, Set<Integer>> entry : replicas.entrySet()) {
+                copy.put(entry.getKey(), new HashSet<Integer>(entry.getValue()));
+            }
+            return copy;
+        } finally {
+            this.monitor.unlock();
+        }
+    }
+
+    /** Restores a replica recorded by the journal, as a finished replication would have added it. */
+    public void restoreReplicated(String filepath, int port) {
+        this.monitor.lock();
+        try {
+            this.add(filepath, port);
+            this.forgetStale(filepath, port);
+        } finally {
+            this.monitor.unlock();
+        }
+    }
+
+    /** Restores a stale replica recorded by the journal, as an invalidation would have left it. */
+    public void restoreInvalidated(String filepath, int port) {
+        this.monitor.lock();
+        try {
+            Set<Integer> ports = this.portmap.get(filepath);
+            if (ports != null && ports.remove(port) && ports.isEmpty()) {
+                this.portmap.remove(filepath);
+            }
+            this.stale.computeIfAbsent(filepath, path -> new HashSet<Integer>()).add(port);
+        } finally {
+            this.monitor.unlock();
+        }
+    }
+
+    public void releaseWriteLock() throws InterruptedException {
+        if (!this.tryReleaseWriteLock()) {
+            throw new IllegalStateException("Exclusive lock released while not held.");
+        }
+    }
+
+    /** Releases the lock from exclusive access, if it is held that way, and returns false otherwise, in one step as
+     * tryReleaseReadLock does. */
+    public boolean tryReleaseWriteLock() {
+        this.monitor.lock();
+        try {
+            if (writeLocks == 0) {
+                return false;
+            }
+            writeLocks -= 1;
+            this.grant();
+            return true;
+        } finally {
+            this.monitor.unlock();
+        }
+    }
+
+    private Waiter enqueue(boolean exclusive) {
+        Waiter waiter = new Waiter(exclusive, this.monitor.newCondition());
+        this.queue.add(waiter);
+        return waiter;
+    }
+
+    /** Waits until the request is granted. If the thread is interrupted first, the request leaves the queue and the
+     * requests behind it are given the chance to go ahead. If the lock was already granted, it is kept and the
+     * interrupt is left for the caller to see. */
+    private void await(Waiter waiter) throws InterruptedException {
+        try {
+            while (!waiter.granted) {
+                waiter.turn.await();
+            }
+        } catch (InterruptedException e) {
+            if (waiter.granted) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            this.queue.remove(waiter);
+            this.grant();
+            throw e;
+        }
+    }
+
+    /** Hands the lock to as many requests at the head of the queue as can now hold it: one writer, or every reader
+     * before the next writer. Only the requests that were granted are woken. */
+    private void grant() {
+        Waiter head;
+        while ((head = this.queue.peek()) != null) {
+            if (head.exclusive) {
+                if (readLocks > 0 || writeLocks > 0) {
+                    return;
+                }
+                writeLocks += 1;
+            } else {
+                if (writeLocks > 0) {
+                    return;
+                }
+                readLocks += 1;
+            }
+            this.queue.remove();
+            head.granted = true;
+            head.turn.signal();
+            if (head.exclusive) {
+                return;
+            }
+        }
+    }
+
+    /** Sends a request to a storage server on this host. Returns null if it could not be sent. Copies, deletions and
+     * invalidations all leave the same result when applied twice, so each is sent once more if it fails. */
+    private HttpResponse<String> send(String method, int port, Object requestObj) {
+        try {
+            return this.getResponse(method, "localhost", port, requestObj);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
     private HttpResponse<String> getResponse(String method, String ip,
                                              int port,
                                              Object requestObj) throws IOException, InterruptedException {
         HttpResponse<String> response = null;
-        HttpRequest request = HttpRequest.newBuilder().uri(URI.create("http://"+ip+":" + port + method))
-                .setHeader("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(requestObj)))
-                .build();
         try {
-            response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+            response = SharedHttpClient.get().postJson(ip, port, method, gson.toJson(requestObj), true);
             return response;
         } catch (Exception e) {
             e.printStackTrace();
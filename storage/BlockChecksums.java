@@ -0,0 +1,431 @@
+package storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/** CRC32C checksums of the fixed-size blocks of each file, kept in a sidecar file next to it.
+ *
+ * A write recomputes the checksums of the blocks it touched and nothing else, so keeping the index current costs a
+ * re-read of at most those blocks. Reads check the blocks they cover against it; replication compares the blocks it
+ * received with the source's; and delta copies compare the two servers' checksums block by block, without either side
+ * reading the blocks that did not change.
+ *
+ * The sidecar holds a header, with the block size and the length of the file it describes, then one entry per block:
+ * the checksum with bit 32 set, or 0 for a block whose checksum is not known. Files that were on disk before they had
+ * a sidecar, or whose blocks were never written through the server since, have unknown blocks, which are served
+ * without being checked. Sidecars are written through like the files themselves, but not forced to disk.
+ *
+ * Checking reads costs a second pass over every block served, so it is opt-in: it is turned on with the
+ * dfs.storage.checksums.verifyReads system property. Replication and delta copies use the checksums either way.
+ */
+public final class BlockChecksums {
+
+    /** Suffix of the sidecar file, in the directory of the file it describes. */
+    public static final String SUFFIX = ".dfs-crc";
+    /** Size of the blocks checksummed. A multiple of it makes a good copy chunk size. */
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    /** Thrown when a block of a file does not match its checksum. */
+    public static final class CorruptBlockException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptBlockException(String path, long block) {
+            super("Block " + block + " of " + path + " does not match its checksum.");
+        }
+    }
+
+    private static final int MAGIC = 0x44435243;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES;
+    private static final long KNOWN = 1L << 32;
+    private static final long ZERO_BLOCK = checksum(ByteBuffer.allocate(BLOCK_SIZE));
+
+    // Each request thread reads blocks through its own buffer.
+    private static final ThreadLocal<ByteBuffer> buffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BLOCK_SIZE));
+
+    // Open sidecars, kept apart from the files so that they do not crowd them out.
+    private final FileChannelCache sidecars;
+    private final boolean verifyReads;
+    // Updates to the sidecar of a file, and rechecks of a block that did not match, are serialized by a lock chosen
+    // by path.
+    private final Object[] locks = new Object[64];
+
+    private final AtomicLong verifiedBlocks = new AtomicLong();
+    private final AtomicLong verifiedBytes = new AtomicLong();
+    private final AtomicLong verifyNanos = new AtomicLong();
+    private final AtomicLong uncheckedBlocks = new AtomicLong();
+    private final AtomicLong corruptBlocks = new AtomicLong();
+    private final AtomicLong updatedBlocks = new AtomicLong();
+    private final AtomicLong updateNanos = new AtomicLong();
+
+    public BlockChecksums(int maxOpen, boolean verifyReads) {
+        this.sidecars = new FileChannelCache(maxOpen);
+        this.verifyReads = verifyReads;
+        for (int i = 0; i < this.locks.length; i++) {
+            this.locks[i] = new Object();
+        }
+    }
+
+    /** Returns an index configured by the dfs.storage.checksums.verifyReads system property, keeping as many sidecars
+     * open as dfs.storage.channels.maxOpen allows files. */
+    public static BlockChecksums fromProperties() {
+        return new BlockChecksums(Integer.getInteger("dfs.storage.channels.maxOpen", 128),
+                                  Boolean.getBoolean("dfs.storage.checksums.verifyReads"));
+    }
+
+    /** Returns whether a local file is a sidecar, rather than a file of the file system. */
+    public static boolean isSidecar(File file) {
+        return file.getName().endsWith(SUFFIX);
+    }
+
+    /** Returns the sidecar of a local file. */
+    public static File sidecar(File file) {
+        return new File(file.getParentFile(), file.getName() + SUFFIX);
+    }
+
+    /** Whether reads are to be checked. */
+    public boolean verifiesReads() {
+        return this.verifyReads;
+    }
+
+    /** Starts the index of a file just created empty, so that all of its blocks are known from the first write. */
+    public void created(String path) throws IOException {
+        this.store(path, new long[0], 0);
+    }
+
+    /** Brings the index up to date after the given range of the file was written. Only the blocks of the range are
+     * read, and the partial last block if the file grew past it; blocks the file grew by without being written hold
+     * zeroes, and are not read.
+     */
+    public void update(String path, FileChannel data, long offset, long length) throws IOException {
+        long start = System.nanoTime();
+        synchronized (this.lock(path)) {
+            FileChannelCache.Handle handle = this.sidecars.acquire(path + SUFFIX, true);
+            try {
+                FileChannel index = handle.channel();
+                long size = data.size();
+                long blocks = blocks(size);
+                long recorded = recordedLength(index);
+                long first = length > 0 ? offset / BLOCK_SIZE : blocks;
+                long last = length > 0 ? Math.min((offset + length - 1) / BLOCK_SIZE, blocks - 1) : blocks - 1;
+
+                if (recorded < 0) {
+                    // No usable index: start one in which only the blocks written are known.
+                    index.truncate(0);
+                } else if (size < recorded) {
+                    index.truncate(HEADER_SIZE + blocks * Long.BYTES);
+                    if (size % BLOCK_SIZE != 0 && (blocks - 1 < first || blocks - 1 > last)) {
+                        this.recompute(data, index, blocks - 1, size);
+                    }
+                } else if (size > recorded) {
+                    long end = blocks(recorded);
+                    if (recorded % BLOCK_SIZE != 0 && (end - 1 < first || end - 1 > last)) {
+                        // The old partial last block grew.
+                        this.recompute(data, index, end - 1, size);
+                    }
+                    // Blocks between the old end and the write were never written, and so hold zeroes. Any past the
+                    // write belong to a write whose update has yet to run; reading them is correct either way.
+                    writeEntries(index, end, Math.min(first, blocks) - end, ZERO_BLOCK);
+                    for (long block = Math.max(end, last + 1); block < blocks; block++) {
+                        this.recompute(data, index, block, size);
+                    }
+                }
+
+                for (long block = first; block <= last; block++) {
+                    this.recompute(data, index, block, size);
+                }
+                writeHeader(index, size);
+            } finally {
+                this.sidecars.release(handle);
+            }
+        }
+        this.updateNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /** Checks the blocks covering a range of the file against the index. Blocks with no known checksum are passed.
+     *
+     * @throws CorruptBlockException If a block does not match its checksum.
+     */
+    public void verify(String path, FileChannel data, long offset, long length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        long size = data.size();
+        long first = offset / BLOCK_SIZE;
+        long last = Math.min((offset + length - 1) / BLOCK_SIZE, blocks(size) - 1);
+        FileChannelCache.Handle handle;
+        try {
+            handle = this.sidecars.acquire(path + SUFFIX, false);
+        } catch (FileNotFoundException e) {
+            this.uncheckedBlocks.addAndGet(last - first + 1);
+            return;
+        }
+
+        try {
+            FileChannel index = handle.channel();
+            long recorded = recordedLength(index);
+            long[] expected = recorded < 0 ? new long[0] : readEntries(index, first, last - first + 1);
+            for (long block = first; block <= last; block++) {
+                long entry = block - first < expected.length ? expected[(int) (block - first)] : 0;
+                int blockLength = blockLength(block, size);
+                if (entry == 0 || blockLength(block, recorded) != blockLength) {
+                    this.uncheckedBlocks.incrementAndGet();
+                    continue;
+                }
+                if (checksum(data, block, blockLength) != entry) {
+                    // The block may have been written since the index was read, and its update not run yet. Check
+                    // again once any update in progress is done.
+                    synchronized (this.lock(path)) {
+                        long now = data.size();
+                        recorded = recordedLength(index);
+                        long[] again = readEntries(index, block, 1);
+                        entry = again.length == 0 ? 0 : again[0];
+                        blockLength = blockLength(block, now);
+                        if (entry != 0 && blockLength(block, recorded) == blockLength
+                                && checksum(data, block, blockLength) != entry) {
+                            this.corruptBlocks.incrementAndGet();
+                            throw new CorruptBlockException(path, block);
+                        }
+                    }
+                }
+                this.verifiedBlocks.incrementAndGet();
+                this.verifiedBytes.addAndGet(blockLength);
+            }
+        } finally {
+            this.sidecars.release(handle);
+            this.verifyNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /** Returns the entries of the blocks of the file, 0 where not known, or null if the file has no index or the index
+     * does not describe the file as it is. */
+    public long[] entries(String path, FileChannel data) throws IOException {
+        synchronized (this.lock(path)) {
+            FileChannelCache.Handle handle;
+            try {
+                handle = this.sidecars.acquire(path + SUFFIX, false);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+            try {
+                long size = data.size();
+                if (recordedLength(handle.channel()) != size) {
+                    return null;
+                }
+                long[] entries = new long[(int) blocks(size)];
+                long[] stored = readEntries(handle.channel(), 0, entries.length);
+                System.arraycopy(stored, 0, entries, 0, stored.length);
+                return entries;
+            } finally {
+                this.sidecars.release(handle);
+            }
+        }
+    }
+
+    /** Computes the entries of every block of a file, and compares each against the expected entry, where one is
+     * known.
+     *
+     * @param expected Entries the blocks should have, 0 where not known; may be shorter than the file, or null.
+     * @param mismatched Receives the blocks that do not match their expected entry.
+     * @return The entries of the file.
+     */
+    public long[] check(FileChannel data, long[] expected, List<Long> mismatched) throws IOException {
+        long start = System.nanoTime();
+        long size = data.size();
+        long[] entries = new long[(int) blocks(size)];
+        long compared = 0;
+        long comparedBytes = 0;
+        for (int block = 0; block < entries.length; block++) {
+            int blockLength = blockLength(block, size);
+            entries[block] = checksum(data, block, blockLength);
+            if (expected != null && block < expected.length && expected[block] != 0) {
+                compared++;
+                comparedBytes += blockLength;
+                if (expected[block] != entries[block]) {
+                    mismatched.add((long) block);
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        this.verifiedBlocks.addAndGet(compared);
+        this.verifiedBytes.addAndGet(comparedBytes);
+        this.corruptBlocks.addAndGet(mismatched.size());
+        // Computing the entries of the blocks nobody vouched for is the cost of indexing the file, not of checking it.
+        if (entries.length > 0) {
+            this.verifyNanos.addAndGet(elapsed * compared / entries.length);
+            this.updateNanos.addAndGet(elapsed - elapsed * compared / entries.length);
+        }
+        this.updatedBlocks.addAndGet(entries.length - compared);
+        return entries;
+    }
+
+    /** Replaces the index of a file with the given entries, for a file of the given length. */
+    public void store(String path, long[] entries, long length) throws IOException {
+        synchronized (this.lock(path)) {
+            FileChannelCache.Handle handle = this.sidecars.acquire(path + SUFFIX, true);
+            try {
+                FileChannel index = handle.channel();
+                index.truncate(0);
+                ByteBuffer buffer = ByteBuffer.allocate(Math.min(entries.length, 8192) * Long.BYTES);
+                for (int from = 0; from < entries.length; from += 8192) {
+                    buffer.clear();
+                    for (int block = from; block < Math.min(entries.length, from + 8192); block++) {
+                        buffer.putLong(entries[block]);
+                    }
+                    buffer.flip();
+                    writeFully(index, buffer, HEADER_SIZE + (long) from * Long.BYTES);
+                }
+                writeHeader(index, length);
+            } finally {
+                this.sidecars.release(handle);
+            }
+        }
+    }
+
+    /** Moves the index of a file along with it, or drops the index at the destination if the file has none. */
+    public void move(String from, String to) throws IOException {
+        this.invalidate(from);
+        this.invalidate(to);
+        File source = new File(from + SUFFIX);
+        File target = new File(to + SUFFIX);
+        if (source.exists()) {
+            Files.move(source.toPath(), target.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            target.delete();
+        }
+    }
+
+    /** Deletes the index of a file. */
+    public void remove(String path) {
+        this.invalidate(path);
+        new File(path + SUFFIX).delete();
+    }
+
+    /** Closes the open sidecar of a file, or of every file below it if it is a directory, once it has been removed or
+     * replaced. */
+    public void invalidate(String path) {
+        this.sidecars.invalidate(path);
+        this.sidecars.invalidate(path + SUFFIX);
+    }
+
+    /** Returns what checking and updating checksums has cost: blocks and bytes checked and the time taken, blocks
+     * passed unchecked for want of a checksum, blocks found corrupt, and blocks whose checksums were computed and the
+     * time taken. */
+    public Map<String, Long> statistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        statistics.put("verified_blocks", this.verifiedBlocks.get());
+        statistics.put("verified_bytes", this.verifiedBytes.get());
+        statistics.put("verify_nanos", this.verifyNanos.get());
+        statistics.put("unchecked_blocks", this.uncheckedBlocks.get());
+        statistics.put("corrupt_blocks", this.corruptBlocks.get());
+        statistics.put("updated_blocks", this.updatedBlocks.get());
+        statistics.put("update_nanos", this.updateNanos.get());
+        return statistics;
+    }
+
+    private Object lock(String path) {
+        return this.locks[(path.hashCode() & 0x7fffffff) % this.locks.length];
+    }
+
+    /** Reads a block of the file and writes its entry to the index. */
+    private void recompute(FileChannel data, FileChannel index, long block, long size) throws IOException {
+        long entry = checksum(data, block, blockLength(block, size));
+        writeEntries(index, block, 1, entry);
+        this.updatedBlocks.incrementAndGet();
+    }
+
+    private static long blocks(long size) {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /** Returns the length of a block of a file of the given size: BLOCK_SIZE, less for the last, 0 past the end. */
+    private static int blockLength(long block, long size) {
+        return (int) Math.max(0, Math.min(BLOCK_SIZE, size - block * BLOCK_SIZE));
+    }
+
+    private static long checksum(FileChannel data, long block, int length) throws IOException {
+        ByteBuffer buffer = buffers.get();
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, block * BLOCK_SIZE + buffer.position()) < 0) {
+                throw new EOFException("File/path shrank while being read.");
+            }
+        }
+        buffer.flip();
+        return checksum(buffer);
+    }
+
+    private static long checksum(ByteBuffer block) {
+        CRC32C crc = new CRC32C();
+        crc.update(block);
+        return KNOWN | crc.getValue();
+    }
+
+    /** Returns the length of the file the index describes, or -1 if it has no valid header. */
+    private static long recordedLength(FileChannel index) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (index.read(header, header.position()) < 0) {
+                return -1;
+            }
+        }
+        if (header.getInt(0) != MAGIC || header.getInt(Integer.BYTES) != BLOCK_SIZE) {
+            return -1;
+        }
+        return header.getLong(2 * Integer.BYTES);
+    }
+
+    private static void writeHeader(FileChannel index, long length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(BLOCK_SIZE).putLong(length).flip();
+        writeFully(index, header, 0);
+    }
+
+    /** Reads the entries of a run of blocks; fewer if the index ends first. */
+    private static long[] readEntries(FileChannel index, long first, long count) throws IOException {
+        long available = Math.max(0, (index.size() - HEADER_SIZE) / Long.BYTES - first);
+        ByteBuffer buffer = ByteBuffer.allocate((int) (Math.min(count, available) * Long.BYTES));
+        while (buffer.hasRemaining()) {
+            if (index.read(buffer, HEADER_SIZE + first * Long.BYTES + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        long[] entries = new long[buffer.remaining() / Long.BYTES];
+        buffer.asLongBuffer().get(entries);
+        return entries;
+    }
+
+    /** Writes the same entry for a run of blocks. */
+    private static void writeEntries(FileChannel index, long first, long count, long entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(Math.max(count, 0), 8192) * Long.BYTES);
+        while (buffer.hasRemaining()) {
+            buffer.putLong(entry);
+        }
+        for (long written = 0; written < count; ) {
+            long run = Math.min(count - written, 8192);
+            buffer.clear().limit((int) run * Long.BYTES);
+            writeFully(index, buffer, HEADER_SIZE + (first + written) * Long.BYTES);
+            written += run;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/** Delta transfer of a file to a server that holds an older copy of it, in the manner of rsync.
+ *
+ * The server with the old copy cuts it into blocks and sends a signature of each: a weak checksum that can be rolled
+ * along a file a byte at a time, and an MD5 digest to confirm a match. The server with the current file rolls the
+ * weak checksum over it, and answers with a delta: the blocks of the old copy it can reuse, in order, and the bytes
+ * between them that it has to send literally. Only the literal bytes cross the network.
+ *
+ * When every reused block sits at the same offset in both files, as it does after writes that overwrite or append,
+ * the delta says so and the old copy is patched in place, so that the disk is only written where the file changed.
+ * Otherwise the new file is assembled from the old blocks and the literals in a separate file.
+ *
+ * When both servers keep block checksums, see BlockChecksums, the server with the old copy can send those instead,
+ * and the delta is found by comparing them block by block: neither file is read where it did not change. This only
+ * finds blocks that stayed where they were, which is all that writes in place ever leave, and trusts a block whose
+ * CRC32C is unchanged to be unchanged, which a change escapes with odds of 1 in 2^32.
+ *
+ * Signatures are 20 bytes per block: the weak checksum as an int, then the digest. The delta is a flag saying whether
+ * it may be applied in place and the length of the new file, followed by operations: 'L', a length and that many
+ * bytes; 'M', the index of the first of a run of reused blocks and their number; and 'E' at the end.
+ */
+public final class DeltaSync {
+
+    /** Bytes in the signature of one block. */
+    public static final int SIGNATURE_SIZE = Integer.BYTES + 16;
+
+    /** Smallest block size used. Small blocks find more of a lightly changed file, at the cost of more signatures. */
+    private static final int MIN_BLOCK_SIZE = 8 * 1024;
+    /** Most blocks a file is cut into; larger files use larger blocks, which bounds the size of the signatures. */
+    private static final long MAX_BLOCKS = 1 << 20;
+    /** Longest literal sent in one operation, and so the most the source holds back while it looks for a match. */
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    private static final byte LITERAL = 'L';
+    private static final byte MATCH = 'M';
+    private static final byte END = 'E';
+
+    private DeltaSync() {
+    }
+
+    /** Returns the block size to cut a file of the given length into. */
+    public static int blockSize(long length) {
+        return (int) Math.max(MIN_BLOCK_SIZE, (length + MAX_BLOCKS - 1) / MAX_BLOCKS);
+    }
+
+    /** Returns the signatures of the whole blocks of an old copy. A partial last block has none; it is always sent
+     * again. */
+    public static byte[] signatures(FileChannel old, int blockSize) throws IOException {
+        long blocks = old.size() / blockSize;
+        ByteBuffer signatures = ByteBuffer.allocate((int) (blocks * SIGNATURE_SIZE));
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        MessageDigest md5 = md5();
+        for (long index = 0; index < blocks; index++) {
+            block.clear();
+            readFully(old, block, index * blockSize);
+            signatures.putInt(weakChecksum(block.array(), 0, blockSize));
+            md5.update(block.array(), 0, blockSize);
+            signatures.put(md5.digest());
+        }
+        return signatures.array();
+    }
+
+    /** Writes the delta that turns the old copy with the given signatures into the current file. The current file is
+     * read once to find the reused blocks, and again only where its bytes have to be sent.
+     *
+     * @return The number of literal bytes sent.
+     */
+    public static long delta(FileChannel current, byte[] signatures, int blockSize, OutputStream output)
+            throws IOException {
+        long size = current.size();
+        return write(current, size, findOperations(current, size, signatures, blockSize), blockSize, output);
+    }
+
+    /** Writes the delta that turns an old copy into the current file by comparing the block checksums of both. Blocks
+     * with the same checksum are reused in place; the rest of the current file is sent. Only the blocks sent are read.
+     *
+     * @param currentEntries The BlockChecksums entries of the current file, one per block.
+     * @param oldEntries The entries of the old copy.
+     * @param oldLength The length of the old copy. A partial last block of it is not reused.
+     * @return The number of literal bytes sent.
+     */
+    public static long delta(FileChannel current, long[] currentEntries, long[] oldEntries, long oldLength,
+                             int blockSize, OutputStream output) throws IOException {
+        long size = current.size();
+        List<long[]> operations = new ArrayList<long[]>();
+        long literal = 0;
+        for (long block = 0; block < size / blockSize; block++) {
+            long entry = block < currentEntries.length ? currentEntries[(int) block] : 0;
+            boolean same = entry != 0 && block < oldEntries.length && oldEntries[(int) block] == entry
+                    && (block + 1) * blockSize <= oldLength;
+            long offset = block * blockSize;
+            if (!same) {
+                continue;
+            }
+            addLiterals(operations, literal, offset);
+            long[] last = operations.isEmpty() ? null : operations.get(operations.size() - 1);
+            if (last != null && last[0] == MATCH && last[1] + last[2] == block && last[2] < Integer.MAX_VALUE) {
+                last[2]++;
+            } else {
+                operations.add(new long[] {MATCH, block, 1, offset});
+            }
+            literal = offset + blockSize;
+        }
+        addLiterals(operations, literal, size);
+        return write(current, size, operations, blockSize, output);
+    }
+
+    /** Writes the operations found for a delta. */
+    private static long write(FileChannel current, long size, List<long[]> operations, int blockSize,
+                              OutputStream output) throws IOException {
+        // The delta can be applied in place if no block moves: each reused block is already where it belongs.
+        boolean inPlace = true;
+        long literalBytes = 0;
+        for (long[] operation : operations) {
+            if (operation[0] == MATCH && operation[1] * blockSize != operation[3]) {
+                inPlace = false;
+            } else if (operation[0] == LITERAL) {
+                literalBytes += operation[2];
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(output);
+        WritableByteChannel channel = Channels.newChannel(output);
+        data.writeBoolean(inPlace);
+        data.writeLong(size);
+        for (long[] operation : operations) {
+            if (operation[0] == MATCH) {
+                data.writeByte(MATCH);
+                data.writeInt((int) operation[1]);
+                data.writeInt((int) operation[2]);
+            } else {
+                data.writeByte(LITERAL);
+                data.writeInt((int) operation[2]);
+                data.flush();
+                long position = operation[1];
+                long end = operation[1] + operation[2];
+                while (position < end) {
+                    long sent = current.transferTo(position, end - position, channel);
+                    if (sent <= 0) {
+                        throw new EOFException("File/path shrank while being read.");
+                    }
+                    position += sent;
+                }
+            }
+        }
+        data.writeByte(END);
+        data.flush();
+        return literalBytes;
+    }
+
+    /** Applies a delta read from the input. The target is the old copy itself if the delta is applied in place, and
+     * otherwise an empty file that the new file is assembled in.
+     *
+     * @param old The old copy, open for reading, and for writing if the delta may be applied in place.
+     * @param separate Opens the file the new file is assembled in, if the delta cannot be applied in place.
+     * @return The channel holding the new file: old, or one opened by separate. It is forced to disk.
+     */
+    public static FileChannel apply(InputStream input, FileChannel old, int blockSize, Opener separate)
+            throws IOException {
+        return apply(input, old, blockSize, separate, null);
+    }
+
+    /** Applies a delta read from the input, as above, telling the listener about each range of literal bytes written
+     * to the target, so that it can account for what changed.
+     *
+     * @param written Told of each literal range once it is written; may be null.
+     */
+    public static FileChannel apply(InputStream input, FileChannel old, int blockSize, Opener separate,
+                                    Written written) throws IOException {
+        DataInputStream data = new DataInputStream(input);
+        boolean inPlace = data.readBoolean();
+        long size = data.readLong();
+        FileChannel target = inPlace ? old : separate.open();
+        try {
+            byte[] buffer = new byte[MAX_LITERAL];
+
+            long position = 0;
+            for (byte operation = data.readByte(); operation != END; operation = data.readByte()) {
+                if (operation == LITERAL) {
+                    int length = data.readInt();
+                    if (length < 0 || length > MAX_LITERAL) {
+                        throw new IOException("Malformed delta: literal of " + length + " bytes.");
+                    }
+                    data.readFully(buffer, 0, length);
+                    ByteBuffer literal = ByteBuffer.wrap(buffer, 0, length);
+                    while (literal.hasRemaining()) {
+                        position += target.write(literal, position);
+                    }
+                    if (written != null && length > 0) {
+                        written.written(position - length, length);
+                    }
+                } else if (operation == MATCH) {
+                    long first = data.readInt();
+                    long count = data.readInt();
+                    long offset = first * blockSize;
+                    long length = count * blockSize;
+                    if (inPlace) {
+                        if (offset != position) {
+                            throw new IOException("Malformed delta: block " + first + " moved in an in-place delta.");
+                        }
+                    } else {
+                        long copied = 0;
+                        while (copied < length) {
+                            long moved = target.transferFrom(old.position(offset + copied), position + copied,
+                                                             length - copied);
+                            if (moved <= 0) {
+                                throw new EOFException("Old copy shrank while being read.");
+                            }
+                            copied += moved;
+                        }
+                    }
+                    position += length;
+                } else {
+                    throw new IOException("Malformed delta: unknown operation " + operation + ".");
+                }
+            }
+
+            if (position != size) {
+                throw new IOException("Malformed delta: " + position + " bytes for a file of " + size + ".");
+            }
+            target.truncate(size);
+            target.force(false);
+            return target;
+        } catch (IOException | RuntimeException e) {
+            if (target != old) {
+                target.close();
+            }
+            throw e;
+        }
+    }
+
+    /** Opens a file for apply. */
+    public interface Opener {
+        FileChannel open() throws IOException;
+    }
+
+    /** Learns of the literal ranges apply writes. */
+    public interface Written {
+        void written(long offset, long length) throws IOException;
+    }
+
+    /** Rolls the weak checksum over the current file and returns the operations that rebuild it from the old blocks:
+     * {MATCH, first block, number of blocks, offset in the current file} and {LITERAL, offset, length}. Runs of
+     * consecutive blocks are merged into one operation. */
+    private static List<long[]> findOperations(FileChannel current, long size, byte[] signatures, int blockSize)
+            throws IOException {
+        // Chains of blocks by weak checksum: the first block with each checksum, and the next block with the same one.
+        int blocks = signatures.length / SIGNATURE_SIZE;
+        ByteBuffer signature = ByteBuffer.wrap(signatures);
+        HashMap<Integer, Integer> first = new HashMap<Integer, Integer>();
+        int[] next = new int[blocks];
+        for (int index = blocks - 1; index >= 0; index--) {
+            Integer previous = first.put(signature.getInt(index * SIGNATURE_SIZE), index);
+            next[index] = previous == null ? -1 : previous;
+        }
+
+        List<long[]> operations = new ArrayList<long[]>();
+        MessageDigest md5 = md5();
+        // The buffer holds the current file from the start of the pending literal to past the end of the window.
+        byte[] buffer = new byte[MAX_LITERAL + 2 * blockSize];
+        long bufferStart = 0;
+        int filled = 0;
+        long window = 0;
+        long literal = 0;
+        boolean fresh = true;
+        int a = 0;
+        int b = 0;
+
+        while (blocks > 0 && window + blockSize <= size) {
+            // The window, and the byte after it that rolling takes in, must be in the buffer.
+            long needed = Math.min(window + blockSize + 1, size);
+            if (needed > bufferStart + filled) {
+                int keep = (int) (bufferStart + filled - literal);
+                System.arraycopy(buffer, (int) (literal - bufferStart), buffer, 0, keep);
+                bufferStart = literal;
+                ByteBuffer free = ByteBuffer.wrap(buffer, keep, buffer.length - keep);
+                while (free.hasRemaining() && bufferStart + free.position() < size) {
+                    if (current.read(free, bufferStart + free.position()) < 0) {
+                        break;
+                    }
+                }
+                filled = free.position();
+                if (needed > bufferStart + filled) {
+                    throw new EOFException("File/path shrank while being read.");
+                }
+            }
+
+            int offset = (int) (window - bufferStart);
+            if (fresh) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < blockSize; i++) {
+                    int x = buffer[offset + i] & 0xff;
+                    a += x;
+                    b += (blockSize - i) * x;
+                }
+                fresh = false;
+            }
+
+            int match = -1;
+            Integer candidate = first.get((a & 0xffff) | (b << 16));
+            if (candidate != null) {
+                md5.update(buffer, offset, blockSize);
+                byte[] digest = md5.digest();
+                for (int index = candidate; index >= 0 && match < 0; index = next[index]) {
+                    if (Arrays.equals(digest, 0, 16, signatures, index * SIGNATURE_SIZE + Integer.BYTES,
+                                      (index + 1) * SIGNATURE_SIZE)) {
+                        match = index;
+                    }
+                }
+            }
+
+            if (match >= 0) {
+                if (window > literal) {
+                    operations.add(new long[] {LITERAL, literal, window - literal});
+                }
+                long[] last = operations.isEmpty() ? null : operations.get(operations.size() - 1);
+                if (last != null && last[0] == MATCH && last[1] + last[2] == match && last[2] < Integer.MAX_VALUE) {
+                    last[2]++;
+                } else {
+                    operations.add(new long[] {MATCH, match, 1, window});
+                }
+                window += blockSize;
+                literal = window;
+                fresh = true;
+            } else {
+                if (window + blockSize < size) {
+                    int out = buffer[offset] & 0xff;
+                    int in = buffer[offset + blockSize] & 0xff;
+                    a += in - out;
+                    b += a - blockSize * out;
+                }
+                window++;
+                if (window - literal >= MAX_LITERAL) {
+                    operations.add(new long[] {LITERAL, literal, window - literal});
+                    literal = window;
+                }
+            }
+        }
+
+        // Whatever is left after the last block that fits is sent as it is.
+        addLiterals(operations, literal, size);
+        return operations;
+    }
+
+    /** Adds the literal operations that send a range of the current file. */
+    private static void addLiterals(List<long[]> operations, long start, long end) {
+        for (long offset = start; offset < end; offset += MAX_LITERAL) {
+            operations.add(new long[] {LITERAL, offset, Math.min(MAX_LITERAL, end - offset)});
+        }
+    }
+
+    /** The rsync weak checksum of a block: the sum of its bytes, and the sum of each byte weighted by its distance from
+     * the end of the block, both modulo 2^16. */
+    static int weakChecksum(byte[] block, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = block[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to provide MD5.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File/path shrank while being read.");
+            }
+        }
+    }
+}
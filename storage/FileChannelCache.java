@@ -0,0 +1,211 @@
+package storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Cache of open file channels, so that small reads and writes do not open the file and stat it each time.
+ *
+ * Channels are opened for reading and writing on first use and kept in least-recently-used order, up to a bound on
+ * the number open. All reads and writes on a channel are positional, so concurrent requests for the same file share
+ * one descriptor. Every request holds a reference on its channel, and a channel is only closed once it is neither
+ * cached nor in use; while all of them are in use the cache may briefly hold more than its bound.
+ *
+ * Only regular files that exist are cached, so a hit also answers whether the file exists. Anything that deletes or
+ * replaces a file must invalidate it here.
+ */
+public final class FileChannelCache {
+
+    /** An open file. The channel is used between acquire and release, and must not be closed by the user. */
+    public static final class Handle {
+        private final String path;
+        private final FileChannel channel;
+        // Guarded by the cache.
+        private int references;
+        private boolean retired;
+
+        private Handle(String path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+
+        public FileChannel channel() {
+            return this.channel;
+        }
+    }
+
+    private final int maxOpen;
+
+    // Bumped by every invalidation, so that a file opened while it was being removed is not kept.
+    private long generation = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    // Access-ordered, so iteration starts at the least recently used channel.
+    private final LinkedHashMap<String, Handle> handles = new LinkedHashMap<String, Handle>(16, 0.75f, true);
+
+    public FileChannelCache(int maxOpen) {
+        this.maxOpen = maxOpen;
+    }
+
+    /** Returns a cache bounded by the dfs.storage.channels.maxOpen system property, 128 channels by default. */
+    public static FileChannelCache fromProperties() {
+        return new FileChannelCache(Integer.getInteger("dfs.storage.channels.maxOpen", 128));
+    }
+
+    /** Returns the open channel of the file, opening it if necessary. A handle returned must be released.
+     *
+     * @throws FileNotFoundException If the file does not exist or is a directory.
+     */
+    public Handle acquire(String path) throws IOException {
+        return this.acquire(path, false);
+    }
+
+    /** Returns the open channel of the file, opening it if necessary, and creating it first if asked to. A handle
+     * returned must be released.
+     *
+     * @throws FileNotFoundException If the file does not exist and is not to be created, its directory does not
+     *                               exist, or it is a directory.
+     */
+    public Handle acquire(String path, boolean create) throws IOException {
+        long seen;
+        synchronized (this) {
+            Handle handle = this.handles.get(path);
+            if (handle != null) {
+                this.hits++;
+                handle.references++;
+                return handle;
+            }
+            this.misses++;
+            seen = this.generation;
+        }
+
+        // Open outside the monitor, so that requests for other files are not held up by it.
+        FileChannel channel = open(path, create);
+
+        List<Handle> closed = new ArrayList<Handle>();
+        Handle handle;
+        synchronized (this) {
+            handle = this.handles.get(path);
+            if (handle != null) {
+                // Another request opened it first; use theirs.
+                handle.references++;
+                closed.add(new Handle(path, channel));
+            } else {
+                handle = new Handle(path, channel);
+                handle.references = 1;
+                if (this.generation != seen) {
+                    // Something was invalidated while we were opening, perhaps this very file. Use the channel for
+                    // this request only.
+                    handle.retired = true;
+                } else {
+                    this.handles.put(path, handle);
+                }
+
+                // Close the least recently used channels nobody is using, until the cache is within its bound.
+                Iterator<Handle> eldest = this.handles.values().iterator();
+                while (this.handles.size() > this.maxOpen && eldest.hasNext()) {
+                    Handle candidate = eldest.next();
+                    if (candidate.references == 0) {
+                        eldest.remove();
+                        candidate.retired = true;
+                        closed.add(candidate);
+                        this.evictions++;
+                    }
+                }
+            }
+        }
+
+        for (Handle old : closed) {
+            close(old);
+        }
+        return handle;
+    }
+
+    /** Gives back a handle obtained from acquire. */
+    public void release(Handle handle) {
+        boolean close;
+        synchronized (this) {
+            handle.references--;
+            close = handle.retired && handle.references == 0;
+        }
+        if (close) {
+            close(handle);
+        }
+    }
+
+    /** Drops the channel of the file at the path, and of every file below it if it is a directory. Channels still in
+     * use are closed when their last user releases them. */
+    public void invalidate(String path) {
+        List<Handle> closed = new ArrayList<Handle>();
+        String prefix = path.endsWith("/") ? path : path + "/";
+        synchronized (this) {
+            this.generation++;
+            Iterator<Map.Entry<String, Handle>> entries = this.handles.entrySet().iterator();
+            while (entries.hasNext()) {
+                Handle handle = entries.next().getValue();
+                if (handle.path.equals(path) || handle.path.startsWith(prefix)) {
+                    entries.remove();
+                    handle.retired = true;
+                    if (handle.references == 0) {
+                        closed.add(handle);
+                    }
+                }
+            }
+        }
+        for (Handle handle : closed) {
+            close(handle);
+        }
+    }
+
+    /** Returns the hit, miss and eviction counts and the number of channels cached. */
+    public synchronized Map<String, Long> statistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        statistics.put("hits", this.hits);
+        statistics.put("misses", this.misses);
+        statistics.put("evictions", this.evictions);
+        statistics.put("open", (long) this.handles.size());
+        return statistics;
+    }
+
+    /** Opens a file for reading and writing, or only for reading if it may not be written. */
+    private static FileChannel open(String path, boolean create) throws IOException {
+        java.nio.file.Path file = new File(path).toPath();
+        try {
+            if (create) {
+                return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE);
+            }
+            return FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(path);
+        } catch (AccessDeniedException e) {
+            return FileChannel.open(file, StandardOpenOption.READ);
+        } catch (FileSystemException e) {
+            if (Files.isDirectory(file)) {
+                throw new FileNotFoundException(path);
+            }
+            throw e;
+        }
+    }
+
+    private static void close(Handle handle) {
+        try {
+            handle.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
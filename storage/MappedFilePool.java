@@ -0,0 +1,201 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Pool of memory-mapped files, used to serve range reads of frequently read files without a system call each.
+ *
+ * Files are mapped whole and read-only on their first read, and kept in least-recently-used order. The total size
+ * mapped is bounded: when a new file does not fit, the least recently used files are dropped until it does, and a
+ * file that still does not fit is simply not mapped. Every read holds a reference on its region, so a region that is
+ * dropped while being read is only unmapped once the last reader releases it.
+ *
+ * A mapping does not follow changes to the length of its file, so anything that writes, replaces or deletes a file
+ * must invalidate it here first.
+ */
+public final class MappedFilePool {
+
+    /** A mapped file. Reads go through slices of the buffer, between acquire and release. */
+    public static final class Region {
+        private final String path;
+        private final MappedByteBuffer buffer;
+        // Guarded by the pool.
+        private int references;
+        private boolean retired;
+
+        private Region(String path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        /** Length of the file when it was mapped. */
+        public long size() {
+            return this.buffer.capacity();
+        }
+
+        /** Returns a buffer over the given range of the file, with its own position and limit. */
+        public ByteBuffer slice(long offset, int length) {
+            ByteBuffer slice = this.buffer.duplicate();
+            slice.position((int) offset);
+            slice.limit((int) offset + length);
+            return slice;
+        }
+    }
+
+    private final long maxBytes;
+    private long mappedBytes = 0;
+
+    // Bumped by every invalidation, so that a file mapped while it was being changed is not kept.
+    private long generation = 0;
+
+    // Access-ordered, so iteration starts at the least recently used region.
+    private final LinkedHashMap<String, Region> regions = new LinkedHashMap<String, Region>(16, 0.75f, true);
+
+    public MappedFilePool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** Returns the pool configured by the dfs.storage.mmap system properties, or null if memory-mapped reads are not
+     * enabled. dfs.storage.mmap=true turns them on; dfs.storage.mmap.maxBytes bounds the total mapped, 256 MB by
+     * default. */
+    public static MappedFilePool fromProperties() {
+        if (!Boolean.getBoolean("dfs.storage.mmap")) {
+            return null;
+        }
+        return new MappedFilePool(Long.getLong("dfs.storage.mmap.maxBytes", 256L << 20));
+    }
+
+    /** Returns the mapped region of the file, mapping it if necessary, or null if the file cannot be mapped within
+     * the bounds of the pool. A region returned must be released. */
+    public Region acquire(String path) throws IOException {
+        long seen;
+        synchronized (this) {
+            Region region = this.regions.get(path);
+            if (region != null) {
+                region.references++;
+                return region;
+            }
+            seen = this.generation;
+        }
+
+        // Map outside the monitor, so that reads of other files are not held up by it.
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0 || size > Integer.MAX_VALUE || size > this.maxBytes) {
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        List<Region> unmapped = new ArrayList<Region>();
+        Region region;
+        synchronized (this) {
+            region = this.regions.get(path);
+            if (region != null) {
+                // Another reader mapped it first; use theirs.
+                region.references++;
+                unmap(buffer);
+                return region;
+            }
+            if (this.generation != seen) {
+                // Something was invalidated while we were mapping, perhaps this very file. Don't trust the mapping.
+                unmap(buffer);
+                return null;
+            }
+
+            // Make room by dropping the least recently used regions nobody is reading.
+            Iterator<Region> eldest = this.regions.values().iterator();
+            while (this.mappedBytes + buffer.capacity() > this.maxBytes && eldest.hasNext()) {
+                Region candidate = eldest.next();
+                if (candidate.references == 0) {
+                    eldest.remove();
+                    candidate.retired = true;
+                    unmapped.add(candidate);
+                    this.mappedBytes -= candidate.size();
+                }
+            }
+            if (this.mappedBytes + buffer.capacity() > this.maxBytes) {
+                region = null;
+            } else {
+                region = new Region(path, buffer);
+                region.references = 1;
+                this.regions.put(path, region);
+                this.mappedBytes += region.size();
+            }
+        }
+
+        for (Region old : unmapped) {
+            unmap(old.buffer);
+        }
+        if (region == null) {
+            unmap(buffer);
+        }
+        return region;
+    }
+
+    /** Gives back a region obtained from acquire. */
+    public void release(Region region) {
+        boolean unmap;
+        synchronized (this) {
+            region.references--;
+            unmap = region.retired && region.references == 0;
+            if (unmap) {
+                this.mappedBytes -= region.size();
+            }
+        }
+        if (unmap) {
+            unmap(region.buffer);
+        }
+    }
+
+    /** Drops the mapping of the file at the path, and of every file below it if it is a directory. Mappings still
+     * being read are unmapped when their last reader releases them. */
+    public void invalidate(String path) {
+        List<Region> unmapped = new ArrayList<Region>();
+        String prefix = path.endsWith("/") ? path : path + "/";
+        synchronized (this) {
+            this.generation++;
+            Iterator<Map.Entry<String, Region>> entries = this.regions.entrySet().iterator();
+            while (entries.hasNext()) {
+                Region region = entries.next().getValue();
+                if (region.path.equals(path) || region.path.startsWith(prefix)) {
+                    entries.remove();
+                    region.retired = true;
+                    if (region.references == 0) {
+                        this.mappedBytes -= region.size();
+                        unmapped.add(region);
+                    }
+                }
+            }
+        }
+        for (Region region : unmapped) {
+            unmap(region.buffer);
+        }
+    }
+
+    /** Releases a mapping straight away rather than when the buffer is garbage collected. The JDK only offers this
+     * through sun.misc.Unsafe; where that is unavailable, the mapping is left to the garbage collector. */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(field.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Left to the garbage collector.
+        }
+    }
+}
@@ -0,0 +1,626 @@
+package storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import common.SharedHttpClient;
+
+/** Copies files from another storage server, for storage_copy.
+ *
+ * A file is fetched in fixed-size chunks through the binary storage_read, several chunks at a time, and each chunk is
+ * streamed straight to its offset in a temporary file next to the destination. Only once every chunk has arrived is
+ * the temporary file renamed over the destination, so readers see either the old file or the whole new one, never a
+ * part. Memory use is one small buffer per chunk stream, whatever the size of the file.
+ *
+ * Progress is checkpointed chunk by chunk in a file next to the temporary one. A copy that fails part way, because
+ * the source went away for instance, keeps both, and the next copy of the same file picks up where it stopped: only
+ * the chunks that never made it to disk are fetched again. The checkpoint records the size and version of the source
+ * file and the chunk size of the copy; if any of them differs next time, the copy starts over, so that chunks of a
+ * source file that has since been rewritten, even to the same size, are never mixed with chunks of the new one.
+ *
+ * With block checksums, see BlockChecksums, a copy is checked block by block against the checksums of the source once
+ * every chunk has arrived, and the chunks of any block that does not match are fetched once more before the copy is
+ * given up. The checksums computed on the way become the index of the copy, and a delta copy compares the checksums
+ * of the stale replica with the source's rather than reading either file to find what changed.
+ *
+ * The chunk size and the number of streams are configured with the dfs.storage.copy.chunkBytes (4 MB by default) and
+ * dfs.storage.copy.streams (4 by default) system properties.
+ */
+public final class Replicator {
+
+    /** Suffix of the temporary file a copy is written to, in the directory of the destination. */
+    public static final String TEMPORARY_SUFFIX = ".dfs-part";
+    /** Suffix of the file recording which chunks of the temporary file have been fetched. */
+    public static final String CHECKPOINT_SUFFIX = ".dfs-part.chunks";
+    /** Suffix of a replica that is out of date, kept so that the next copy only has to fetch what changed. */
+    public static final String STALE_SUFFIX = ".dfs-stale";
+    /** Suffix of the file a delta copy assembles the new file in, when it cannot patch the stale replica in place. */
+    public static final String DELTA_SUFFIX = ".dfs-delta";
+
+    /** Size of the buffer each stream moves data through. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Chunk streams of all copies run here. Daemon threads, so that they never keep the server alive on their own.
+    private static final ExecutorService executor = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "replication");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long chunkSize;
+    private final int maxStreams;
+    // Null if files are copied without checksums.
+    private final BlockChecksums checksums;
+
+    private final AtomicLong deltaCopies = new AtomicLong();
+    private final AtomicLong deltaFetched = new AtomicLong();
+    private final AtomicLong deltaFileBytes = new AtomicLong();
+
+    // One lock per destination, so that two copies of the same file do not share a temporary file. A lock is only
+    // kept while someone holds or waits for it.
+    private final ConcurrentHashMap<String, Destination> destinations = new ConcurrentHashMap<String, Destination>();
+
+    public Replicator(long chunkSize, int maxStreams) {
+        this(chunkSize, maxStreams, null);
+    }
+
+    /** Creates a replicator that checks copies against, and keeps, the block checksums of the files it copies. */
+    public Replicator(long chunkSize, int maxStreams, BlockChecksums checksums) {
+        this.chunkSize = chunkSize;
+        this.maxStreams = maxStreams;
+        this.checksums = checksums;
+    }
+
+    /** Returns a replicator configured by the dfs.storage.copy system properties, keeping checksums in the given
+     * index. */
+    public static Replicator fromProperties(BlockChecksums checksums) {
+        return new Replicator(Long.getLong("dfs.storage.copy.chunkBytes", 4L << 20),
+                              Integer.getInteger("dfs.storage.copy.streams", 4), checksums);
+    }
+
+    /** Returns whether a local file is the temporary file or checkpoint of a copy, rather than a file of the file
+     * system. */
+    public static boolean isTemporary(File file) {
+        String name = file.getName();
+        return name.endsWith(TEMPORARY_SUFFIX) || name.endsWith(CHECKPOINT_SUFFIX) || name.endsWith(STALE_SUFFIX)
+                || name.endsWith(DELTA_SUFFIX);
+    }
+
+    /** Returns the version of a local file, as reported by storage_size: it changes whenever the file is written
+     * or replaced, so that a copy can tell whether the chunks it fetched earlier still belong to the same contents.
+     */
+    public static long version(File file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        Object key = attributes.fileKey();
+        return 31 * (key == null ? 0 : key.hashCode()) + attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    /** Copies the file at a path of the source server, of the given size and version, to the destination, replacing
+     * it.
+     *
+     * If the destination holds a stale replica of the file, only what changed since is fetched, by delta copy. If an
+     * earlier copy of the same size and version to the same destination failed part way, only the chunks it did not
+     * finish are fetched.
+     *
+     * @throws IOException If a chunk cannot be fetched or written. The destination is left as it was, and the chunks
+     *                     fetched are kept for the next attempt.
+     */
+    public void fetch(String ip, int port, String path, long size, long version, File destination)
+            throws IOException, InterruptedException {
+        Destination lock = this.lock(destination);
+        try {
+            File stale = new File(destination.getParentFile(), destination.getName() + STALE_SUFFIX);
+            if (stale.exists()) {
+                try {
+                    this.fetchDelta(ip, port, path, destination, stale);
+                    return;
+                } catch (IOException e) {
+                    // Copy the whole file instead.
+                    e.printStackTrace();
+                }
+            }
+
+            File parent = destination.getParentFile();
+            if (!parent.exists()) {
+                parent.mkdirs();
+            }
+            File temporary = new File(parent, destination.getName() + TEMPORARY_SUFFIX);
+            File progress = new File(parent, destination.getName() + CHECKPOINT_SUFFIX);
+            long[] expected = this.checksums == null ? null : this.fetchEntries(ip, port, path, size);
+            long[] entries = null;
+
+            try (Checkpoint checkpoint = Checkpoint.open(progress, size, version, this.chunkSize);
+                 FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                         StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (checkpoint.isNew()) {
+                    // Whatever is in the temporary file belongs to some other copy.
+                    channel.truncate(0);
+                }
+                this.fetchChunks(ip, port, path, size, channel, checkpoint);
+                channel.force(false);
+                if (this.checksums != null) {
+                    entries = this.check(ip, port, path, size, channel, checkpoint, expected);
+                }
+            }
+            if (this.checksums != null) {
+                // The old index must not outlive the old file, even briefly.
+                this.checksums.remove(destination.getPath());
+            }
+            Files.move(temporary.toPath(), destination.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            progress.delete();
+            if (entries != null) {
+                this.checksums.store(destination.getPath(), entries, size);
+            }
+        } finally {
+            this.unlock(destination, lock);
+        }
+    }
+
+    /** Removes what failed copies to the destination left behind, and any stale replica, when the destination itself
+     * is deleted. */
+    public void discard(File destination) {
+        Destination lock = this.lock(destination);
+        try {
+            new File(destination.getParentFile(), destination.getName() + TEMPORARY_SUFFIX).delete();
+            new File(destination.getParentFile(), destination.getName() + CHECKPOINT_SUFFIX).delete();
+            new File(destination.getParentFile(), destination.getName() + STALE_SUFFIX).delete();
+            new File(destination.getParentFile(), destination.getName() + DELTA_SUFFIX).delete();
+            if (this.checksums != null) {
+                this.checksums.remove(destination.getPath() + STALE_SUFFIX);
+            }
+        } finally {
+            this.unlock(destination, lock);
+        }
+    }
+
+    /** Marks a replica out of date: it is no longer served, but kept for the next copy of the file to start from.
+     *
+     * @return false if there is no such file.
+     */
+    public boolean retire(File replica) throws IOException {
+        Destination lock = this.lock(replica);
+        try {
+            if (!replica.isFile()) {
+                return false;
+            }
+            Files.move(replica.toPath(), new File(replica.getParentFile(), replica.getName() + STALE_SUFFIX).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (this.checksums != null) {
+                this.checksums.move(replica.getPath(), replica.getPath() + STALE_SUFFIX);
+            }
+            return true;
+        } finally {
+            this.unlock(replica, lock);
+        }
+    }
+
+    /** Locks a destination, so that only one copy, discard or retirement works on its files at a time. */
+    private Destination lock(File destination) {
+        Destination lock = this.destinations.compute(destination.getPath(), (path, held) -> {
+            if (held == null) {
+                held = new Destination();
+            }
+            held.users++;
+            return held;
+        });
+        lock.lock();
+        return lock;
+    }
+
+    /** Unlocks a destination, and drops its lock once nobody else holds or waits for it. */
+    private void unlock(File destination, Destination lock) {
+        lock.unlock();
+        this.destinations.computeIfPresent(destination.getPath(), (path, held) -> --held.users == 0 ? null : held);
+    }
+
+    /** Returns counters of delta copies: how many were made, how many bytes they fetched, and the total size of the
+     * files they brought up to date. */
+    public Map<String, Long> statistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        statistics.put("delta_copies", this.deltaCopies.get());
+        statistics.put("delta_fetched_bytes", this.deltaFetched.get());
+        statistics.put("delta_file_bytes", this.deltaFileBytes.get());
+        return statistics;
+    }
+
+    /** Brings a stale replica up to date with a delta from the source, and moves it into place. On failure, the
+     * stale replica is kept for another attempt, unless it was already partly patched in place. */
+    private void fetchDelta(String ip, int port, String path, File destination, File stale)
+            throws IOException, InterruptedException {
+        File assembled = new File(destination.getParentFile(), destination.getName() + DELTA_SUFFIX);
+        // Set once the delta is being applied, to the stale replica itself or to the assembled file.
+        File target = null;
+        try (FileChannel old = FileChannel.open(stale.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int blockSize = BlockChecksums.BLOCK_SIZE;
+            HttpResponse<InputStream> response = null;
+            long[] oldEntries = this.checksums == null ? null : this.checksums.entries(stale.getPath(), old);
+            if (oldEntries != null && Arrays.stream(oldEntries).anyMatch(entry -> entry != 0)) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                DataOutputStream entries = new DataOutputStream(body);
+                entries.writeLong(old.size());
+                for (long entry : oldEntries) {
+                    entries.writeLong(entry);
+                }
+                response = this.requestDelta(ip, port, path, blockSize, true, body.toByteArray());
+                if (response.statusCode() != 200) {
+                    // The source keeps no checksums for the file; fall back to signatures.
+                    response.body().close();
+                    response = null;
+                }
+            }
+            if (response == null) {
+                blockSize = DeltaSync.blockSize(old.size());
+                response = this.requestDelta(ip, port, path, blockSize, false, DeltaSync.signatures(old, blockSize));
+            }
+
+            File[] separate = new File[1];
+            // Literals patched into the stale replica are brought into its index as they are written.
+            DeltaSync.Written written = this.checksums == null ? null : (offset, length) -> {
+                if (separate[0] == null) {
+                    this.checksums.update(stale.getPath(), old, offset, length);
+                }
+            };
+            FileChannel result;
+            long fetched;
+            try (CountingInputStream body = new CountingInputStream(response.body())) {
+                if (response.statusCode() != 200) {
+                    throw new IOException("Delta of " + path + " failed: "
+                            + new String(body.readAllBytes(), StandardCharsets.UTF_8));
+                }
+                target = stale;
+                result = DeltaSync.apply(body, old, blockSize, () -> {
+                    separate[0] = assembled;
+                    return FileChannel.open(assembled.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                }, written);
+                fetched = body.count();
+            } finally {
+                if (separate[0] != null) {
+                    target = separate[0];
+                }
+            }
+            long size = result.size();
+            long[] entries = null;
+            if (this.checksums != null && result == old) {
+                // The delta may also have cut the file short.
+                this.checksums.update(stale.getPath(), old, size, 0);
+            } else if (this.checksums != null) {
+                entries = this.checksums.check(result, null, new ArrayList<Long>());
+            }
+            if (result != old) {
+                result.close();
+            }
+
+            if (this.checksums != null) {
+                this.checksums.remove(destination.getPath());
+            }
+            Files.move(target.toPath(), destination.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (this.checksums != null && entries == null) {
+                this.checksums.move(stale.getPath(), destination.getPath());
+            } else if (this.checksums != null) {
+                this.checksums.store(destination.getPath(), entries, size);
+            }
+            this.deltaCopies.incrementAndGet();
+            this.deltaFetched.addAndGet(fetched);
+            this.deltaFileBytes.addAndGet(size);
+        } catch (IOException | InterruptedException e) {
+            assembled.delete();
+            if (target == stale) {
+                stale.delete();
+                if (this.checksums != null) {
+                    this.checksums.remove(stale.getPath());
+                }
+            }
+            throw e;
+        }
+        stale.delete();
+        if (this.checksums != null) {
+            this.checksums.remove(stale.getPath());
+        }
+    }
+
+    /** Asks the source for a delta against the stale replica, described by its signatures or its checksums. */
+    private HttpResponse<InputStream> requestDelta(String ip, int port, String path, int blockSize,
+                                                   boolean checksums, byte[] description)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://" + ip + ":" + port + "/storage_delta?path="
+                        + URLEncoder.encode(path, StandardCharsets.UTF_8) + "&block_size=" + blockSize
+                        + (checksums ? "&checksums=true" : "")))
+                .setHeader("Content-Type", "application/octet-stream")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(description))
+                .build();
+        // Computing a delta changes nothing on the source, so the request may be sent twice.
+        return SharedHttpClient.get().send(request, HttpResponse.BodyHandlers.ofInputStream(), true);
+    }
+
+    /** Returns the block checksums the source keeps for the file, or null if it keeps none for a file of this size. */
+    private long[] fetchEntries(String ip, int port, String path, long size) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://" + ip + ":" + port + "/storage_checksums?path="
+                        + URLEncoder.encode(path, StandardCharsets.UTF_8)))
+                .GET()
+                .build();
+        HttpResponse<InputStream> response = SharedHttpClient.get().send(request,
+                HttpResponse.BodyHandlers.ofInputStream());
+        try (DataInputStream body = new DataInputStream(response.body())) {
+            if (response.statusCode() != 200 || body.readLong() != size) {
+                return null;
+            }
+            long[] entries = new long[(int) ((size + BlockChecksums.BLOCK_SIZE - 1) / BlockChecksums.BLOCK_SIZE)];
+            for (int block = 0; block < entries.length; block++) {
+                entries[block] = body.readLong();
+            }
+            return entries;
+        }
+    }
+
+    /** Checks a copy against the checksums of the source, fetching the chunks of any block that does not match once
+     * more, and returns the checksums of the copy.
+     *
+     * @throws IOException If blocks still do not match after they were fetched again.
+     */
+    private long[] check(String ip, int port, String path, long size, FileChannel channel, Checkpoint checkpoint,
+                         long[] expected) throws IOException, InterruptedException {
+        List<Long> mismatched = new ArrayList<Long>();
+        long[] entries = this.checksums.check(channel, expected, mismatched);
+        if (mismatched.isEmpty()) {
+            return entries;
+        }
+
+        for (long block : mismatched) {
+            long start = block * BlockChecksums.BLOCK_SIZE;
+            long end = Math.min(size, start + BlockChecksums.BLOCK_SIZE);
+            for (long chunk = start / this.chunkSize; chunk <= (end - 1) / this.chunkSize; chunk++) {
+                checkpoint.reset(chunk);
+            }
+        }
+        this.fetchChunks(ip, port, path, size, channel, checkpoint);
+        channel.force(false);
+
+        mismatched.clear();
+        entries = this.checksums.check(channel, expected, mismatched);
+        if (!mismatched.isEmpty()) {
+            throw new IOException("Copy of " + path + " does not match the checksums of the source at blocks "
+                    + mismatched + ".");
+        }
+        return entries;
+    }
+
+    /** Fetches the chunks of the file the checkpoint does not have into the channel, with up to maxStreams chunks in
+     * flight, recording each in the checkpoint once it is on disk. */
+    private void fetchChunks(String ip, int port, String path, long size, FileChannel channel, Checkpoint checkpoint)
+            throws IOException, InterruptedException {
+        long[] missing = checkpoint.missing();
+        AtomicInteger next = new AtomicInteger();
+        List<Future<Void>> workers = new ArrayList<Future<Void>>();
+        for (long i = 0; i < Math.min(missing.length, this.maxStreams); i++) {
+            workers.add(executor.submit(() -> {
+                // Each stream takes the next chunk nobody has taken, until there are none left.
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                for (int index = next.getAndIncrement(); index < missing.length; index = next.getAndIncrement()) {
+                    long offset = missing[index] * this.chunkSize;
+                    this.fetchChunk(ip, port, path, offset, Math.min(this.chunkSize, size - offset), channel, buffer);
+                    // The chunk must be on disk before the checkpoint says so.
+                    channel.force(false);
+                    checkpoint.complete(missing[index]);
+                }
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<Void> worker : workers) {
+                worker.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            // Stop the other streams if one failed; they have nothing left to do otherwise.
+            next.set(missing.length);
+            for (Future<Void> worker : workers) {
+                worker.cancel(true);
+            }
+        }
+    }
+
+    /** Fetches one range of the file with the binary storage_read and writes it at the same offset, through the
+     * buffer of the stream. */
+    private void fetchChunk(String ip, int port, String path, long offset, long length, FileChannel channel,
+                            ByteBuffer buffer) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://" + ip + ":" + port + "/storage_read?path="
+                        + URLEncoder.encode(path, StandardCharsets.UTF_8) + "&offset=" + offset + "&length=" + length))
+                .GET()
+                .build();
+        HttpResponse<InputStream> response = SharedHttpClient.get().send(request,
+                HttpResponse.BodyHandlers.ofInputStream());
+
+        try (InputStream body = response.body();
+             ReadableByteChannel source = Channels.newChannel(body)) {
+            if (response.statusCode() != 200) {
+                throw new IOException("Reading " + path + " at " + offset + " failed: "
+                        + new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            buffer.clear();
+            long position = offset;
+            long end = offset + length;
+            while (position < end && source.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                buffer.clear();
+            }
+            if (position != end) {
+                throw new IOException("Reading " + path + " at " + offset + " ended early.");
+            }
+        }
+    }
+
+    /** Record of the chunks of a copy that are on disk: a header with the size and chunk size of the copy, then one
+     * byte per chunk, set once the chunk is written. Chunks are recorded with positional writes, so streams can record
+     * theirs concurrently. */
+    private static final class Checkpoint implements AutoCloseable {
+        private static final int HEADER_SIZE = 3 * Long.BYTES;
+
+        private final FileChannel file;
+        private final byte[] done;
+        private final boolean fresh;
+
+        private Checkpoint(FileChannel file, byte[] done, boolean fresh) {
+            this.file = file;
+            this.done = done;
+            this.fresh = fresh;
+        }
+
+        /** Opens the checkpoint of a copy, or starts a new one if there is none for a copy of this size and version
+         * of the source file. */
+        static Checkpoint open(File progress, long size, long version, long chunkSize) throws IOException {
+            long chunks = (size + chunkSize - 1) / chunkSize;
+            if (chunks > Integer.MAX_VALUE - HEADER_SIZE) {
+                throw new IOException("Too many chunks to copy; use a larger dfs.storage.copy.chunkBytes.");
+            }
+            byte[] done = new byte[(int) chunks];
+            FileChannel file = FileChannel.open(progress.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                boolean fresh = file.size() != HEADER_SIZE + chunks || file.read(header, 0) != HEADER_SIZE
+                        || header.getLong(0) != size || header.getLong(Long.BYTES) != version
+                        || header.getLong(2 * Long.BYTES) != chunkSize;
+                if (fresh) {
+                    header.clear();
+                    header.putLong(size).putLong(version).putLong(chunkSize).flip();
+                    file.truncate(0);
+                    file.write(header, 0);
+                    file.write(ByteBuffer.wrap(done), HEADER_SIZE);
+                    file.force(false);
+                } else {
+                    ByteBuffer flags = ByteBuffer.wrap(done);
+                    while (flags.hasRemaining()) {
+                        if (file.read(flags, HEADER_SIZE + flags.position()) < 0) {
+                            throw new EOFException("Checkpoint " + progress + " shrank while being read.");
+                        }
+                    }
+                }
+                return new Checkpoint(file, done, fresh);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        /** Whether the checkpoint was just started, so that nothing of the copy is on disk yet. */
+        boolean isNew() {
+            return this.fresh;
+        }
+
+        /** Returns the chunks not yet on disk, in order. */
+        long[] missing() {
+            int count = 0;
+            for (byte flag : this.done) {
+                if (flag == 0) {
+                    count++;
+                }
+            }
+            long[] missing = new long[count];
+            for (int chunk = 0, index = 0; chunk < this.done.length; chunk++) {
+                if (this.done[chunk] == 0) {
+                    missing[index++] = chunk;
+                }
+            }
+            return missing;
+        }
+
+        /** Records that a chunk is on disk. */
+        void complete(long chunk) throws IOException {
+            this.file.write(ByteBuffer.wrap(new byte[] {1}), HEADER_SIZE + chunk);
+            this.done[(int) chunk] = 1;
+        }
+
+        /** Records that a chunk has to be fetched again. */
+        void reset(long chunk) throws IOException {
+            this.file.write(ByteBuffer.wrap(new byte[] {0}), HEADER_SIZE + chunk);
+            this.done[(int) chunk] = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.file.close();
+        }
+    }
+
+    /** Input stream that counts the bytes read through it. */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(InputStream input) {
+            super(input);
+        }
+
+        long count() {
+            return this.count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read >= 0) {
+                this.count++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                this.count += read;
+            }
+            return read;
+        }
+    }
+
+    /** Lock of one destination, and the number of threads holding or waiting for it, which only changes inside the
+     * compute functions of the table. */
+    private static final class Destination extends ReentrantLock {
+        int users;
+    }
+}
@@ -0,0 +1,312 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/** Scans the root directory of a storage server when it starts, and removes the files the naming server already has.
+ *
+ * The listing is handed on in a fixed order: the files of a directory sorted by name, then each of its subdirectories
+ * in the same way, in name order. The naming server can then tell duplicates apart by their position in the listing,
+ * and a run of duplicates, such as a whole directory the naming server already has, costs it a single range. The
+ * order is kept by one thread handing the files on, while a pool of threads lists the directories it is coming to
+ * ahead of it, a bounded number at a time, so that as many directories are listed at once as there are threads and
+ * the paths of a large tree are never all held at once.
+ *
+ * While the listing is handed on, the position of the first file of each directory is recorded, so that duplicates
+ * given as ranges of positions can be found again by listing only the directories they fall in. Duplicates are
+ * deleted in one parallel pass, and the directories they leave empty are then pruned in a second, deepest first, each
+ * directory being looked at once however many files were deleted from it.
+ *
+ * The number of threads is configured with the dfs.storage.scan.threads system property, one per processor by
+ * default.
+ */
+public final class StartupScan {
+
+    // Number of directories listed ahead of the thread handing the files on, per listing thread.
+    private static final int AHEAD = 4;
+
+    private final int threads;
+
+    public StartupScan(int threads) {
+        this.threads = threads;
+    }
+
+    /** Returns a scan configured by the dfs.storage.scan.threads system property. */
+    public static StartupScan fromProperties() {
+        return new StartupScan(Integer.getInteger("dfs.storage.scan.threads",
+                                                  Runtime.getRuntime().availableProcessors()));
+    }
+
+    /** Gives the sink the path of every file of the file system under the root, relative to it and starting with a
+     * "/", in listing order. Copies in progress, stale replicas and checksums are not files of the file system, and
+     * are skipped. The sink is called from the calling thread only. Returns where each directory's files are in the
+     * listing. */
+    public Listing scan(Path root, Consumer<String> sink) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(this.threads);
+        Listing listing = new Listing();
+        try {
+            this.emit(pool, root, "/", pool.submit(() -> list(root)), sink, listing);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        return listing;
+    }
+
+    /** Hands on the files of a directory, then those of its subdirectories, listing the subdirectories ahead. */
+    private void emit(ForkJoinPool pool, Path directory, String path, Future<Entries> listed, Consumer<String> sink,
+                      Listing listing) {
+        Entries entries = join(listed);
+        listing.add(path, entries.files.size());
+        for (String file : entries.files) {
+            sink.accept(path + file);
+        }
+
+        Deque<Future<Entries>> ahead = new ArrayDeque<Future<Entries>>();
+        int submitted = 0;
+        for (int i = 0; i < entries.directories.size(); i++) {
+            while (submitted < entries.directories.size() && submitted < i + this.threads * AHEAD) {
+                Path subdirectory = directory.resolve(entries.directories.get(submitted++));
+                ahead.add(pool.submit(() -> list(subdirectory)));
+            }
+            String name = entries.directories.get(i);
+            this.emit(pool, directory.resolve(name), path + name + "/", ahead.poll(), sink, listing);
+        }
+    }
+
+    /** Deletes the duplicates the naming server answered with, with whatever copies of them and checksums they had,
+     * then prunes the directories left empty. The root itself is kept. */
+    public void delete(Path root, Duplicates duplicates, Replicator replicator, BlockChecksums checksums) {
+        if (duplicates.ranges == null) {
+            this.delete(root, duplicates.paths, replicator, checksums);
+            return;
+        }
+
+        // Where each range falls, as ranges of positions within each directory's files. Both the ranges and the
+        // directories are in listing order, so they are merged in one pass.
+        Map<Integer, List<int[]>> selected = new HashMap<Integer, List<int[]>>();
+        Listing listing = duplicates.listing;
+        int run = 0;
+        for (int i = 0; i + 1 < duplicates.ranges.length; i += 2) {
+            long first = duplicates.ranges[i];
+            long end = first + duplicates.ranges[i + 1];
+            run = listing.find(first, run);
+            for (; run < listing.size() && listing.first(run) < end; run++) {
+                long from = Math.max(first, listing.first(run));
+                long to = Math.min(end, listing.first(run) + listing.count(run));
+                if (from < to) {
+                    selected.computeIfAbsent(run, key -> new ArrayList<int[]>()).add(
+                            new int[] {(int) (from - listing.first(run)), (int) (to - listing.first(run))});
+                }
+            }
+            // The next range may start in the directory this one ended in.
+            run = Math.max(0, run - 1);
+        }
+
+        File top = root.toFile();
+        Set<File> parents = ConcurrentHashMap.newKeySet();
+        ForkJoinPool pool = new ForkJoinPool(this.threads);
+        try {
+            pool.submit(() -> selected.entrySet().parallelStream().forEach(entry -> {
+                String path = listing.path(entry.getKey());
+                File directory = new File(top, path);
+                List<String> files = list(directory.toPath()).files;
+                if (files.size() != listing.count(entry.getKey())) {
+                    // The directory changed since it was listed, so its positions no longer say which files they
+                    // were. Nothing in it is deleted, rather than the wrong files.
+                    return;
+                }
+                for (int[] range : entry.getValue()) {
+                    for (int index = range[0]; index < range[1]; index++) {
+                        File file = new File(directory, files.get(index));
+                        file.delete();
+                        replicator.discard(file);
+                        checksums.remove(file.getPath());
+                    }
+                }
+                parents.add(directory);
+            })).join();
+        } finally {
+            pool.shutdown();
+        }
+        prune(top, parents);
+    }
+
+    /** Deletes the files at the given paths under the root, with whatever copies of them and checksums they had,
+     * then prunes the directories left empty. The root itself is kept. */
+    public void delete(Path root, Collection<String> paths, Replicator replicator,
+                       BlockChecksums checksums) {
+        File top = root.toFile();
+        Set<File> parents = ConcurrentHashMap.newKeySet();
+        ForkJoinPool pool = new ForkJoinPool(this.threads);
+        try {
+            pool.submit(() -> paths.parallelStream().forEach(path -> {
+                File file = new File(top, path);
+                file.delete();
+                replicator.discard(file);
+                checksums.remove(file.getPath());
+                parents.add(file.getParentFile());
+            })).join();
+        } finally {
+            pool.shutdown();
+        }
+        prune(top, parents);
+    }
+
+    /** Deletes the given directories and their ancestors below the top if they are empty. */
+    private static void prune(File top, Set<File> parents) {
+        // Deepest first, so that a directory is only looked at once everything below it that could go has gone.
+        TreeSet<File> empty = new TreeSet<File>(Comparator.comparingInt((File directory) -> depth(directory))
+                .reversed().thenComparing(Comparator.naturalOrder()));
+        for (File parent : parents) {
+            for (File directory = parent; directory != null && !directory.equals(top);
+                 directory = directory.getParentFile()) {
+                if (!empty.add(directory)) {
+                    break;
+                }
+            }
+        }
+        for (File directory : empty) {
+            // Only succeeds if the directory is empty.
+            directory.delete();
+        }
+    }
+
+    private static int depth(File file) {
+        int depth = 0;
+        for (File parent = file.getParentFile(); parent != null; parent = parent.getParentFile()) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /** Lists the files and subdirectories of a directory, each sorted by name. */
+    private static Entries list(Path directory) {
+        Entries entries = new Entries();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path entry : stream) {
+                String name = entry.getFileName().toString();
+                if (Files.readAttributes(entry, BasicFileAttributes.class).isDirectory()) {
+                    entries.directories.add(name);
+                } else {
+                    File file = entry.toFile();
+                    if (!Replicator.isTemporary(file) && !BlockChecksums.isSidecar(file)) {
+                        entries.files.add(name);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Collections.sort(entries.files);
+        Collections.sort(entries.directories);
+        return entries;
+    }
+
+    private static Entries join(Future<Entries> listed) {
+        try {
+            return listed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new IOException("interrupted while scanning", e));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw (UncheckedIOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /** Files and subdirectories of one directory. */
+    private static final class Entries {
+        final List<String> files = new ArrayList<String>();
+        final List<String> directories = new ArrayList<String>();
+    }
+
+    /** Where the files of each directory are in a listing: the directories holding files, in listing order, each
+     * with the position of its first file and the number of its files. A directory's files are always together. */
+    public static final class Listing {
+        private final List<String> paths = new ArrayList<String>();
+        private long[] firsts = new long[16];
+        private int[] counts = new int[16];
+        private long total;
+
+        void add(String path, int count) {
+            if (count > 0) {
+                int run = this.paths.size();
+                if (run == this.firsts.length) {
+                    this.firsts = Arrays.copyOf(this.firsts, run * 2);
+                    this.counts = Arrays.copyOf(this.counts, run * 2);
+                }
+                this.paths.add(path);
+                this.firsts[run] = this.total;
+                this.counts[run] = count;
+            }
+            this.total += count;
+        }
+
+        /** Number of files in the listing. */
+        public long total() {
+            return this.total;
+        }
+
+        int size() {
+            return this.paths.size();
+        }
+
+        String path(int run) {
+            return this.paths.get(run);
+        }
+
+        long first(int run) {
+            return this.firsts[run];
+        }
+
+        int count(int run) {
+            return this.counts[run];
+        }
+
+        /** Returns the directory holding the file at the given position, searching from the given directory on. */
+        int find(long position, int from) {
+            int index = Arrays.binarySearch(this.firsts, from, this.paths.size(), position);
+            return index >= 0 ? index : Math.max(from, -index - 2);
+        }
+    }
+
+    /** Files the naming server already has: either their paths, or ranges of their positions in the listing sent
+     * to it, given as pairs of the first position and the number of files. */
+    public static final class Duplicates {
+        final Listing listing;
+        final List<String> paths;
+        final long[] ranges;
+
+        public Duplicates(Listing listing, List<String> paths, long[] ranges) {
+            this.listing = listing;
+            this.paths = paths;
+            this.ranges = ranges;
+        }
+    }
+}
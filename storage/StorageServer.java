@@ -4,7 +4,7 @@ import java.util.*;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.URI;
-import java.net.http.HttpClient;
+import common.SharedHttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.util.concurrent.Executors;
@@ -13,6 +13,9 @@ import java.io.File;
 import java.util.Random;
 import jsonhelper.*;
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpExchange;
 import test.common.Path;
@@ -26,7 +29,16 @@ import static java.lang.Math.toIntExact;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.net.URLDecoder;
+import java.net.HttpURLConnection;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 
 /** Base class of storage servers.
@@ -50,6 +62,18 @@ public class StorageServer
     protected Gson                  gson;
     /** Local Directory to locate files to serve */
     public static String root_dir;
+    /** Largest range a JSON read returns. The data has to fit in one array before it is encoded. */
+    private static final long       MAX_JSON_READ = Integer.MAX_VALUE - 8;
+    /** Size of the buffer used to move data between a request body and a file. */
+    private static final int        STREAM_CHUNK_SIZE = 64 * 1024;
+    /** Memory-mapped files that reads are served from, or null if reads go through a file channel each time. */
+    private final MappedFilePool    mapped_files;
+    /** Open channels of recently used files, shared by the requests for them. */
+    private final FileChannelCache  open_files;
+    /** Fetches the files storage_copy is asked for. */
+    private final Replicator        replicator;
+    /** Checksums of the blocks of each file, which reads are checked against. */
+    private final BlockChecksums    checksums;
 
     public StorageServer(int CLIENT_PORT, int COMMAND_PORT, int NAMING_PORT, String root_dir) throws IOException
     {
@@ -57,13 +81,28 @@ public class StorageServer
         this.COMMAND_PORT = COMMAND_PORT;
         this.NAMING_PORT = NAMING_PORT;
         this.root_dir = root_dir;
+        skeletons_started = false;
+        bindSkeletons();
+        gson = new Gson();
+        mapped_files = MappedFilePool.fromProperties();
+        open_files = FileChannelCache.fromProperties();
+        checksums = BlockChecksums.fromProperties();
+        replicator = Replicator.fromProperties(checksums);
+    }
+
+    /** Binds the ports of the skeletons, without serving any request yet.
+     *
+     * The ports are bound first thing, before the rest of the server is set up and before registration, so that
+     * whoever waits for the server to come up can go on with its own work meanwhile. Connections made before the
+     * skeletons start wait in the backlog of their port, and are only served once startSkeletons has run, when the
+     * files the server holds are settled. */
+    private void bindSkeletons() throws IOException
+    {
         this.client_skeleton = HttpServer.create(new InetSocketAddress(CLIENT_PORT), 0);
         this.client_skeleton.setExecutor(Executors.newCachedThreadPool());
 
         this.command_skeleton = HttpServer.create(new InetSocketAddress(COMMAND_PORT), 0);
         this.command_skeleton.setExecutor(Executors.newCachedThreadPool());
-        skeletons_started = false;
-        gson = new Gson();
     }
 
     /** For starting the respective skeletons */
@@ -73,6 +112,10 @@ public class StorageServer
         if(skeletons_started)
             return;
 
+        // Register all API to two skeletons before they start, so that no request finds its method missing.
+        this.add_client_api();
+        this.add_command_api();
+
         // Start the client interface skeleton and create the stub.
         client_skeleton.start();
 
@@ -80,91 +123,103 @@ public class StorageServer
         command_skeleton.start();
 
         skeletons_started = true;
-
-        // Register all API to two skeletons
-        this.add_client_api();
-        this.add_command_api();
     }
 
 
-    /** File listing */
-    public List<File> listFilesForFolder(final File folder, List<File> files) {
-        for (final File fileEntry : folder.listFiles()) {
-            if (fileEntry.isDirectory()) {
-                files = listFilesForFolder(fileEntry, files);
-            } else {
-                files.add(fileEntry);
-            }
-        }
-        return files;
-    }
-
-    /** Register to a naming server */
-    public HttpResponse<String> register(Gson gson, int naming_register_port, String[] files) throws TestFailed
+    /** Register to a naming server, and return the files it already has. The listing of the root directory is written
+     * to the request as it is scanned, in chunks, so the paths of the files never have to be held all at once. It is
+     * sent in the scan's order and marked as positional: the files of each directory come together, and the scan can
+     * find a file again by its position. The naming server may then answer with ranges of positions in it rather than
+     * with paths. */
+    public StartupScan.Duplicates register(int naming_register_port, StartupScan scan) throws TestFailed
     {
-        RegisterRequest registerRequest = new RegisterRequest(STORAGE_IP, CLIENT_PORT, COMMAND_PORT, files);
-        HttpClient client = HttpClient.newHttpClient();
-
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("http://127.0.0.1:" + naming_register_port + "/register"))
-                .setHeader("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(registerRequest)))
-                .build();
-
-        HttpResponse<String> response;
-
+        java.nio.file.Path root = new File(root_dir).toPath();
         try
         {
-            response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            // A plain connection, since the scan writes the request from a single thread. It is also much quicker
+            // to set up than an HttpClient, which matters to a server that registers once, as it starts.
+            HttpURLConnection connection = (HttpURLConnection) URI.create(
+                    "http://127.0.0.1:" + naming_register_port + "/register").toURL().openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(STREAM_CHUNK_SIZE);
+
+            StartupScan.Listing listing;
+            try (JsonWriter json = new JsonWriter(new BufferedWriter(
+                    new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8))))
+            {
+                json.beginObject();
+                json.name("storage_ip").value(STORAGE_IP);
+                json.name("client_port").value(CLIENT_PORT);
+                json.name("command_port").value(COMMAND_PORT);
+                json.name("positional").value(true);
+                json.name("files").beginArray();
+                listing = scan.scan(root, path -> {
+                    try {
+                        json.value(path);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                json.endArray();
+                json.endObject();
+            }
+
+            // The duplicates are read as the naming server streams them back.
+            List<String> paths = new ArrayList<String>();
+            long[] ranges = null;
+            try (JsonReader json = new JsonReader(new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))))
+            {
+                json.beginObject();
+                while (json.hasNext()) {
+                    String name = json.nextName();
+                    if ("files".equals(name) && json.peek() == JsonToken.BEGIN_ARRAY) {
+                        json.beginArray();
+                        while (json.hasNext()) {
+                            paths.add(json.nextString());
+                        }
+                        json.endArray();
+                    } else if ("ranges".equals(name)) {
+                        ranges = new long[16];
+                        int size = 0;
+                        json.beginArray();
+                        while (json.hasNext()) {
+                            if (size == ranges.length) {
+                                ranges = Arrays.copyOf(ranges, size * 2);
+                            }
+                            ranges[size++] = json.nextLong();
+                        }
+                        json.endArray();
+                        ranges = Arrays.copyOf(ranges, size);
+                    } else {
+                        json.skipValue();
+                    }
+                }
+                json.endObject();
+            }
+            return new StartupScan.Duplicates(listing, paths, ranges);
         }
         catch (Throwable t)
         {
-            throw new TestFailed("unable to send request to naming server", t);
+            throw new TestFailed("unable to register with naming server", t);
         }
-        return response;
     }
 
     /** Starts the test storage server. */
     public synchronized ServerInfo start(int naming_register_port) throws TestFailed
     {
-        // Start storage server skeletons.
-        startSkeletons();
-        File f = new File(root_dir);
-        File[] files;
-        List<File> fi = new ArrayList<>();
-        fi = listFilesForFolder(f, fi);
-        files = fi.toArray(new File[fi.size()]);
-        String[] files_string = new String[files.length];
-        String[] delete_files_string = new String[files.length];
-
+        StartupScan scan = StartupScan.fromProperties();
 
-        // Make sure the root directory is removed from each file path
-        for(int i = 0; i < files.length; i++)
-        {
-            files_string[i] = files[i].toString().replace(root_dir, "");
-        }
+        // Register the storage server with the naming server, which answers with the files it already has.
+        StartupScan.Duplicates duplicates = register(this.NAMING_PORT, scan);
 
-        // Register the storage server with the naming server.
-        HttpResponse<String> response = register(gson, this.NAMING_PORT, files_string);
-        delete_files_string = gson.fromJson(response.body(), FilesReturn.class).files;
-        File[] delete_files = new File[delete_files_string.length];
+        // Remove the duplicates, and the directories they leave empty, in one pass.
+        scan.delete(new File(root_dir).toPath(), duplicates, replicator, checksums);
 
-        // Looping across the returned files from Naming Server in order to remove the duplicates.
-        for(int i = 0; i < delete_files_string.length; i++)
-        {
-            delete_files[i] = new File(root_dir + delete_files_string[i]);
-            boolean a = delete_files[i].delete();
-            String dir = delete_files[i].getParent();
-            File dirfile = new File(dir);
-            // Whenever the number of files in the directory become 0, we have to make sure that the directory is also
-            // deleted
-            while (dirfile.list().length == 0)
-            {
-                a = dirfile.delete();
-                String d = dirfile.getParent();
-                dirfile = new File(d);
-            }
-        }
+        // Only now are the requests waiting on the bound ports served.
+        startSkeletons();
         return new ServerInfo(STORAGE_IP, client_skeleton.getAddress().getPort());
     }
 
@@ -181,6 +236,8 @@ public class StorageServer
         this.size();
         this.read();
         this.write();
+        this.delta();
+        this.checksums();
     }
 
     /** Add APIs supported by command skeleton. */
@@ -189,6 +246,8 @@ public class StorageServer
         this.create();
         this.delete();
         this.copy();
+        this.invalidate();
+        this.stats();
     }
 
     public static void main(String[] args) throws FileNotFoundException, IOException, TestFailed
@@ -225,12 +284,12 @@ public class StorageServer
                         return;
                     }
                     try {
-                        String path = root_dir + filepath;
-                        File f = new File(path);
-
                         // Code to verify if the path is a file and exists. If not then
-                        // API tells us to return FileNotFoundException.
-                        if (!f.exists() || f.isDirectory()) {
+                        // API tells us to return FileNotFoundException. A cached channel answers both.
+                        FileChannelCache.Handle handle;
+                        try {
+                            handle = this.openFile(filepath);
+                        } catch (FileNotFoundException e) {
                             returnCode = 404;
                             respText.put("exception_type", "FileNotFoundException");
                             respText.put("exception_info", "FileNotFoundException: File/path not found.");
@@ -241,8 +300,14 @@ public class StorageServer
 
                         // Returning a 200 OK, if none of the exceptions are raised along with the
                         // size for the path passed.
-                        long length = f.length();
-                        respText.put("size", String.valueOf(length));
+                        // The version lets a copy that failed part way tell whether the file changed since.
+                        try {
+                            long length = handle.channel().size();
+                            respText.put("size", String.valueOf(length));
+                            respText.put("version", String.valueOf(Replicator.version(new File(this.localPath(filepath)))));
+                        } finally {
+                            open_files.release(handle);
+                        }
                         returnCode = 200;
                     } catch (Exception e) {
                         e.printStackTrace();
@@ -264,11 +329,16 @@ public class StorageServer
         }));
     }
 
-    /** Responsible for reading the data from a file placed on a storage server */
+    /** Responsible for reading the data from a file placed on a storage server. A POST takes and returns JSON with
+     * the data in Base64; a GET is the binary variant, see readStream. */
     public void read()
     {
         this.client_skeleton.createContext("/storage_read", (exchange ->
         {
+            if ("GET".equals(exchange.getRequestMethod())) {
+                this.readStream(exchange);
+                return;
+            }
             System.out.flush();
             HashMap<String, String> respText = new HashMap<String, String>();
             String jsonString = "";
@@ -280,11 +350,12 @@ public class StorageServer
                     // Reading the HTTP Exchange into a hashmap from which individual values can
                     // be extracted.
                     InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
+                    JsonObject body = JsonParser.parseReader(isr).getAsJsonObject();
                     Map<String, Object> map = new HashMap<String, Object>();
-                    map = (Map<String, Object>) gson.fromJson(isr, map.getClass());
+                    map = (Map<String, Object>) gson.fromJson(body, map.getClass());
                     String filepath = (String) map.get("path");
-                    Double offset = (Double) map.get("offset");
-                    Double length = (Double) map.get("length");
+                    Long offset = longField(body, "offset");
+                    Long length = longField(body, "length");
 
                     // If the filepath is null, the API states that we must pass IllegalArgumentException
                     if (filepath.equals("") || filepath == null || filepath.equals("null")) {
@@ -307,10 +378,11 @@ public class StorageServer
                     }
 
                     // Code to verify if the path is a file and exists. If not then
-                    // API tells us to return FileNotFoundException.
-                    String path = root_dir + filepath;
-                    File f = new File(path);
-                    if (!f.exists() || f.isDirectory()) {
+                    // API tells us to return FileNotFoundException. A cached channel answers both.
+                    FileChannelCache.Handle handle;
+                    try {
+                        handle = this.openFile(filepath);
+                    } catch (FileNotFoundException e) {
                         returnCode = 404;
                         respText.put("exception_type", "FileNotFoundException");
                         respText.put("exception_info", "FileNotFoundException: File/path not found.");
@@ -319,25 +391,64 @@ public class StorageServer
                         return;
                     }
 
+                    // The data goes back in a single JSON string, so it has to fit in one array. Larger ranges
+                    // are read with the binary variant.
+                    if (length > MAX_JSON_READ) {
+                        open_files.release(handle);
+                        this.generateExceptionAndClose(exchange, "IllegalArgumentException", "Length too large for a JSON read, use GET /storage_read.");
+                        return;
+                    }
+
                     // We dont want to outshoot the total length of the file when we go from
                     // offset till the amount that has been asked to be read. So in this case,
                     // We are checking if the values actually are within bounds. Else IndexOutOfBoundsException.
-                    FileInputStream fstream = new FileInputStream(f);
-                    if ((offset.intValue() + length.intValue()) <= fstream.available())
+                    // Offsets are 64-bit and the read is positional, so it only touches the bytes asked for.
+                    MappedFilePool.Region region = null;
+                    try
                     {
-                        byte[] bytes = new byte[length.intValue()];
-                        fstream.read(bytes, offset.intValue(), length.intValue());
-                        String str = Base64.getEncoder().encodeToString(bytes);
-                        respText.put("data", str);
-                        fstream.close();
-                    } else {
-                        returnCode = 404;
-                        respText.put("exception_type", "IndexOutOfBoundsException");
-                        respText.put("exception_info", "IndexOutOfBoundsException: Offset/Length Index is negative/out of bounds.");
-                        fstream.close();
-                        jsonString = gson.toJson(respText);
-                        this.generateResponseAndClose(exchange, jsonString, returnCode);
-                        return;
+                        region = mapped_files == null ? null : mapped_files.acquire(this.localPath(filepath));
+                        if (region != null)
+                        {
+                            long position = offset.longValue();
+                            if (position > region.size() || length.longValue() > region.size() - position)
+                            {
+                                this.generateExceptionAndClose(exchange, "IndexOutOfBoundsException", "Offset/Length Index is negative/out of bounds.");
+                                return;
+                            }
+                            if (!this.verifyRead(exchange, filepath, handle.channel(), position, length.longValue())) {
+                                return;
+                            }
+                            byte[] bytes = new byte[length.intValue()];
+                            region.slice(position, bytes.length).get(bytes);
+                            respText.put("data", Base64.getEncoder().encodeToString(bytes));
+                        }
+                        else
+                        {
+                            FileChannel channel = handle.channel();
+                            long position = offset.longValue();
+                            long size = channel.size();
+                            if (position > size || length.longValue() > size - position)
+                            {
+                                this.generateExceptionAndClose(exchange, "IndexOutOfBoundsException", "Offset/Length Index is negative/out of bounds.");
+                                return;
+                            }
+                            if (!this.verifyRead(exchange, filepath, channel, position, length.longValue())) {
+                                return;
+                            }
+                            ByteBuffer bytes = ByteBuffer.allocate(length.intValue());
+                            while (bytes.hasRemaining()) {
+                                int read = channel.read(bytes, position + bytes.position());
+                                if (read < 0) {
+                                    throw new EOFException("File/path shrank while being read.");
+                                }
+                            }
+                            respText.put("data", Base64.getEncoder().encodeToString(bytes.array()));
+                        }
+                    } finally {
+                        if (region != null) {
+                            mapped_files.release(region);
+                        }
+                        open_files.release(handle);
                     }
 
                 } catch (Exception e) {
@@ -360,11 +471,16 @@ public class StorageServer
         }));
     }
 
-    /** Responsible for writing into a file on the storage server */
+    /** Responsible for writing into a file on the storage server. A POST takes JSON with the data in Base64; a PUT is
+     * the binary variant, see writeStream. */
     public void write()
     {
         this.client_skeleton.createContext("/storage_write", (exchange ->
         {
+            if ("PUT".equals(exchange.getRequestMethod())) {
+                this.writeStream(exchange);
+                return;
+            }
             HashMap<String, String> respText = new HashMap<String, String>();
             String jsonString = "";
             int returnCode = 200;
@@ -375,10 +491,11 @@ public class StorageServer
                     // Reading the HTTP Exchange into a hashmap from which individual values can
                     // be extracted.
                     InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
+                    JsonObject body = JsonParser.parseReader(isr).getAsJsonObject();
                     Map<String, Object> map = new HashMap<String, Object>();
-                    map = (Map<String, Object>) gson.fromJson(isr, map.getClass());
+                    map = (Map<String, Object>) gson.fromJson(body, map.getClass());
                     String filepath = (String) map.get("path");
-                    Double offset = (Double) map.get("offset");
+                    Long offset = longField(body, "offset");
                     String data = (String) map.get("data");
 
                     // NullPointerException check with the data field in the hashmap.
@@ -402,7 +519,7 @@ public class StorageServer
                     }
 
                     // Negative values for offset must raise IndexOutOfBoundsException.
-                    if (offset.intValue() < 0) {
+                    if (offset < 0) {
                         returnCode = 404;
                         respText.put("exception_type", "IndexOutOfBoundsException");
                         respText.put("exception_info", "IndexOutOfBoundsException: Offset/Length Index is negative/out of bounds.");
@@ -412,10 +529,11 @@ public class StorageServer
                     }
 
                     // Code to verify if the path is a file and exists. If not then
-                    // API tells us to return FileNotFoundException.
-                    String path = root_dir + filepath;
-                    File f = new File(path);
-                    if (!f.exists() || f.isDirectory()) {
+                    // API tells us to return FileNotFoundException. A cached channel answers both.
+                    FileChannelCache.Handle handle;
+                    try {
+                        handle = this.openFile(filepath);
+                    } catch (FileNotFoundException e) {
                         returnCode = 404;
                         respText.put("exception_type", "FileNotFoundException");
                         respText.put("exception_info", "FileNotFoundException: File/path not found.");
@@ -423,18 +541,25 @@ public class StorageServer
                         this.generateResponseAndClose(exchange, jsonString, returnCode);
                         return;
                     }
-                    FileOutputStream ostream = null;
-                    ostream = new FileOutputStream(f, true);
-
-                    // Moving to the position of the offset before writing.
-                    RandomAccessFile aFile = new RandomAccessFile(path, "rw");
-                    FileChannel fchannel = aFile.getChannel();
+                    // Writing at the position of the offset.
                     ByteBuffer bb = ByteBuffer.wrap(Base64.getDecoder().decode(data));
-                    fchannel.position(offset.intValue());
-                    fchannel.write(bb);
+                    try {
+                        FileChannel fchannel = handle.channel();
+                        try {
+                            long position = offset.longValue();
+                            while (bb.hasRemaining()) {
+                                position += fchannel.write(bb, position);
+                            }
+                        } finally {
+                            // Also when a write fails part way, whatever of the range reached the file is checksummed,
+                            // so that reads of those blocks do not find them corrupt.
+                            checksums.update(this.localPath(filepath), fchannel, offset.longValue(), bb.capacity());
+                        }
+                    } finally {
+                        open_files.release(handle);
+                        this.invalidateMapped(this.localPath(filepath));
+                    }
                     respText.put("success", "true");
-                    ostream.close();
-                    fchannel.close();
                 } catch (Exception e) {
                     e.printStackTrace();
                     returnCode = 404;
@@ -486,6 +611,8 @@ public class StorageServer
                     String fil = temp.getName();
                     boolean flagdir = new File(dir).mkdirs();
                     boolean flag = new File(path).createNewFile();
+                    if (flag)
+                        checksums.created(this.localPath(filepath));
 
                     // File creation will lead to a True value of the flag.
                     if (flag)
@@ -564,6 +691,8 @@ public class StorageServer
                         flag = deleteDir(delete_files);
                     } else {
                         flag = delete_files.delete();
+                        replicator.discard(delete_files);
+                        checksums.remove(delete_files.getPath());
                         String dir = delete_files.getParent();
                         File dirfile = new File(dir);
                         while (dirfile.list().length == 0)
@@ -573,6 +702,7 @@ public class StorageServer
                             dirfile = new File(d);
                         }
                     }
+                    this.invalidateFile(delete_files.getPath());
 
                     // If the delete function returns true, then the success is true.
                     if (flag)
@@ -641,7 +771,7 @@ public class StorageServer
                     // but the size of the file which needs to be read. This can be got using the Storage_API.
                     Map<String, Object> sendText = new HashMap<String, Object>();
                     sendText.put("path", filepath);
-                    HttpClient client = HttpClient.newHttpClient();
+                    SharedHttpClient client = SharedHttpClient.get();
 
                     HttpRequest request = HttpRequest.newBuilder()
                             .uri(URI.create("http://"+serverIp+":" + serverPort.intValue() + "/storage_size"))
@@ -651,7 +781,8 @@ public class StorageServer
                     HttpResponse<String> response;
                     try
                     {
-                        response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                        // Only asks for the size, so it may be sent twice.
+                        response = client.send(request, HttpResponse.BodyHandlers.ofString(), true);
                     }
                     catch (Throwable t)
                     {
@@ -664,53 +795,16 @@ public class StorageServer
                         return;
                     } else {
 
-                        // If the values don't return any exception, then we can go ahead and read the data from the
-                        // file using the storage_read API. Here we want to read the entire file which is why we keep
-                        // the offset as 0.0 and the length = size of the file.
-                        sendText.put("offset", 0.0);
+                        // If the values don't return any exception, then we can go ahead and fetch the file in chunks
+                        // with the binary storage_read. The copy goes to a temporary file that is renamed over the old
+                        // one at the end, so the old file is never truncated under a reader.
                         Map<String, String> temp = new HashMap<String,String>();
                         temp = (Map<String, String>) gson.fromJson(response.body(), temp.getClass());
-                        sendText.put("length", new Double(temp.get("size")));
-                        HttpRequest request2 = HttpRequest.newBuilder()
-                                .uri(URI.create("http://"+serverIp+":" + serverPort.intValue() + "/storage_read"))
-                                .setHeader("Content-Type", "application/json")
-                                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(sendText)))
-                                .build();
-                        HttpResponse<String> response2;
-                        try
-                        {
-                            response2 = client.send(request2, HttpResponse.BodyHandlers.ofString());
-                        }
-                        catch (Throwable t)
-                        {
-                            throw new TestFailed("unable to send request to naming server", t);
-                        }
-
-                        // With the response from reading having the data which needs to be written to the file,
-                        // we go ahead and write using the FileOutputStream object. We cannot use the getStorage API
-                        // because we need to write locally. So we create a new file (and a new directory, if the
-                        // directory is not present) and then go ahead and write.
-                        Map<String, Object> tempread = new HashMap<String,Object>();
-                        tempread = (Map<String, Object>) gson.fromJson(response2.body(), tempread.getClass());
-                        byte[] byte_data_write = Base64.getDecoder().decode((String) tempread.get("data"));
-                        String decodedString = new String(byte_data_write);
+                        long size = Long.parseLong(temp.get("size"));
+                        long version = Long.parseLong(temp.get("version"));
                         File newFile = new File(root_dir+filepath);
-                        String newDirectory = newFile.getParent();
-                        if (!new File(newDirectory).exists())
-                        {
-                            new File(newDirectory).mkdirs();
-                        }
-                        if (!newFile.exists()) {
-                            newFile.createNewFile();
-                        }
-                        try (FileOutputStream outputStream = new FileOutputStream(newFile))
-                        {
-                            outputStream.write(byte_data_write);
-                            outputStream.flush();
-                            outputStream.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
+                        replicator.fetch(serverIp, serverPort.intValue(), filepath, size, version, newFile);
+                        this.invalidateFile(newFile.getPath());
 
                         respText.put("success", "true");
 
@@ -733,6 +827,424 @@ public class StorageServer
         }));
     }
 
+    /** Marks a replica out of date instead of deleting it: POST /storage_invalidate with {path}. The file is no longer
+     * served or listed, but is kept so that the next storage_copy of it only fetches what changed. */
+    public void invalidate()
+    {
+        this.command_skeleton.createContext("/storage_invalidate", (exchange ->
+        {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                this.generateResponseAndClose(exchange, "", 404);
+                return;
+            }
+            try {
+                PathRequest request = gson.fromJson(new InputStreamReader(exchange.getRequestBody(), "utf-8"),
+                                                    PathRequest.class);
+                if (request == null || request.path == null || request.path.equals("") || request.path.equals("/")) {
+                    this.generateExceptionAndClose(exchange, "IllegalArgumentException", "File/path invalid.");
+                    return;
+                }
+                File replica = new File(root_dir + request.path);
+                boolean retired = replicator.retire(replica);
+                this.invalidateFile(replica.getPath());
+                this.generateResponseAndClose(exchange, gson.toJson(new BooleanReturn(retired)), 200);
+            } catch (Exception e) {
+                e.printStackTrace();
+                this.generateExceptionAndClose(exchange, "IllegalArgumentException", "File/path invalid.");
+            }
+        }));
+    }
+
+    /** Serves delta copies of files to servers with a stale replica: POST /storage_delta?path=...&block_size=... with
+     * the signatures of the stale replica as the body. With checksums=true, the body is instead the length of the stale
+     * replica and its block checksums, which are compared with the file's own. The response is the delta, see
+     * DeltaSync. */
+    public void delta()
+    {
+        this.client_skeleton.createContext("/storage_delta", (exchange ->
+        {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                this.generateResponseAndClose(exchange, "", 404);
+                return;
+            }
+            Map<String, String> query = parseQuery(exchange);
+            String filepath = query.get("path");
+            boolean compare = "true".equals(query.get("checksums"));
+            int blockSize;
+            try {
+                blockSize = Integer.parseInt(query.getOrDefault("block_size", ""));
+            } catch (NumberFormatException e) {
+                blockSize = 0;
+            }
+            if (filepath == null || filepath.equals("") || blockSize <= 0
+                    || (compare && blockSize != BlockChecksums.BLOCK_SIZE)) {
+                this.generateExceptionAndClose(exchange, "IllegalArgumentException", "File/path or block size invalid.");
+                return;
+            }
+            byte[] signatures = exchange.getRequestBody().readAllBytes();
+            if (signatures.length % (compare ? Long.BYTES : DeltaSync.SIGNATURE_SIZE) != 0 || (compare && signatures.length == 0)) {
+                this.generateExceptionAndClose(exchange, "IllegalArgumentException", "Signatures malformed.");
+                return;
+            }
+
+            FileChannelCache.Handle handle;
+            try {
+                handle = this.openFile(filepath);
+            } catch (FileNotFoundException e) {
+                this.generateExceptionAndClose(exchange, "FileNotFoundException", "File/path not found.");
+                return;
+            }
+            try {
+                long[] entries = null;
+                if (compare) {
+                    entries = checksums.entries(this.localPath(filepath), handle.channel());
+                    if (entries == null) {
+                        this.generateExceptionAndClose(exchange, "FileNotFoundException", "No checksums for file/path.");
+                        return;
+                    }
+                }
+                // The length of the delta is not known until it has been sent, so it goes out chunked.
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream output = exchange.getResponseBody()) {
+                    if (compare) {
+                        ByteBuffer stale = ByteBuffer.wrap(signatures);
+                        long length = stale.getLong();
+                        long[] staleEntries = new long[stale.remaining() / Long.BYTES];
+                        stale.asLongBuffer().get(staleEntries);
+                        DeltaSync.delta(handle.channel(), entries, staleEntries, length, blockSize,
+                                        new BufferedOutputStream(output));
+                    } else {
+                        DeltaSync.delta(handle.channel(), signatures, blockSize, new BufferedOutputStream(output));
+                    }
+                }
+            } finally {
+                open_files.release(handle);
+                exchange.close();
+            }
+        }));
+    }
+
+    /** Serves the block checksums of a file: GET /storage_checksums?path=... returns the length of the file the
+     * checksums describe, then the entry of each block, as big-endian longs. See BlockChecksums. Files without
+     * checksums are reported as not found. */
+    public void checksums()
+    {
+        this.client_skeleton.createContext("/storage_checksums", (exchange ->
+        {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                this.generateResponseAndClose(exchange, "", 404);
+                return;
+            }
+            String filepath = parseQuery(exchange).get("path");
+            if (filepath == null || filepath.equals("")) {
+                this.generateExceptionAndClose(exchange, "IllegalArgumentException", "File/path invalid.");
+                return;
+            }
+
+            FileChannelCache.Handle handle;
+            try {
+                handle = this.openFile(filepath);
+            } catch (FileNotFoundException e) {
+                this.generateExceptionAndClose(exchange, "FileNotFoundException", "File/path not found.");
+                return;
+            }
+            try {
+                long size = handle.channel().size();
+                long[] entries = checksums.entries(this.localPath(filepath), handle.channel());
+                if (entries == null) {
+                    this.generateExceptionAndClose(exchange, "FileNotFoundException", "No checksums for file/path.");
+                    return;
+                }
+                ByteBuffer body = ByteBuffer.allocate((entries.length + 1) * Long.BYTES);
+                body.putLong(size);
+                body.asLongBuffer().put(entries);
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.sendResponseHeaders(200, body.capacity());
+                try (OutputStream output = exchange.getResponseBody()) {
+                    output.write(body.array());
+                }
+            } finally {
+                open_files.release(handle);
+                exchange.close();
+            }
+        }));
+    }
+
+    /** Reports counters of the storage server's caches: GET /storage_stats returns them as JSON, grouped by cache. */
+    public void stats()
+    {
+        this.command_skeleton.createContext("/storage_stats", (exchange ->
+        {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                this.generateResponseAndClose(exchange, "", 404);
+                return;
+            }
+            Map<String, Object> stats = new LinkedHashMap<String, Object>();
+            stats.put("channels", open_files.statistics());
+            stats.put("replication", replicator.statistics());
+            stats.put("checksums", checksums.statistics());
+            this.generateResponseAndClose(exchange, gson.toJson(stats), 200);
+        }));
+    }
+
+    /** Binary variant of storage_read: GET /storage_read?path=...&offset=...&length=...
+     * The offset defaults to 0 and the length to the rest of the file. The bytes are sent as application/octet-stream
+     * straight from the file channel to the response, so the memory used does not grow with the length read. Errors
+     * are reported in JSON, the same way as the JSON variant reports them. */
+    private void readStream(HttpExchange exchange) throws IOException
+    {
+        Map<String, String> query = parseQuery(exchange);
+        String filepath = query.get("path");
+        if (filepath == null || filepath.equals("") || filepath.equals("null")) {
+            this.generateExceptionAndClose(exchange, "IllegalArgumentException", "File/path invalid.");
+            return;
+        }
+
+        long offset;
+        long length;
+        try {
+            offset = Long.parseLong(query.getOrDefault("offset", "0"));
+            length = query.containsKey("length") ? Long.parseLong(query.get("length")) : -1;
+        } catch (NumberFormatException e) {
+            this.generateExceptionAndClose(exchange, "IllegalArgumentException", "Offset/Length is not a number.");
+            return;
+        }
+        if (offset < 0 || (length < 0 && query.containsKey("length"))) {
+            this.generateExceptionAndClose(exchange, "IndexOutOfBoundsException", "Offset/Length Index is negative/out of bounds.");
+            return;
+        }
+
+        FileChannelCache.Handle handle;
+        try {
+            handle = this.openFile(filepath);
+        } catch (FileNotFoundException e) {
+            this.generateExceptionAndClose(exchange, "FileNotFoundException", "File/path not found.");
+            return;
+        }
+
+        MappedFilePool.Region region = null;
+        try {
+            long checked = length < 0 ? handle.channel().size() - offset : length;
+            if (!this.verifyRead(exchange, filepath, handle.channel(), offset, checked)) {
+                return;
+            }
+            region = mapped_files == null ? null : mapped_files.acquire(this.localPath(filepath));
+            if (region != null) {
+                this.readMapped(exchange, region, offset, length);
+                return;
+            }
+
+            FileChannel channel = handle.channel();
+            long size = channel.size();
+            if (length < 0 && offset <= size) {
+                length = size - offset;
+            }
+            if (offset > size || length > size - offset) {
+                this.generateExceptionAndClose(exchange, "IndexOutOfBoundsException", "Offset/Length Index is negative/out of bounds.");
+                return;
+            }
+
+            // A length of -1 tells the server there is no body; 0 would mean a chunked one.
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, length == 0 ? -1 : length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                WritableByteChannel target = Channels.newChannel(output);
+                long position = offset;
+                long end = offset + length;
+                while (position < end) {
+                    long sent = channel.transferTo(position, end - position, target);
+                    if (sent <= 0) {
+                        // The file was truncated under us. The response is cut short, which the client sees.
+                        throw new EOFException("File/path shrank while being read.");
+                    }
+                    position += sent;
+                }
+            }
+        } finally {
+            if (region != null) {
+                mapped_files.release(region);
+            }
+            open_files.release(handle);
+            exchange.close();
+        }
+    }
+
+    /** Sends a range of a mapped file for readStream. The region is only read here; the caller releases it. */
+    private void readMapped(HttpExchange exchange, MappedFilePool.Region region, long offset, long length) throws IOException
+    {
+        long size = region.size();
+        if (length < 0 && offset <= size) {
+            length = size - offset;
+        }
+        if (offset > size || length > size - offset) {
+            this.generateExceptionAndClose(exchange, "IndexOutOfBoundsException", "Offset/Length Index is negative/out of bounds.");
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(200, length == 0 ? -1 : length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            WritableByteChannel target = Channels.newChannel(output);
+            ByteBuffer range = region.slice(offset, (int) length);
+            while (range.hasRemaining()) {
+                target.write(range);
+            }
+        }
+    }
+
+    /** Returns the path of a file in the local file system, in the form the caches are keyed by. */
+    private String localPath(String filepath)
+    {
+        return new File(root_dir + filepath).getPath();
+    }
+
+    /** Returns the cached channel of a file, which must be released.
+     *
+     * @throws FileNotFoundException If the file does not exist or is a directory. */
+    private FileChannelCache.Handle openFile(String filepath) throws IOException
+    {
+        return open_files.acquire(this.localPath(filepath));
+    }
+
+    /** Drops the mapping of a file, or of the files under a directory, once it has been changed or removed. */
+    private void invalidateMapped(String path)
+    {
+        if (mapped_files != null) {
+            mapped_files.invalidate(path);
+        }
+    }
+
+    /** Drops the open channel, the mapping and the open checksums of a file, or of the files under a directory, once
+     * it has been removed or replaced. */
+    private void invalidateFile(String path)
+    {
+        open_files.invalidate(path);
+        checksums.invalidate(path);
+        this.invalidateMapped(path);
+    }
+
+    /** Checks the blocks of a range about to be read against their checksums, if reads are checked. A block that does
+     * not match is reported to the client as an IOException.
+     *
+     * @return false if the range is corrupt, and the response has been sent. */
+    private boolean verifyRead(HttpExchange exchange, String filepath, FileChannel channel, long offset, long length) throws IOException
+    {
+        if (!checksums.verifiesReads()) {
+            return true;
+        }
+        try {
+            checksums.verify(this.localPath(filepath), channel, offset, length);
+            return true;
+        } catch (BlockChecksums.CorruptBlockException e) {
+            this.generateExceptionAndClose(exchange, "IOException", e.getMessage());
+            return false;
+        }
+    }
+
+    /** Binary variant of storage_write: PUT /storage_write?path=...&offset=... with the data as the request body.
+     * The offset defaults to 0. The body is read in fixed-size chunks, each written at its position in the file, so
+     * a write may be larger than the heap. The response reports the bytes written and the new length of the file. */
+    private void writeStream(HttpExchange exchange) throws IOException
+    {
+        Map<String, String> query = parseQuery(exchange);
+        String filepath = query.get("path");
+        if (filepath == null || filepath.equals("") || filepath.equals("null")) {
+            this.generateExceptionAndClose(exchange, "IllegalArgumentException", "File/path invalid.");
+            return;
+        }
+
+        long offset;
+        try {
+            offset = Long.parseLong(query.getOrDefault("offset", "0"));
+        } catch (NumberFormatException e) {
+            this.generateExceptionAndClose(exchange, "IllegalArgumentException", "Offset is not a number.");
+            return;
+        }
+        if (offset < 0) {
+            this.generateExceptionAndClose(exchange, "IndexOutOfBoundsException", "Offset/Length Index is negative/out of bounds.");
+            return;
+        }
+
+        FileChannelCache.Handle handle;
+        try {
+            handle = this.openFile(filepath);
+        } catch (FileNotFoundException e) {
+            this.generateExceptionAndClose(exchange, "FileNotFoundException", "File/path not found.");
+            return;
+        }
+
+        long written = 0;
+        long attempted = 0;
+        long length;
+        try (ReadableByteChannel body = Channels.newChannel(exchange.getRequestBody())) {
+            FileChannel channel = handle.channel();
+            try {
+                ByteBuffer chunk = ByteBuffer.allocateDirect(STREAM_CHUNK_SIZE);
+                while (body.read(chunk) >= 0) {
+                    chunk.flip();
+                    while (chunk.hasRemaining()) {
+                        attempted = written + chunk.remaining();
+                        written += channel.write(chunk, offset + written);
+                    }
+                    chunk.clear();
+                }
+            } finally {
+                // Also when the client goes away mid-upload, or a write fails part way, whatever reached the file is
+                // checksummed, so that reads of those blocks do not find them corrupt. That may include part of the
+                // chunk being written when it failed.
+                checksums.update(this.localPath(filepath), channel, offset, attempted);
+            }
+            length = channel.size();
+        } finally {
+            open_files.release(handle);
+            this.invalidateMapped(this.localPath(filepath));
+        }
+
+        this.generateResponseAndClose(exchange, gson.toJson(new WriteReturn(true, written, length)), 200);
+    }
+
+    /** Returns a whole number field of a JSON request, or null if it is missing. Read into a map, it would be a
+     * Double, exact only up to 2^53; here it is read from the number as written, so every 64-bit offset is exact.
+     *
+     * @throws ArithmeticException If the number is not a whole number that fits in a long.
+     */
+    private static Long longField(JsonObject body, String name)
+    {
+        JsonElement value = body.get(name);
+        if (value == null || value.isJsonNull()) {
+            return null;
+        }
+        return value.getAsBigDecimal().longValueExact();
+    }
+
+    /** Decodes the query string of a request into a map. */
+    private static Map<String, String> parseQuery(HttpExchange exchange)
+    {
+        Map<String, String> query = new HashMap<String, String>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) {
+            return query;
+        }
+        for (String pair : raw.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                          URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    /** Sends an exception in the JSON form every API uses, with a 404. */
+    private void generateExceptionAndClose(HttpExchange exchange, String type, String info) throws IOException
+    {
+        HashMap<String, String> respText = new HashMap<String, String>();
+        respText.put("exception_type", type);
+        respText.put("exception_info", type + ": " + info);
+        this.generateResponseAndClose(exchange, gson.toJson(respText), 404);
+    }
+
     /**
      * call this function when you want to write to response and close the connection.
      */
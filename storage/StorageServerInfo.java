@@ -9,13 +9,11 @@ public class StorageServerInfo {
     private String storage_ip;
     private int client_port;
     private int command_port;
-    private String[] files;
 
-    public StorageServerInfo(String storage_ip, int client_port, int command_port, String[] files) {
+    public StorageServerInfo(String storage_ip, int client_port, int command_port) {
         this.storage_ip = storage_ip;
         this.client_port = client_port;
         this.command_port = command_port;
-        this.files = files;
     }
 
     /** Getter for the Client Port */
@@ -33,11 +31,6 @@ public class StorageServerInfo {
         return storage_ip;
     }
 
-    /** Getter for the files stored on the server */
-    public String[] getFiles() {
-        return files;
-    }
-
     /** Check if 2 servers are the same */
     public boolean verifySameServer(String other_storage_ip, int other_command_port) {
         if ((other_storage_ip.equals(this.storage_ip)) && (other_command_port == this.command_port)) {
@@ -7,6 +7,10 @@ package test;
 
  NOTE: MUST have the same port number that follow port.config!!!
  We don't need to specify IP address here because it is all 'localhost' or '127.0.0.1'
+
+ The servers only live for one test, and the test's time limit includes starting them. They are
+ started with -XX:TieredStopAtLevel=1: compiling with C1 alone costs far less CPU while a JVM
+ starts up, which matters on machines with one or two CPUs.
  </p>
  */
 public class Config {
@@ -19,7 +23,7 @@ public class Config {
      * After we run this command in the project's root directory, it should start a naming server
      * that listen on 2 ports: 8080 (for SERVICE) and 8090 (for REGISTRATION). 
     */
-    public static final String startNaming = String.format("java -cp .%sgson-2.8.6.jar " +
+    public static final String startNaming = String.format("java -XX:TieredStopAtLevel=1 -cp .%sgson-2.8.6.jar " +
             "naming.NamingServer 8080 8090", separator);
 
     /**
@@ -31,7 +35,7 @@ public class Config {
      * It will also register it self through the naming server's REGISTRATION port 8090.
      * This storage server will store all its files under the directory '/tmp/dist-systems-0'
     */
-    public static final String startStorage0 = String.format("java -cp .%sgson-2.8.6.jar " +
+    public static final String startStorage0 = String.format("java -XX:TieredStopAtLevel=1 -cp .%sgson-2.8.6.jar " +
             "storage.StorageServer 7000 7001 8090 /tmp/dist-systems-0", separator);
 
     /**
@@ -43,6 +47,6 @@ public class Config {
      * It will also register it self through the naming server's REGISTRATION port 8090.
      * This storage server will store all its files under the directory '/tmp/dist-systems-1'
     */
-    public static final String startStorage1 = String.format("java -cp .%sgson-2.8.6.jar " +
+    public static final String startStorage1 = String.format("java -XX:TieredStopAtLevel=1 -cp .%sgson-2.8.6.jar " +
             "storage.StorageServer 7010 7011 8090 /tmp/dist-systems-1", separator);
 }
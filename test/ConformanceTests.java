@@ -20,15 +20,24 @@ public class ConformanceTests
                         test.naming.RegistrationTest.class,
                         test.naming.ListingTest.class,
                         test.naming.CreationTest.class,
+                        test.naming.ConcurrencyTest.class,
                         test.naming.StubRetrievalTest.class,
                         test.naming.LockTest.class,
                         test.naming.QueueTest.class,
                         test.naming.ReplicationTest.class,
                         test.naming.DeletionTest.class,
+                        test.naming.JournalTest.class,
                         test.storage.RegistrationTest.class,
                         test.storage.AccessTest.class,
                         test.storage.DirectoryTest.class,
-                        test.storage.ReplicationTest.class
+                        test.storage.ReplicationTest.class,
+                        test.storage.StreamingTest.class,
+                        test.storage.MappedFileTest.class,
+                        test.storage.ChannelCacheTest.class,
+                        test.storage.ChunkedCopyTest.class,
+                        test.storage.DeltaSyncTest.class,
+                        test.storage.ChecksumTest.class,
+                        test.storage.StartupScanTest.class
                 };
         Series series = new Series(tests);
         SeriesReport report = series.run(5, System.out);
@@ -0,0 +1,160 @@
+package test.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import naming.NamingDirectory;
+import storage.StorageServerInfo;
+
+/** Measures the heap taken by the naming server directory tree, and the size
+    and speed of its compact binary form.
+
+    <p>
+    A tree of directories holding a hundred files each is built, and the heap
+    in use is measured before and after. The file names repeat from one
+    directory to the next, as they tend to in real file systems, while every
+    directory name is unique. The tree is then written with
+    <code>NamingDirectory.writeTo</code> and read back into a new tree, which
+    is what a restarted naming server does with its last snapshot. Results are
+    printed in bytes per entry, an entry being a file or a directory, along
+    with what the heap would take for a hundred million entries.
+
+    <p>
+    The number of files defaults to one million, and may be given as the only
+    argument. The benchmark is run with <code>make bench</code>.
+ */
+public class NamespaceFootprintBenchmark
+{
+    /** Number of files built into the tree, unless given as an argument. */
+    private static final int    DEFAULT_FILES = 1000000;
+    /** Number of files in each directory. */
+    private static final int    FILES_PER_DIRECTORY = 100;
+    /** Number of directories in each directory above the files. */
+    private static final int    DIRECTORIES_PER_DIRECTORY = 100;
+    /** Number of entries the heap is projected for. */
+    private static final long   PROJECTED_ENTRIES = 100000000L;
+
+    /** Runs the benchmark.
+
+        @param arguments The number of files, optionally.
+        @throws IOException If the tree cannot be written or read, which
+                            should not happen in memory.
+     */
+    public static void main(String[] arguments) throws IOException
+    {
+        int                 files = arguments.length > 0 ?
+                                    Integer.parseInt(arguments[0]) :
+                                    DEFAULT_FILES;
+        StorageServerInfo   server =
+            new StorageServerInfo("127.0.0.1", 7000, 7001);
+
+        long                before = usedHeap();
+        NamingDirectory     directory =
+            new NamingDirectory(new String[] {"root"});
+        long                entries = build(directory, files, server);
+        long                after = usedHeap();
+
+        // Write the tree as a snapshot would, and read it back.
+        Map<StorageServerInfo, Integer>     servers =
+            new IdentityHashMap<StorageServerInfo, Integer>();
+        servers.put(server, 0);
+
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        long                    start = System.nanoTime();
+        directory.writeTo(new DataOutputStream(bytes), servers);
+        long                    written = System.nanoTime() - start;
+
+        List<StorageServerInfo> list = Collections.singletonList(server);
+        NamingDirectory         loaded =
+            new NamingDirectory(new String[] {"root"});
+        start = System.nanoTime();
+        loaded.readFrom(new DataInputStream(
+            new ByteArrayInputStream(bytes.toByteArray())), list);
+        long                    read = System.nanoTime() - start;
+
+        check(loaded, files);
+
+        double  heap = (double)(after - before) / entries;
+
+        System.out.println("namespace of " + entries + " entries");
+        System.out.printf("    heap:             %12.1f bytes/entry%n", heap);
+        System.out.printf("    heap for %dM:   %12.1f GB%n",
+                          PROJECTED_ENTRIES / 1000000,
+                          heap * PROJECTED_ENTRIES / (1L << 30));
+        System.out.printf("    snapshot:         %12.1f bytes/entry%n",
+                          (double)bytes.size() / entries);
+        System.out.printf("    snapshot write:   %12.1f ms%n", written / 1e6);
+        System.out.printf("    snapshot read:    %12.1f ms%n", read / 1e6);
+    }
+
+    /** Builds the tree, and returns the number of entries in it. */
+    private static long build(NamingDirectory directory, int files,
+                              StorageServerInfo server)
+    {
+        long        entries = 0;
+        String[]    path = new String[3];
+
+        for(int file = 0; file < files; ++file)
+        {
+            int     leaf = file / FILES_PER_DIRECTORY;
+
+            path[0] = "top-" + leaf / DIRECTORIES_PER_DIRECTORY;
+            path[1] = "directory-" + leaf;
+            path[2] = "part-" + (file % FILES_PER_DIRECTORY);
+
+            if(file % FILES_PER_DIRECTORY == 0)
+                entries += leaf % DIRECTORIES_PER_DIRECTORY == 0 ? 2 : 1;
+
+            directory.addElement(path, server);
+            ++entries;
+        }
+
+        return entries;
+    }
+
+    /** Makes sure the tree read back holds every file, so that a broken
+        snapshot does not produce meaningless numbers. */
+    private static void check(NamingDirectory loaded, int files)
+    {
+        for(int file = 0; file < files; file += 997)
+        {
+            int         leaf = file / FILES_PER_DIRECTORY;
+            String[]    path = new String[]
+            {
+                "top-" + leaf / DIRECTORIES_PER_DIRECTORY,
+                "directory-" + leaf,
+                "part-" + (file % FILES_PER_DIRECTORY)
+            };
+
+            if(!loaded.fileExists(path))
+            {
+                throw new IllegalStateException("file " + String.join("/", path) +
+                                                " missing after reading");
+            }
+        }
+    }
+
+    /** Returns the heap in use once garbage has been collected. */
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        long    used = Long.MAX_VALUE;
+
+        // Collect until the figure settles, since one collection may leave
+        // garbage behind.
+        for(int round = 0; round < 5; ++round)
+        {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+
+        return used;
+    }
+}
@@ -0,0 +1,178 @@
+package test.bench;
+
+import naming.DirectoryNode;
+import naming.NamingDirectory;
+
+/** Measures path lookups on the naming server directory tree.
+
+    <p>
+    Two trees are built: a wide tree, with many files in a single directory,
+    and a deep tree, with one long chain of directories. For each tree, the
+    same set of lookups is timed twice: once through
+    <code>NamingDirectory.fileExists</code>, which uses the name index kept by
+    each <code>DirectoryNode</code>, and once by scanning the children of each
+    node in turn, which is how lookups used to be performed. Results are
+    printed in nanoseconds per lookup.
+
+    <p>
+    The benchmark is run with <code>make bench</code>.
+ */
+public class NamingDirectoryBenchmark
+{
+    /** Number of files in the directory of the wide tree. */
+    private static final int    WIDE_FILES = 100000;
+    /** Depth of the deep tree. */
+    private static final int    DEEP_LEVELS = 256;
+    /** Number of siblings placed beside every directory of the deep tree. */
+    private static final int    DEEP_SIBLINGS = 64;
+    /** Number of lookups timed per measurement. */
+    private static final int    LOOKUPS = 2000;
+    /** Number of untimed rounds used to warm up the JIT. The scanning lookup
+        is slow enough to need far fewer of them. */
+    private static final int    WARMUP_ROUNDS = 50;
+
+    /** Runs the benchmark.
+
+        @param arguments Ignored.
+     */
+    public static void main(String[] arguments)
+    {
+        // Wide tree: /wide/file-0 ... /wide/file-(WIDE_FILES - 1).
+        NamingDirectory     wide = new NamingDirectory(new String[] {"root"});
+        String[][]          wide_paths = new String[WIDE_FILES][];
+
+        for(int i = 0; i < WIDE_FILES; ++i)
+        {
+            wide_paths[i] = new String[] {"wide", "file-" + i};
+            wide.addElement(wide_paths[i]);
+        }
+
+        // Deep tree: /d0/d1/.../file, with DEEP_SIBLINGS files next to every
+        // directory on the way down.
+        NamingDirectory     deep = new NamingDirectory(new String[] {"root"});
+        String[]            deep_path = new String[DEEP_LEVELS + 1];
+
+        for(int level = 0; level < DEEP_LEVELS; ++level)
+        {
+            deep_path[level] = "d" + level;
+
+            for(int sibling = 0; sibling < DEEP_SIBLINGS; ++sibling)
+            {
+                String[]    sibling_path = new String[level + 1];
+                System.arraycopy(deep_path, 0, sibling_path, 0, level);
+                sibling_path[level] = "s" + sibling;
+                deep.addElement(sibling_path);
+            }
+        }
+
+        deep_path[DEEP_LEVELS] = "file";
+        deep.addElement(deep_path);
+
+        String[][]          deep_paths = new String[LOOKUPS][];
+        for(int i = 0; i < LOOKUPS; ++i)
+            deep_paths[i] = deep_path;
+
+        // Pick lookups spread over the whole wide directory, so that the
+        // linear scan cannot get lucky with files at the front.
+        String[][]          wide_lookups = new String[LOOKUPS][];
+        for(int i = 0; i < LOOKUPS; ++i)
+            wide_lookups[i] = wide_paths[(int)((long)i * 7919 % WIDE_FILES)];
+
+        report("wide (" + WIDE_FILES + " files in one directory)", wide,
+               wide_lookups);
+        report("deep (" + DEEP_LEVELS + " levels, " + DEEP_SIBLINGS +
+               " siblings per level)", deep, deep_paths);
+    }
+
+    /** Times the indexed and scanning lookups on a tree and prints the
+        results.
+
+        @param name Description of the tree.
+        @param directory The tree.
+        @param paths Paths to look up, one per lookup.
+     */
+    private static void report(String name, NamingDirectory directory,
+                               String[][] paths)
+    {
+        for(int round = 0; round < WARMUP_ROUNDS; ++round)
+            timeIndexed(directory, paths);
+        timeScanning(directory, paths);
+
+        double  indexed = timeIndexed(directory, paths);
+        double  scanning = timeScanning(directory, paths);
+
+        System.out.println(name);
+        System.out.printf("    indexed lookup:  %12.1f ns/op%n", indexed);
+        System.out.printf("    scanning lookup: %12.1f ns/op%n", scanning);
+        System.out.printf("    speedup:         %12.1fx%n", scanning / indexed);
+    }
+
+    /** Returns the mean time of a lookup through the name index, in
+        nanoseconds. */
+    private static double timeIndexed(NamingDirectory directory,
+                                      String[][] paths)
+    {
+        int     found = 0;
+        long    start = System.nanoTime();
+
+        for(String[] path : paths)
+        {
+            if(directory.fileExists(path))
+                ++found;
+        }
+
+        long    elapsed = System.nanoTime() - start;
+        check(found, paths.length);
+        return (double)elapsed / paths.length;
+    }
+
+    /** Returns the mean time of a lookup that scans the children of every
+        directory on the path, in nanoseconds. */
+    private static double timeScanning(NamingDirectory directory,
+                                       String[][] paths)
+    {
+        int     found = 0;
+        long    start = System.nanoTime();
+
+        for(String[] path : paths)
+        {
+            DirectoryNode   node = directory.getRoot();
+
+            for(String component : path)
+            {
+                DirectoryNode   next = null;
+
+                for(DirectoryNode child : node.getChildren())
+                {
+                    if(child.getData().equals(component))
+                    {
+                        next = child;
+                        break;
+                    }
+                }
+
+                node = next;
+                if(node == null)
+                    break;
+            }
+
+            if(node != null)
+                ++found;
+        }
+
+        long    elapsed = System.nanoTime() - start;
+        check(found, paths.length);
+        return (double)elapsed / paths.length;
+    }
+
+    /** Makes sure every lookup succeeded, so that the work cannot be optimized
+        away and a broken tree does not produce meaningless numbers. */
+    private static void check(int found, int expected)
+    {
+        if(found != expected)
+        {
+            throw new IllegalStateException("only " + found + " of " +
+                                            expected + " lookups succeeded");
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package test.bench;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import naming.RWLocks;
+import storage.StorageServerInfo;
+
+/** Measures contended lock throughput on a single naming server lock.
+
+    <p>
+    A number of threads repeatedly take and release the same lock, one request
+    in <code>WRITE_RATIO</code> being exclusive. The run is timed twice for
+    each thread count: once with <code>RWLocks</code>, which hands the lock to
+    the next eligible requests and wakes only them, and once with a copy of
+    the previous lock, which woke every waiter on every release. Results are
+    printed in lock operations per second, together with the number of times
+    a waiter of the previous lock woke up only to go back to waiting.
+
+    <p>
+    The benchmark is run with <code>make bench</code>.
+ */
+public class RWLocksBenchmark
+{
+    /** Numbers of contending threads to measure. */
+    private static final int[]  THREAD_COUNTS = {8, 64, 512};
+    /** Total number of lock operations per measurement, shared between the
+        threads. */
+    private static final int    OPERATIONS = 40000;
+    /** One operation in this many asks for an exclusive lock. */
+    private static final int    WRITE_RATIO = 10;
+    /** Number of untimed rounds used to warm up the JIT. */
+    private static final int    WARMUP_ROUNDS = 3;
+
+    /** Path passed to the locks. No replication is triggered for it. */
+    private static final String PATH = "/bench";
+    /** Registered storage servers passed to the locks. */
+    private static final List<StorageServerInfo>    SERVERS =
+        new ArrayList<StorageServerInfo>();
+
+    /** Source of the tickets the previous lock queues requests by. */
+    private static final AtomicLong tickets = new AtomicLong();
+
+    /** Runs the benchmark.
+
+        @param arguments Ignored.
+        @throws Exception If a worker thread fails.
+     */
+    public static void main(String[] arguments) throws Exception
+    {
+        for(int round = 0; round < WARMUP_ROUNDS; ++round)
+        {
+            time(new TargetedLock(), 8);
+            time(new NotifyAllLock(), 8);
+        }
+
+        for(int threads : THREAD_COUNTS)
+        {
+            NotifyAllLock   previous = new NotifyAllLock();
+
+            double          targeted = time(new TargetedLock(), threads);
+            double          notify_all = time(previous, threads);
+
+            System.out.println(threads + " threads");
+            System.out.printf("    targeted wakeup:  %12.0f ops/s%n", targeted);
+            System.out.printf("    notifyAll:        %12.0f ops/s%n",
+                              notify_all);
+            System.out.printf("    speedup:          %12.1fx%n",
+                              targeted / notify_all);
+            System.out.printf("    futile wakeups:   %12d (notifyAll)%n",
+                              previous.futile);
+        }
+    }
+
+    /** Returns the throughput of a lock under the given number of threads, in
+        operations per second. */
+    private static double time(final Lock lock, int threads) throws Exception
+    {
+        final int               per_thread = OPERATIONS / threads;
+        final CountDownLatch    start = new CountDownLatch(1);
+        final Exception[]       failure = new Exception[1];
+        Thread[]                workers = new Thread[threads];
+
+        for(int index = 0; index < threads; ++index)
+        {
+            final int   offset = index;
+
+            workers[index] = new Thread(() ->
+            {
+                try
+                {
+                    start.await();
+
+                    for(int op = 0; op < per_thread; ++op)
+                    {
+                        boolean exclusive = (offset + op) % WRITE_RATIO == 0;
+                        long    ticket = tickets.incrementAndGet();
+
+                        lock.acquire(ticket, exclusive);
+                        // Give up the processor while holding the lock, as a
+                        // client holding it would, so that the other threads
+                        // queue up behind it even on a single processor.
+                        Thread.yield();
+                        lock.release(exclusive);
+                    }
+                }
+                catch(Exception e)
+                {
+                    synchronized(failure)
+                    {
+                        failure[0] = e;
+                    }
+                }
+            });
+            workers[index].start();
+        }
+
+        long    begin = System.nanoTime();
+        start.countDown();
+        for(Thread worker : workers)
+            worker.join();
+        long    elapsed = System.nanoTime() - begin;
+
+        if(failure[0] != null)
+            throw failure[0];
+
+        return (double)per_thread * threads / (elapsed / 1e9);
+    }
+
+    /** Lock under measurement. Only the previous lock uses the ticket. */
+    private interface Lock
+    {
+        void acquire(long ticket, boolean exclusive) throws Exception;
+        void release(boolean exclusive) throws Exception;
+    }
+
+    /** The naming server lock. */
+    private static class TargetedLock implements Lock
+    {
+        private final RWLocks   lock = new RWLocks();
+
+        @Override
+        public void acquire(long ticket, boolean exclusive) throws Exception
+        {
+            if(exclusive)
+                lock.getWriteLock(SERVERS, PATH);
+            else
+                lock.getReadLock(SERVERS, PATH, null);
+        }
+
+        @Override
+        public void release(boolean exclusive) throws Exception
+        {
+            if(exclusive)
+                lock.releaseWriteLock();
+            else
+                lock.releaseReadLock();
+        }
+    }
+
+    /** The previous naming server lock: a FIFO queue of tickets on a single
+        monitor, with every release waking every waiter. */
+    private static class NotifyAllLock implements Lock
+    {
+        private int                 readLocks = 0;
+        private int                 writeLocks = 0;
+        private final Queue<Long>   queue = new LinkedList<Long>();
+        /** Number of wakeups after which the waiter still could not go
+            ahead. */
+        long                        futile = 0;
+
+        @Override
+        public synchronized void acquire(long ticket, boolean exclusive)
+            throws InterruptedException
+        {
+            queue.add(ticket);
+            while(writeLocks > 0 || (exclusive && readLocks > 0) ||
+                  queue.peek() != ticket)
+            {
+                wait();
+                if(writeLocks > 0 || (exclusive && readLocks > 0) ||
+                   queue.peek() != ticket)
+                {
+                    ++futile;
+                }
+            }
+
+            if(exclusive)
+                writeLocks += 1;
+            else
+                readLocks += 1;
+            queue.remove();
+            // The previous lock relied on releases to wake the next reader;
+            // without this a reader behind a granted reader waits for one.
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void release(boolean exclusive)
+        {
+            if(exclusive)
+                writeLocks -= 1;
+            else
+                readLocks -= 1;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package test.bench;
+
+import naming.BulkLoader;
+import naming.NamingDirectory;
+import storage.StorageServerInfo;
+
+/** Measures how fast the files of a registering storage server are added to
+    the naming server directory tree.
+
+    <p>
+    The same sorted file list is added to two empty trees: once through
+    <code>NamingDirectory.addElement</code>, which walks down from the root
+    for every file, and once through a <code>BulkLoader</code>, which starts
+    each walk at the deepest directory the file shares with the one before.
+    The files are spread over a tree of directories several levels deep, a
+    hundred files to a directory, and the paths are generated as they are
+    added, as they would be parsed from a streamed registration, so that the
+    list itself is never held. Results are printed in nanoseconds per file,
+    along with the time a registration of ten million files would take.
+
+    <p>
+    The number of files defaults to one million, and may be given as the only
+    argument. The benchmark is run with <code>make bench</code>.
+ */
+public class RegistrationBenchmark
+{
+    /** Number of files registered, unless given as an argument. */
+    private static final int    DEFAULT_FILES = 1000000;
+    /** Number of files in each directory. */
+    private static final int    FILES_PER_DIRECTORY = 100;
+    /** Number of directories in each directory above the files. */
+    private static final int    DIRECTORIES_PER_DIRECTORY = 10;
+    /** Number of directory levels above the files. */
+    private static final int    LEVELS = 4;
+    /** Number of files the registration time is projected for. */
+    private static final long   PROJECTED_FILES = 10000000L;
+
+    /** Runs the benchmark.
+
+        @param arguments The number of files, optionally.
+     */
+    public static void main(String[] arguments)
+    {
+        int                 files = arguments.length > 0 ?
+                                    Integer.parseInt(arguments[0]) :
+                                    DEFAULT_FILES;
+        StorageServerInfo   server =
+            new StorageServerInfo("127.0.0.1", 7000, 7001);
+
+        // Warm up both ways on a smaller list, so that neither is timed
+        // before it is compiled.
+        walk(new NamingDirectory(new String[] {"root"}), files / 10, server);
+        load(new NamingDirectory(new String[] {"root"}), files / 10, server);
+
+        long    walked = walk(new NamingDirectory(new String[] {"root"}),
+                              files, server);
+        long    loaded = load(new NamingDirectory(new String[] {"root"}),
+                              files, server);
+
+        System.out.println("registration of " + files + " files");
+        print("addElement", walked, files);
+        print("BulkLoader", loaded, files);
+    }
+
+    /** Adds every file from the root, and returns the time taken. */
+    private static long walk(NamingDirectory directory, int files,
+                             StorageServerInfo server)
+    {
+        long    start = System.nanoTime();
+
+        for(int file = 0; file < files; ++file)
+            directory.addElement(path(file), server);
+
+        return System.nanoTime() - start;
+    }
+
+    /** Adds every file through a bulk loader, and returns the time taken. */
+    private static long load(NamingDirectory directory, int files,
+                             StorageServerInfo server)
+    {
+        BulkLoader  loader = directory.bulkLoader(server);
+        long        start = System.nanoTime();
+
+        for(int file = 0; file < files; ++file)
+            loader.add(path(file));
+
+        return System.nanoTime() - start;
+    }
+
+    /** Returns the path of a file. Consecutive files are siblings, and the
+        paths come in sorted order. */
+    private static String[] path(int file)
+    {
+        String[]    path = new String[LEVELS + 1];
+        int         directory = file / FILES_PER_DIRECTORY;
+
+        path[LEVELS] = "part-" + (file % FILES_PER_DIRECTORY);
+        for(int level = LEVELS - 1; level >= 0; --level)
+        {
+            path[level] = "directory-" + (directory % DIRECTORIES_PER_DIRECTORY);
+            directory /= DIRECTORIES_PER_DIRECTORY;
+        }
+
+        return path;
+    }
+
+    /** Prints the time per file, and projected for a large registration. */
+    private static void print(String name, long nanoseconds, int files)
+    {
+        double  per_file = (double)nanoseconds / files;
+
+        System.out.printf("    %-12s %8.1f ns/file, %6.2f s for %dM files%n",
+                          name, per_file, per_file * PROJECTED_FILES / 1e9,
+                          PROJECTED_FILES / 1000000);
+    }
+}
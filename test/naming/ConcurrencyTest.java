@@ -0,0 +1,270 @@
+package test.naming;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+
+import jsonhelper.BooleanReturn;
+import jsonhelper.ExceptionReturn;
+import jsonhelper.PathRequest;
+import test.common.Path;
+import test.util.TestFailed;
+
+/** Tests that concurrent metadata requests each get their own answer.
+
+    <p>
+    This test starts a naming server and a test storage server, and creates one
+    directory per worker thread. The worker threads then run at the same time.
+    Each thread registers a storage server offering files in its own
+    directory, and then repeatedly creates new files there and asks whether the
+    new file and the directory are directories. Items checked are:
+    <ul>
+    <li>Every registration succeeds and reports no duplicates.</li>
+    <li>Every <code>createFile</code> call on a new path succeeds.</li>
+    <li><code>isDirectory</code> always reports the new file as a file and the
+        directory as a directory, no matter what the other threads are looking
+        up at the same time.</li>
+    </ul>
+ */
+public class ConcurrencyTest extends NamingTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server concurrent lookups";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {CreationTest.class};
+
+    /** Number of worker threads. */
+    private static final int    THREADS = 4;
+    /** Number of files each worker thread creates. */
+    private static final int    ITERATIONS = 10;
+    /** Number of files each worker thread registers. */
+    private static final int    REGISTERED_FILES = 10;
+
+    /** Storage server receiving the file creation requests. */
+    private TestStorageServer   storage_server;
+    /** Storage servers registered by the worker threads. */
+    private final ArrayList<TestStorageServer>  worker_servers =
+        new ArrayList<TestStorageServer>();
+    /** Client shared by all worker threads, so that the test measures the
+        naming server rather than connection setup. */
+    private HttpClient          client;
+
+    /** Number of worker threads that have exited. */
+    private int                 thread_exits = 0;
+    /** Indicates that the test is complete and any waiting threads should
+        exit. */
+    private boolean             wake_all = false;
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the directories cannot be created.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        for(int index = 0; index < THREADS; ++index)
+        {
+            Path    directory = new Path("/concurrent-" + index);
+
+            try
+            {
+                if(!call("/create_directory", directory))
+                {
+                    throw new TestFailed("unable to create directory " +
+                                         directory);
+                }
+            }
+            catch(TestFailed e) { throw e; }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to create directory " + directory,
+                                     t);
+            }
+        }
+
+        for(int index = 0; index < THREADS; ++index)
+            new Thread(new Worker(index)).start();
+
+        synchronized(this)
+        {
+            while(thread_exits < THREADS && !wake_all)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+    }
+
+    /** Sends a path request to the naming server service interface.
+
+        @param method The method to call.
+        @param path The path argument.
+        @return The <code>success</code> field of the response.
+        @throws Throwable If the request fails or the naming server responds
+                          with an exception.
+     */
+    private boolean call(String method, Path path) throws Throwable
+    {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + SERVICE_PORT + method))
+                .setHeader("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(
+                        gson.toJson(new PathRequest(path.toString()))))
+                .build();
+        HttpResponse<String> response =
+            client.send(request, HttpResponse.BodyHandlers.ofString());
+
+        if(gson.fromJson(response.body(), ExceptionReturn.class)
+               .exception_type != null)
+        {
+            throw new Throwable(response.body());
+        }
+
+        return gson.fromJson(response.body(), BooleanReturn.class).success;
+    }
+
+    /** Starts the naming server and a storage server accepting every file
+        creation request.
+
+        @throws TestFailed If the servers cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        super.initialize();
+
+        client = HttpClient.newHttpClient();
+
+        try
+        {
+            storage_server = new AcceptingStorageServer();
+            storage_server.start(REGISTRATION_PORT, new Path[0], null);
+
+            for(int index = 0; index < THREADS; ++index)
+                worker_servers.add(new TestStorageServer(this));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start storage server", t);
+        }
+    }
+
+    /** Stops all servers used in the test and unblocks the main thread. */
+    @Override
+    protected void clean()
+    {
+        super.clean();
+
+        if(storage_server != null)
+        {
+            storage_server.stop();
+            storage_server = null;
+        }
+
+        for(TestStorageServer server : worker_servers)
+            server.stop();
+        worker_servers.clear();
+
+        synchronized(this)
+        {
+            wake_all = true;
+            notifyAll();
+        }
+    }
+
+    /** Worker thread working in its own directory. */
+    private class Worker implements Runnable
+    {
+        /** Index of the worker, which selects its directory and storage
+            server. */
+        private final int       index;
+
+        /** Creates the worker.
+
+            @param index Index of the worker.
+         */
+        Worker(int index)
+        {
+            this.index = index;
+        }
+
+        /** Runs the worker. */
+        @Override
+        public void run()
+        {
+            Path    directory = new Path("/concurrent-" + index);
+
+            try
+            {
+                Path[]  offer_files = new Path[REGISTERED_FILES];
+                for(int file = 0; file < REGISTERED_FILES; ++file)
+                    offer_files[file] = new Path(directory, "registered-" + file);
+
+                worker_servers.get(index).start(REGISTRATION_PORT, offer_files,
+                                                new Path[0]);
+
+                for(int iteration = 0; iteration < ITERATIONS; ++iteration)
+                {
+                    Path    file = new Path(directory, "file-" + iteration);
+
+                    if(!call("/create_file", file))
+                        throw new TestFailed("unable to create file " + file);
+
+                    if(call("/is_directory", file))
+                    {
+                        throw new TestFailed(file + " is reported as a " +
+                                             "directory but is in fact a file");
+                    }
+
+                    if(!call("/is_directory", directory))
+                    {
+                        throw new TestFailed(directory + " is reported as a " +
+                                             "file but is in fact a directory");
+                    }
+                }
+            }
+            catch(TestFailed e)
+            {
+                failure(e);
+                return;
+            }
+            catch(Throwable t)
+            {
+                failure(new TestFailed("worker " + index + " failed", t));
+                return;
+            }
+
+            synchronized(ConcurrencyTest.this)
+            {
+                ++thread_exits;
+                ConcurrencyTest.this.notifyAll();
+            }
+        }
+    }
+
+    /** Storage server that accepts every file creation request. */
+    private class AcceptingStorageServer extends TestStorageServer
+    {
+        /** Creates the storage server. */
+        AcceptingStorageServer() throws IOException
+        {
+            super(ConcurrencyTest.this);
+        }
+
+        /** Accepts the file creation request. */
+        @Override
+        public void create()
+        {
+            this.command_skeleton.createContext("/storage_create", (exchange ->
+                sendBooleanReturn(exchange, true, 200)));
+        }
+    }
+}
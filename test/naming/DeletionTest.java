@@ -21,7 +21,8 @@ import test.util.TestFailed;
     servers to delete both files and directories, when the naming server is
     asked to do so. In order to ensure that the file is present on both storage
     servers, the naming server accesses it enough times to cause the file to be
-    replicated.
+    replicated. Finally, it checks that an empty directory, which no storage
+    server holds, is deleted without commanding any of them.
  */
 public class DeletionTest extends NamingTest
 {
@@ -42,6 +43,8 @@ public class DeletionTest extends NamingTest
     private final Path              delete_directory = new Path("/directory");
     private final Path              dummy_file = new Path("/directory/file");
     private final Path              dummy_file2 = new Path("/directory/file2");
+    // A directory created through the naming server, with nothing in it.
+    private final Path              empty_directory = new Path("/empty");
 
     /** Number of times to access the file for reading to ensure that it is
         replicated. */
@@ -86,6 +89,20 @@ public class DeletionTest extends NamingTest
 
         testDeletion(delete_file, 2);
         testDeletion(delete_directory, 2);
+
+        try
+        {
+            response = getResponse("/create_directory", SERVICE_PORT,
+                                   new PathRequest(empty_directory.toString()));
+            if(!gson.fromJson(response.body(), BooleanReturn.class).success)
+                throw new Throwable(response.body());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create " + empty_directory, t);
+        }
+
+        testDeletion(empty_directory, 0);
     }
 
     /** Commands the naming server to delete the given object, and then checks
@@ -0,0 +1,592 @@
+package test.naming;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import naming.DirectoryNode;
+import naming.NamespaceJournal;
+import naming.NamingDirectory;
+import naming.RWLocks;
+import storage.StorageServerInfo;
+import test.util.TemporaryDirectory;
+import test.util.Test;
+import test.util.TestFailed;
+
+/** Tests the journal of the naming server namespace.
+
+    <p>
+    The journal is tested directly on a naming directory, without a naming
+    server. Each check closes the journal and recovers the namespace into a
+    new directory, which must then be the same as the one that was recorded.
+    Tests include:
+    <ul>
+    <li>Files, directories, deletions, registered servers and replicas are
+        recovered from the log alone.</li>
+    <li>Changes made by many threads at once are written in fewer syncs than
+        there are changes.</li>
+    <li>A namespace recovered from a snapshot and the log after it is the same
+        as the one recorded, and the segments before the snapshot are
+        deleted.</li>
+    <li>A record torn by a crash at the end of the log is ignored.</li>
+    <li>A batch that fails partway through being written is not recovered,
+        and neither stops the batches written after it from being recovered,
+        whether the segment can be cut back or has to be given up.</li>
+    </ul>
+ */
+public class JournalTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server namespace journal";
+
+    /** Number of threads changing the namespace at once. */
+    private static final int    THREADS = 8;
+    /** Number of files each thread creates. */
+    private static final int    FILES = 50;
+
+    /** Temporary directory holding the journal. */
+    private TemporaryDirectory  temporary = null;
+    /** Directory of the journal. */
+    private File                directory;
+
+    /** Creates the journal directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            temporary = TemporaryDirectory.create("dfs-journal");
+            directory = temporary.root();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create journal directory", e);
+        }
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testLog();
+            testGroupCommit();
+            testSnapshot();
+            testTornRecord();
+            testFailedWrite(false);
+            testFailedWrite(true);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to use namespace journal", t);
+        }
+    }
+
+    /** Removes the journal. */
+    @Override
+    protected void clean()
+    {
+        if(temporary != null)
+        {
+            temporary.remove();
+            temporary = null;
+        }
+    }
+
+    /** Checks that changes are recovered from the log. */
+    private void testLog() throws Throwable
+    {
+        Namespace           namespace = new Namespace();
+        StorageServerInfo   first = namespace.register(7001);
+        StorageServerInfo   second = namespace.register(7003);
+
+        namespace.tree.addDirectory(path("/directory"));
+        namespace.tree.addDirectory(path("/directory/subdirectory"));
+        namespace.tree.addElement(path("/directory/file"), first);
+        namespace.tree.addElement(path("/other/nested/file"), second);
+        namespace.tree.addElement(path("/deleted/file"), first);
+        namespace.tree.deleteFile(path("/deleted"));
+        namespace.tree.addElement(path("/directory/subdirectory/gone"),
+                                  second);
+        namespace.tree.deleteFile(path("/directory/subdirectory/gone"));
+
+        namespace.journal.replicated("/directory/file", 7003);
+        namespace.journal.replicated("/other/nested/file", 7001);
+        namespace.journal.invalidated("/other/nested/file", 7001);
+        replicate(namespace, "/directory/file", 7003);
+        replicate(namespace, "/other/nested/file", 7001);
+        namespace.tree.restoreInvalidated(
+            namespace.tree.resolve("/other/nested/file"),
+            "/other/nested/file", 7001);
+
+        namespace.tree.sync();
+        expectRecovered(namespace, "log");
+    }
+
+    /** Checks that changes made at the same time share syncs. */
+    private void testGroupCommit() throws Throwable
+    {
+        Namespace           namespace = new Namespace();
+        StorageServerInfo   server = namespace.servers.get(0);
+        List<Thread>        threads = new ArrayList<Thread>();
+        List<Throwable>     failures = new CopyOnWriteArrayList<Throwable>();
+        long                records = namespace.journal.statistics()
+                                          .get("records");
+
+        for(int index = 0; index < THREADS; ++index)
+        {
+            String      prefix = "/group-" + index + "/file-";
+            Thread      thread = new Thread(() ->
+            {
+                try
+                {
+                    for(int file = 0; file < FILES; ++file)
+                    {
+                        namespace.tree.addElement(path(prefix + file), server);
+                        namespace.tree.sync();
+                    }
+                }
+                catch(Throwable t)
+                {
+                    failures.add(t);
+                }
+            });
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        for(Thread thread : threads)
+            thread.join();
+
+        if(!failures.isEmpty())
+            throw failures.get(0);
+
+        Map<String, Long>   statistics = namespace.journal.statistics();
+        long                logged = statistics.get("records") - records;
+
+        if(logged != THREADS * FILES)
+        {
+            throw new TestFailed("logged " + logged + " records for " +
+                                 THREADS * FILES + " files");
+        }
+
+        if(statistics.get("commits") >= THREADS * FILES)
+        {
+            throw new TestFailed("concurrent changes were synced one by one");
+        }
+
+        expectRecovered(namespace, "concurrent changes");
+    }
+
+    /** Checks recovery from a snapshot and the log written after it. */
+    private void testSnapshot() throws Throwable
+    {
+        Namespace           namespace = new Namespace();
+        StorageServerInfo   server = namespace.servers.get(1);
+
+        namespace.journal.snapshot();
+
+        if(segments().size() != 1)
+            throw new TestFailed("segments before the snapshot were kept");
+
+        // Undo and redo some of what the snapshot holds.
+        namespace.tree.deleteFile(path("/directory"));
+        namespace.tree.addDirectory(path("/directory"));
+        namespace.tree.addElement(path("/directory/after"), server);
+        namespace.tree.deleteFile(path("/group-0/file-3"));
+        StorageServerInfo   late = namespace.register(7005);
+        namespace.tree.addElement(path("/late/file"), late);
+
+        namespace.tree.sync();
+        expectRecovered(namespace, "snapshot");
+    }
+
+    /** Checks that a record torn at the end of the log is ignored. */
+    private void testTornRecord() throws Throwable
+    {
+        Namespace   namespace = new Namespace();
+        Set<String> recorded = describe(namespace);
+
+        namespace.journal.close();
+
+        File        last = segments().get(segments().size() - 1);
+        Files.write(last.toPath(), new byte[] {0, 0, 0, 40, 1, 2, 3},
+                    StandardOpenOption.APPEND);
+
+        Namespace   recovered = new Namespace();
+        if(!describe(recovered).equals(recorded))
+            throw new TestFailed("torn record changed the namespace");
+
+        recovered.tree.addElement(path("/after-tear"), null);
+        recovered.tree.sync();
+        expectRecovered(recovered, "torn record");
+    }
+
+    /** Checks that a batch that fails to be written leaves nothing in the
+        log that would keep the batches after it from being recovered.
+
+        @param stuck Whether cutting the failed batch off the segment fails
+                     too, so that the journal must go on in a new segment.
+     */
+    private void testFailedWrite(boolean stuck) throws Throwable
+    {
+        List<FailingChannel>    channels = new ArrayList<FailingChannel>();
+        Namespace               namespace = new Namespace(file ->
+        {
+            FailingChannel  channel = new FailingChannel(FileChannel.open(
+                file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+            channels.add(channel);
+            return channel;
+        });
+        String                  suffix = stuck ? "-stuck" : "-cut";
+        StorageServerInfo       server = namespace.servers.get(0);
+
+        namespace.tree.addElement(path("/before" + suffix), server);
+        namespace.tree.sync();
+
+        FailingChannel          failing = channels.get(channels.size() - 1);
+        failing.failWrite = true;
+        failing.failTruncate = stuck;
+        namespace.tree.addElement(path("/failed" + suffix), server);
+        try
+        {
+            namespace.tree.sync();
+            throw new TestFailed("failed write was reported as durable");
+        }
+        catch(IOException e) { }
+
+        namespace.tree.addElement(path("/after" + suffix), server);
+        namespace.tree.sync();
+
+        if(stuck == (channels.size() == 1))
+        {
+            throw new TestFailed("journal " + (stuck ? "kept" : "gave up") +
+                                 " the segment of the failed write");
+        }
+
+        Set<String>             expected = new TreeSet<String>();
+        for(String line : describe(namespace))
+        {
+            if(!line.contains("/failed" + suffix))
+                expected.add(line);
+        }
+
+        namespace.journal.close();
+
+        Namespace               recovered = new Namespace();
+        Set<String>             found = describe(recovered);
+        recovered.journal.close();
+
+        if(!found.equals(expected))
+        {
+            throw new TestFailed("failed write recovered as " + found +
+                                 ", expected " + expected);
+        }
+    }
+
+    /** Closes the journal, recovers the namespace into a new directory, and
+        checks that it is the same. */
+    private void expectRecovered(Namespace namespace, String change)
+        throws Throwable
+    {
+        Set<String> recorded = describe(namespace);
+
+        namespace.journal.close();
+
+        Namespace   recovered = new Namespace();
+        Set<String> found = describe(recovered);
+
+        if(!found.equals(recorded))
+        {
+            throw new TestFailed(change + " recovered as " + found +
+                                 ", expected " + recorded);
+        }
+
+        recovered.journal.close();
+    }
+
+    /** Records a finished replication in the tree, as the lock does. */
+    private static void replicate(Namespace namespace, String filepath,
+                                  int port)
+    {
+        namespace.tree.restoreReplicated(namespace.tree.resolve(filepath),
+                                         filepath, port);
+    }
+
+    /** Describes every node of the namespace, with the server of each file
+        and the replicas of each path, and every registered server. */
+    private static Set<String> describe(Namespace namespace)
+    {
+        Set<String>             description = new TreeSet<String>();
+        Deque<DirectoryNode>    nodes = new ArrayDeque<DirectoryNode>();
+        Deque<String>           paths = new ArrayDeque<String>();
+
+        for(StorageServerInfo server : namespace.servers)
+            description.add("server " + server.getCommand_port());
+
+        nodes.push(namespace.tree.getRoot());
+        paths.push("");
+        while(!nodes.isEmpty())
+        {
+            DirectoryNode       node = nodes.pop();
+            String              path = paths.pop();
+            StorageServerInfo   storage = node.getStorage();
+            RWLocks             lock = namespace.tree.lockIfPresent(node);
+
+            description.add((node.isFile ? "file " : "directory ") + path +
+                            (storage == null ? "" :
+                             " on " + storage.getCommand_port()) +
+                            " replicas " +
+                            (lock == null ? "{}" : lock.replicas()) +
+                            " stale " +
+                            (lock == null ? "{}" : lock.staleReplicas()));
+
+            for(DirectoryNode child : node.getChildren())
+            {
+                nodes.push(child);
+                paths.push(path + "/" + child.getData());
+            }
+        }
+
+        return description;
+    }
+
+    /** Returns the log segments in the journal directory, oldest first. */
+    private List<File> segments()
+    {
+        List<File>  segments = new ArrayList<File>();
+
+        for(File file : directory.listFiles())
+        {
+            if(file.getName().startsWith("journal-"))
+                segments.add(file);
+        }
+
+        segments.sort((a, b) -> Long.compare(number(a), number(b)));
+        return segments;
+    }
+
+    /** Returns the number of a log segment. */
+    private static long number(File segment)
+    {
+        String  name = segment.getName();
+        return Long.parseLong(name.substring(name.indexOf('-') + 1,
+                                             name.indexOf('.')));
+    }
+
+    /** Splits a path into its components. */
+    private static String[] path(String path)
+    {
+        return NamingDirectory.parse(path);
+    }
+
+    /** A namespace recovered from, and recorded in, the journal directory. */
+    private class Namespace
+    {
+        /** Tree of the namespace. */
+        final NamingDirectory           tree =
+            new NamingDirectory(new String[] {"root"});
+        /** Registered storage servers. */
+        final List<StorageServerInfo>   servers =
+            new CopyOnWriteArrayList<StorageServerInfo>();
+        /** Journal of the namespace. */
+        final NamespaceJournal          journal;
+
+        /** Recovers the namespace and starts recording it. */
+        Namespace() throws IOException
+        {
+            this(null);
+        }
+
+        /** Recovers the namespace and starts recording it, in segments
+            opened by the given opener, or as usual if it is null. */
+        Namespace(NamespaceJournal.Opener opener) throws IOException
+        {
+            journal = opener == null ?
+                new NamespaceJournal(directory, Long.MAX_VALUE) :
+                new NamespaceJournal(directory, Long.MAX_VALUE, opener);
+            journal.open(tree, servers);
+            tree.setJournal(journal);
+        }
+
+        /** Registers a server, as the naming server does. */
+        StorageServerInfo register(int command_port)
+        {
+            StorageServerInfo   server =
+                new StorageServerInfo("127.0.0.1", command_port - 1,
+                                      command_port);
+
+            synchronized(journal)
+            {
+                servers.add(server);
+                journal.registered(server);
+            }
+
+            return server;
+        }
+    }
+
+    /** A log segment whose next write can be made to fail after writing
+        half of what it was given, and whose truncation can be made to fail,
+        as a full or failing disk would. */
+    private static class FailingChannel extends FileChannel
+    {
+        /** Segment written to. */
+        private final FileChannel   channel;
+        /** Whether the next write fails. */
+        volatile boolean            failWrite = false;
+        /** Whether truncation fails. */
+        volatile boolean            failTruncate = false;
+
+        /** Wraps a segment. */
+        FailingChannel(FileChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException
+        {
+            if(!failWrite)
+                return channel.write(source);
+
+            failWrite = false;
+            ByteBuffer  half = source.duplicate();
+            half.limit(half.position() + half.remaining() / 2);
+            channel.write(half);
+            throw new IOException("injected write failure");
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException
+        {
+            if(failTruncate)
+                throw new IOException("injected truncate failure");
+
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException
+        {
+            return channel.read(destination);
+        }
+
+        @Override
+        public long read(ByteBuffer[] destinations, int offset, int length)
+            throws IOException
+        {
+            return channel.read(destinations, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length)
+            throws IOException
+        {
+            return channel.write(sources, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException
+        {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long position) throws IOException
+        {
+            channel.position(position);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException
+        {
+            return channel.size();
+        }
+
+        @Override
+        public void force(boolean metadata) throws IOException
+        {
+            channel.force(metadata);
+        }
+
+        @Override
+        public long transferTo(long position, long count,
+                               WritableByteChannel target) throws IOException
+        {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel source, long position,
+                                 long count) throws IOException
+        {
+            return channel.transferFrom(source, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer destination, long position)
+            throws IOException
+        {
+            return channel.read(destination, position);
+        }
+
+        @Override
+        public int write(ByteBuffer source, long position) throws IOException
+        {
+            return channel.write(source, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size)
+            throws IOException
+        {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared)
+            throws IOException
+        {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared)
+            throws IOException
+        {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException
+        {
+            channel.close();
+        }
+    }
+}
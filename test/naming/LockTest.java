@@ -17,6 +17,8 @@ import test.util.TestFailed;
     <ul>
     <li>The <code>lock</code> and <code>unlock</code> methods reject
         <code>null</code> paths and paths to non-existent objects.</li>
+    <li>The <code>unlock</code> method rejects objects that are not locked,
+        and objects unlocked a second time.</li>
     <li>A lock cannot be taken simultaneously for exclusive access by one
         thread, and any kind of access by another.</li>
     <li>A lock can be taken for shared access by two threads at once.</li>
@@ -81,6 +83,7 @@ public class LockTest extends NamingTest
     protected void perform() throws TestFailed
     {
         testBadPaths();
+        testUnheld();
 
         testSharing(root, false, root, false);
         testSharing(file1, true, file2, true);
@@ -351,6 +354,89 @@ public class LockTest extends NamingTest
         }
     }
 
+    /** Checks that the <code>unlock</code> method rejects objects that are
+        not locked the way the request says, and that rejecting them does not
+        release anything.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testUnheld() throws TestFailed
+    {
+        expectNotLocked(file1, false, "an object that was never locked");
+        expectNotLocked(root, true, "the root that was never locked");
+
+        lock(file1, false);
+        expectNotLocked(file1, true, "a shared lock as an exclusive one");
+        unlock(file1, false);
+        expectNotLocked(file1, false, "an object a second time");
+    }
+
+    /** Checks that unlocking a path is rejected. */
+    private void expectNotLocked(Path path, boolean exclusive,
+                                 String description) throws TestFailed
+    {
+        try
+        {
+            LockRequest request = new LockRequest(path.toString(), exclusive);
+            HttpResponse<String> response = getResponse("/unlock", SERVICE_PORT, request);
+            String exception_type = gson.fromJson(response.body(), ExceptionReturn.class).exception_type;
+
+            if(exception_type == null)
+            {
+                throw new TestFailed("unlock method accepted " + description);
+            }
+
+            if(DFSException.valueOf(exception_type) != DFSException.IllegalArgumentException)
+            {
+                throw new Throwable(response.body());
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unlock method threw unexpected exception " +
+                                 "when given " + description, t);
+        }
+    }
+
+    /** Locks a path. */
+    private void lock(Path path, boolean exclusive) throws TestFailed
+    {
+        try
+        {
+            LockRequest request = new LockRequest(path.toString(), exclusive);
+            HttpResponse<String> response = getResponse("/lock", SERVICE_PORT, request);
+
+            if(!response.body().isEmpty())
+            {
+                throw new Throwable(response.body());
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to lock " + path, t);
+        }
+    }
+
+    /** Unlocks a path. */
+    private void unlock(Path path, boolean exclusive) throws TestFailed
+    {
+        try
+        {
+            LockRequest request = new LockRequest(path.toString(), exclusive);
+            HttpResponse<String> response = getResponse("/unlock", SERVICE_PORT, request);
+
+            if(!response.body().isEmpty())
+            {
+                throw new Throwable(response.body());
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to unlock " + path, t);
+        }
+    }
+
     /** Initializes the test.
 
         <p>
@@ -1,11 +1,15 @@
 package test.naming;
 
 import jsonhelper.ExceptionReturn;
+import jsonhelper.FilesReturn;
 import test.DFSException;
 import test.common.Path;
 import test.util.TestFailed;
 
 import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 
 /** Tests the naming server <code>register</code> method.
@@ -15,6 +19,9 @@ import java.net.http.HttpResponse;
     <ul>
     <li>The naming server rejects <code>null</code> pointers as arguments.</li>
     <li>Duplicate registrations are rejected.</li>
+    <li>A registration cut off partway is refused, and does not keep the
+        storage server from registering again, nor make the files it sent
+        duplicates of its own.</li>
     <li>The naming server correctly commands the storage server to delete
         duplicate files.</li>
     <li>The naming server correctly commands the storage server to delete files
@@ -249,11 +256,44 @@ public class RegistrationTest extends NamingTest
             }
 
             HttpResponse<String> response;
+            // Send a registration that is cut off in the middle of its file
+            // list. The naming server should refuse it.
+            try
+            {
+                String body = "{\"storage_ip\":\"" + STORAGE_IP + "\"," +
+                    "\"client_port\":" +
+                    client_skeleton.getAddress().getPort() + "," +
+                    "\"command_port\":" +
+                    command_skeleton.getAddress().getPort() + "," +
+                    "\"files\":[\"/interrupted\",";
+                HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("http://127.0.0.1:" + REGISTRATION_PORT +
+                                    "/register"))
+                    .setHeader("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                    .build();
+
+                response = HttpClient.newHttpClient().send(request,
+                    HttpResponse.BodyHandlers.ofString());
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to send cut off registration", t);
+            }
+
+            if(response.statusCode() == 200)
+            {
+                throw new TestFailed("naming server accepted cut off " +
+                                     "registration");
+            }
+
             // Register the storage server with the naming server. This
-            // registration should succeed.
+            // registration should succeed, and the file sent by the cut off
+            // registration is the server's own, not a duplicate.
             try
             {
-                response = register(gson, REGISTRATION_PORT, new String[0]);
+                response = register(gson, REGISTRATION_PORT,
+                                    new String[] {"/interrupted"});
 
                 String exception_type = gson.fromJson(response.body(), ExceptionReturn.class).exception_type;
 
@@ -269,14 +309,23 @@ public class RegistrationTest extends NamingTest
                     }
                 }
 
+                String[] duplicates = gson.fromJson(response.body(), FilesReturn.class).files;
+                if(duplicates != null && duplicates.length != 0)
+                {
+                    throw new TestFailed("naming server took a file sent " +
+                                         "by the cut off registration for a " +
+                                         "duplicate");
+                }
             }
+            catch(TestFailed e) { throw e; }
             catch(IllegalStateException e)
             {
                 throw new TestFailed("storage server reported as already " +
                                      "registered during initial registration " +
                                      "in duplicate registration test: " +
                                      "perhaps it was mistakenly registered " +
-                                     "during the invalid reference test", e);
+                                     "during the invalid reference test or " +
+                                     "by the cut off registration", e);
             }
             catch(Throwable t)
             {
@@ -0,0 +1,203 @@
+package test.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Map;
+
+import storage.FileChannelCache;
+import test.util.TestFailed;
+
+/** Tests the cache of open file channels used by storage servers.
+
+    <p>
+    The cache is tested directly, without a storage server. Tests include:
+    <ul>
+    <li>Requests for the same file share one channel, and are counted as
+        hits; the first request for a file is counted as a miss.</li>
+    <li>Files that do not exist and directories are reported with
+        <code>FileNotFoundException</code>.</li>
+    <li>The number of channels cached stays within the bound of the cache,
+        least recently used channels being closed to make room, but never while
+        they are in use.</li>
+    <li>Invalidating a file, or a directory above it, closes its channel once
+        it is no longer in use.</li>
+    </ul>
+ */
+public class ChannelCacheTest extends LocalFileTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server open file cache";
+
+    /** Number of channels the cache under test keeps open. */
+    private static final int    MAX_OPEN = 2;
+
+    /** Cache under test. */
+    private FileChannelCache    cache;
+
+    /** Creates the <code>ChannelCacheTest</code> object. */
+    public ChannelCacheTest()
+    {
+        super("dfs-channels");
+    }
+
+    /** Creates the test files and the cache. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        super.initialize();
+
+        new File(directory, "dir").mkdirs();
+        for(String name : new String[] {"first", "second", "third",
+                                        "dir/fourth"})
+        {
+            write(new File(directory, name), new byte[0]);
+        }
+
+        cache = new FileChannelCache(MAX_OPEN);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testSharing();
+        testMissing();
+        testBound();
+        testInvalidation();
+    }
+
+    /** Checks that requests for one file share its channel, and that hits and
+        misses are counted.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testSharing() throws TestFailed
+    {
+        FileChannelCache.Handle first = acquire("first");
+        FileChannelCache.Handle again = acquire("first");
+
+        if(again.channel() != first.channel())
+            throw new TestFailed("second request for a file given another channel");
+
+        cache.release(again);
+        cache.release(first);
+
+        if(!first.channel().isOpen())
+            throw new TestFailed("cached channel closed after its last release");
+
+        expectStatistics(1, 1, 0);
+    }
+
+    /** Checks that missing files and directories are reported as not found.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testMissing() throws TestFailed
+    {
+        for(String name : new String[] {"missing", "dir"})
+        {
+            try
+            {
+                cache.acquire(new File(directory, name).getPath());
+                throw new TestFailed("cache opened " + name);
+            }
+            catch(FileNotFoundException e) { }
+            catch(TestFailed e) { throw e; }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unexpected exception when opening " +
+                                     name, t);
+            }
+        }
+    }
+
+    /** Checks that the cache keeps within its bound.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testBound() throws TestFailed
+    {
+        Map<String, Long>       before = cache.statistics();
+
+        // first is cached and unused after testSharing. Hold it while second
+        // and third are opened: second, not first, has to make room.
+        FileChannelCache.Handle first = acquire("first");
+        FileChannelCache.Handle second = acquire("second");
+        cache.release(second);
+        FileChannelCache.Handle third = acquire("third");
+
+        if(second.channel().isOpen())
+            throw new TestFailed("unused channel not closed to make room");
+
+        if(!first.channel().isOpen())
+            throw new TestFailed("channel in use closed to make room");
+
+        cache.release(first);
+        cache.release(third);
+
+        expectStatistics(before.get("hits") + 1, before.get("misses") + 2,
+                         before.get("evictions") + 1);
+    }
+
+    /** Checks that invalidating a file closes its channel once it is no longer
+        in use.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testInvalidation() throws TestFailed
+    {
+        FileChannelCache.Handle third = acquire("third");
+
+        cache.invalidate(new File(directory, "third").getPath());
+        if(!third.channel().isOpen())
+            throw new TestFailed("channel in use closed by invalidation");
+
+        cache.release(third);
+        if(third.channel().isOpen())
+            throw new TestFailed("invalidated channel not closed on release");
+
+        FileChannelCache.Handle fourth = acquire("dir/fourth");
+        cache.release(fourth);
+        cache.invalidate(new File(directory, "dir").getPath());
+
+        if(fourth.channel().isOpen())
+        {
+            throw new TestFailed("channel kept after the directory above it " +
+                                 "was invalidated");
+        }
+    }
+
+    /** Acquires the channel of a test file. */
+    private FileChannelCache.Handle acquire(String name) throws TestFailed
+    {
+        try
+        {
+            return cache.acquire(new File(directory, name).getPath());
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to open " + name, e);
+        }
+    }
+
+    /** Checks the hit, miss and eviction counters of the cache. */
+    private void expectStatistics(long hits, long misses, long evictions)
+        throws TestFailed
+    {
+        Map<String, Long>   statistics = cache.statistics();
+
+        if(statistics.get("hits") != hits ||
+           statistics.get("misses") != misses ||
+           statistics.get("evictions") != evictions)
+        {
+            throw new TestFailed("expected " + hits + " hits, " + misses +
+                                 " misses and " + evictions + " evictions, " +
+                                 "counted " + statistics);
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package test.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import storage.BlockChecksums;
+import storage.DeltaSync;
+import storage.Replicator;
+import test.util.TestFailed;
+
+/** Tests the block checksums kept by storage servers.
+
+    <p>
+    The index is tested directly on local files, and the replicator against a
+    stand-in source server that serves <code>storage_read</code> and
+    <code>storage_checksums</code>. Tests include:
+    <ul>
+    <li>Writes recompute the checksums of the blocks they touch and no others,
+        and the blocks a file grows by without being written are known without
+        being read.</li>
+    <li>Reads of intact blocks pass, a block changed behind the index's back
+        is reported as corrupt, and blocks of files without an index are passed
+        unchecked.</li>
+    <li>Comparing the checksums of two files yields a delta of the changed
+        blocks only.</li>
+    <li>A copy that receives a damaged chunk fetches it again, and keeps the
+        checksums of the file; a copy that keeps receiving damaged data
+        fails.</li>
+    </ul>
+ */
+public class ChecksumTest extends LocalFileTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server block checksums";
+
+    /** Port of the stand-in source server. */
+    private static final int    SOURCE_PORT = 7022;
+    /** Block size of the index. */
+    private static final int    BLOCK = BlockChecksums.BLOCK_SIZE;
+    /** Size of the test files. */
+    private static final int    FILE_SIZE = 10 * BLOCK + 321;
+
+    /** Contents of the file served by the stand-in source. */
+    private final byte[]        data = new byte[FILE_SIZE];
+    /** Number of ranges the source is still to damage. */
+    private volatile int        damaged_ranges = 0;
+
+    /** Index under test. */
+    private BlockChecksums      checksums;
+
+    /** Creates the <code>ChecksumTest</code> object. */
+    public ChecksumTest()
+    {
+        super("dfs-checksums");
+    }
+
+    /** Starts the stand-in source server. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        new Random(577).nextBytes(data);
+        super.initialize();
+
+        HttpServer  source = startSource(SOURCE_PORT);
+        source.createContext("/storage_read", this::serveRange);
+        source.createContext("/storage_checksums", this::serveChecksums);
+
+        checksums = new BlockChecksums(4, true);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testUpdate();
+        testVerify();
+        testDelta();
+        testCopy();
+    }
+
+    /** Checks that writes recompute only the blocks they touch.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testUpdate() throws TestFailed
+    {
+        File    file = new File(directory, "updated");
+
+        try(FileChannel channel = create(file))
+        {
+            // Write three blocks, then a few bytes across the boundary of the
+            // second and third.
+            write(file, channel, 0, Arrays.copyOf(data, 3 * BLOCK));
+            long    before = updated();
+            write(file, channel, 2 * BLOCK - 10, new byte[20]);
+            expectUpdated(before, 2, "a write across two blocks");
+
+            // Write well past the end. The blocks skipped hold zeroes, and
+            // only the block written and the old last block are read.
+            before = updated();
+            write(file, channel, 8 * BLOCK + 5, new byte[] {1, 2, 3});
+            expectUpdated(before, 1, "a write past the end");
+
+            checksums.verify(file.getPath(), channel, 0, channel.size());
+            long[]  entries = checksums.entries(file.getPath(), channel);
+
+            if(entries == null || entries.length != 9 ||
+               Arrays.stream(entries).anyMatch(entry -> entry == 0))
+            {
+                throw new TestFailed("index of a file written only through it " +
+                                     "has unknown blocks");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to write and check file", t);
+        }
+    }
+
+    /** Checks that reads find corrupt blocks, and pass unindexed ones.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testVerify() throws TestFailed
+    {
+        File    file = new File(directory, "verified");
+        File    unindexed = new File(directory, "unindexed");
+
+        try(FileChannel channel = create(file))
+        {
+            write(file, channel, 0, data);
+            Map<String, Long>   before = checksums.statistics();
+            checksums.verify(file.getPath(), channel, BLOCK + 1, 2 * BLOCK);
+
+            if(checksums.statistics().get("verified_blocks") !=
+               before.get("verified_blocks") + 3)
+            {
+                throw new TestFailed("read of three blocks not checked block " +
+                                     "by block");
+            }
+
+            // Change a byte without telling the index.
+            channel.write(ByteBuffer.wrap(new byte[] {(byte)~data[5 * BLOCK]}),
+                          5 * BLOCK);
+
+            checksums.verify(file.getPath(), channel, 0, 5 * BLOCK);
+            try
+            {
+                checksums.verify(file.getPath(), channel, 5 * BLOCK + 100, 1);
+                throw new TestFailed("corrupt block passed");
+            }
+            catch(BlockChecksums.CorruptBlockException e) { }
+
+            if(checksums.statistics().get("corrupt_blocks") !=
+               before.get("corrupt_blocks") + 1)
+            {
+                throw new TestFailed("corrupt block not counted");
+            }
+
+            Files.write(unindexed.toPath(), data);
+            try(FileChannel other = FileChannel.open(unindexed.toPath(),
+                                                     StandardOpenOption.READ))
+            {
+                long    unchecked =
+                    checksums.statistics().get("unchecked_blocks");
+                checksums.verify(unindexed.getPath(), other, 0, FILE_SIZE);
+
+                if(checksums.statistics().get("unchecked_blocks") !=
+                   unchecked + 11)
+                {
+                    throw new TestFailed("blocks of a file without an index " +
+                                         "not passed unchecked");
+                }
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to check file", t);
+        }
+    }
+
+    /** Checks that a delta found by comparing checksums sends only the blocks
+        that changed.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testDelta() throws TestFailed
+    {
+        File    old_file = new File(directory, "old");
+        File    new_file = new File(directory, "new");
+        byte[]  changed = Arrays.copyOf(data, FILE_SIZE + 1000);
+        Arrays.fill(changed, 4 * BLOCK + 7, 4 * BLOCK + 17, (byte)3);
+
+        try(FileChannel old = create(old_file);
+            FileChannel current = create(new_file))
+        {
+            write(old_file, old, 0, data);
+            write(new_file, current, 0, changed);
+
+            ByteArrayOutputStream   delta = new ByteArrayOutputStream();
+            long                    literal =
+                DeltaSync.delta(current,
+                                checksums.entries(new_file.getPath(), current),
+                                checksums.entries(old_file.getPath(), old),
+                                old.size(), BLOCK, delta);
+
+            // The changed block, and the end of the file from the old partial
+            // last block on.
+            if(literal != BLOCK + (FILE_SIZE + 1000 - 10 * BLOCK))
+            {
+                throw new TestFailed("delta by checksums sent " + literal +
+                                     " literal bytes");
+            }
+
+            FileChannel result =
+                DeltaSync.apply(new ByteArrayInputStream(delta.toByteArray()),
+                                old, BLOCK, () -> null);
+
+            if(result != old)
+                throw new TestFailed("delta by checksums not applied in place");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to apply delta by checksums", t);
+        }
+
+        expectContents(old_file, changed);
+    }
+
+    /** Checks that a copy refetches damaged chunks, and fails if they stay
+        damaged.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testCopy() throws TestFailed
+    {
+        File        replica = new File(directory, "replica");
+        Replicator  replicator = new Replicator(3 * BLOCK, 2, checksums);
+
+        damaged_ranges = 1;
+        try
+        {
+            replicator.fetch("127.0.0.1", SOURCE_PORT, "/file", FILE_SIZE, 1,
+                             replica);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("copy with a damaged chunk failed", t);
+        }
+
+        expectContents(replica, data);
+
+        try(FileChannel channel = FileChannel.open(replica.toPath(),
+                                                   StandardOpenOption.READ))
+        {
+            long[]  entries = checksums.entries(replica.getPath(), channel);
+
+            if(entries == null || entries.length != 11)
+                throw new TestFailed("copy did not keep the checksums of the file");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read checksums of copy", t);
+        }
+
+        File    failed = new File(directory, "failed");
+
+        damaged_ranges = Integer.MAX_VALUE;
+        try
+        {
+            replicator.fetch("127.0.0.1", SOURCE_PORT, "/file", FILE_SIZE, 1,
+                             failed);
+            throw new TestFailed("copy succeeded although every chunk was " +
+                                 "damaged");
+        }
+        catch(IOException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception from damaged copy", t);
+        }
+        finally
+        {
+            damaged_ranges = 0;
+        }
+
+        if(failed.exists())
+            throw new TestFailed("damaged copy moved into place");
+    }
+
+    /** Serves a range of the file, as the binary <code>storage_read</code>
+        does, damaging it if asked to. */
+    private void serveRange(HttpExchange exchange) throws IOException
+    {
+        Map<String, String> query = query(exchange);
+        int     offset = Integer.parseInt(query.get("offset"));
+        int     length = Integer.parseInt(query.get("length"));
+        byte[]  range = Arrays.copyOfRange(data, offset, offset + length);
+
+        synchronized(this)
+        {
+            if(damaged_ranges > 0)
+            {
+                damaged_ranges--;
+                range[length / 2] ^= 1;
+            }
+        }
+
+        exchange.sendResponseHeaders(200, length);
+        try(OutputStream output = exchange.getResponseBody())
+        {
+            output.write(range);
+        }
+    }
+
+    /** Serves the checksums of the file, as <code>storage_checksums</code>
+        does. */
+    private void serveChecksums(HttpExchange exchange) throws IOException
+    {
+        File    file = new File(directory, "source");
+        byte[]  body;
+
+        try(FileChannel channel = create(file))
+        {
+            write(file, channel, 0, data);
+            long[]      entries = checksums.entries(file.getPath(), channel);
+            ByteBuffer  buffer =
+                ByteBuffer.allocate((entries.length + 1) * Long.BYTES);
+            buffer.putLong(FILE_SIZE);
+            buffer.asLongBuffer().put(entries);
+            body = buffer.array();
+        }
+
+        exchange.sendResponseHeaders(200, body.length);
+        try(OutputStream output = exchange.getResponseBody())
+        {
+            output.write(body);
+        }
+    }
+
+    /** Creates an empty file with an index, and opens it. */
+    private FileChannel create(File file) throws IOException
+    {
+        FileChannel channel =
+            FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                             StandardOpenOption.TRUNCATE_EXISTING,
+                             StandardOpenOption.READ, StandardOpenOption.WRITE);
+        checksums.created(file.getPath());
+        return channel;
+    }
+
+    /** Writes to a file and updates its index, as the storage server does. */
+    private void write(File file, FileChannel channel, long offset,
+                       byte[] bytes) throws IOException
+    {
+        ByteBuffer  buffer = ByteBuffer.wrap(bytes);
+        while(buffer.hasRemaining())
+            channel.write(buffer, offset + buffer.position());
+        checksums.update(file.getPath(), channel, offset, bytes.length);
+    }
+
+    /** Returns the number of blocks whose checksums have been computed. */
+    private long updated()
+    {
+        return checksums.statistics().get("updated_blocks");
+    }
+
+    /** Checks the number of blocks a write recomputed. */
+    private void expectUpdated(long before, long expected, String write)
+        throws TestFailed
+    {
+        if(updated() - before != expected)
+        {
+            throw new TestFailed(write + " recomputed " + (updated() - before) +
+                                 " blocks, expected " + expected);
+        }
+    }
+}
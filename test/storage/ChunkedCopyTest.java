@@ -0,0 +1,258 @@
+package test.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import storage.Replicator;
+import test.util.TestFailed;
+
+/** Tests the chunked copy used by storage servers to replicate files.
+
+    <p>
+    The replicator is tested directly, against a stand-in source server that
+    serves the binary <code>storage_read</code> and counts the ranges asked
+    for. Tests include:
+    <ul>
+    <li>A file larger than one chunk is copied whole, one range request per
+        chunk.</li>
+    <li>A copy replaces an existing destination file and creates missing
+        parent directories.</li>
+    <li>A copy that fails part way leaves the destination as it was.</li>
+    <li>Retrying a failed copy fetches only the chunks the failed copy did
+        not, and leaves no temporary file or checkpoint behind.</li>
+    <li>Retrying a failed copy after the source file was rewritten, to the
+        same size, fetches every chunk again.</li>
+    </ul>
+ */
+public class ChunkedCopyTest extends LocalFileTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server chunked replication";
+
+    /** Port of the stand-in source server. */
+    private static final int    SOURCE_PORT = 7020;
+    /** Chunk size of the replicator under test. */
+    private static final int    CHUNK_SIZE = 1000;
+    /** Number of chunk streams of the replicator under test. */
+    private static final int    STREAMS = 3;
+    /** Size of the file copied: a little over 16 chunks. */
+    private static final int    FILE_SIZE = 16 * CHUNK_SIZE + 123;
+    /** Chunk at which a failing copy fails. */
+    private static final int    FAILED_CHUNK = 8;
+
+    /** Contents of the file served by the stand-in source. */
+    private volatile byte[]     data = new byte[FILE_SIZE];
+    /** Version of the file served by the stand-in source. */
+    private volatile long       version = 1;
+    /** Number of ranges read from the source. */
+    private final AtomicInteger ranges = new AtomicInteger();
+    /** Offset at which the source fails, or -1. */
+    private volatile long       failure_offset = -1;
+
+    /** Replicator under test. */
+    private Replicator          replicator;
+
+    /** Creates the <code>ChunkedCopyTest</code> object. */
+    public ChunkedCopyTest()
+    {
+        super("dfs-copy");
+    }
+
+    /** Starts the stand-in source server. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        new Random(1609).nextBytes(data);
+        super.initialize();
+
+        startSource(SOURCE_PORT).createContext("/storage_read",
+                                               this::serveRange);
+
+        replicator = new Replicator(CHUNK_SIZE, STREAMS);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testCopy();
+        testResume();
+        testChangedSource();
+    }
+
+    /** Checks that a file is copied whole, chunk by chunk, over an existing
+        file and into a new directory.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testCopy() throws TestFailed
+    {
+        File    replaced = new File(directory, "replaced");
+        File    created = new File(directory, "new/created");
+
+        write(replaced, new byte[] {1, 2, 3});
+
+        for(File destination : new File[] {replaced, created})
+        {
+            ranges.set(0);
+            fetch(destination);
+            expectContents(destination, data);
+
+            int expected = (FILE_SIZE + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            if(ranges.get() != expected)
+            {
+                throw new TestFailed("copy read " + ranges.get() + " ranges, " +
+                                     "expected one per chunk, " + expected);
+            }
+
+            expectNoTemporary(destination);
+        }
+    }
+
+    /** Checks that a failed copy leaves the destination as it was, and that
+        retrying it fetches only what is missing.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testResume() throws TestFailed
+    {
+        File    destination = new File(directory, "resumed");
+        byte[]  old_data = new byte[] {4, 5, 6};
+        int     chunks = (FILE_SIZE + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+        write(destination, old_data);
+        fetchFailing(destination);
+        expectContents(destination, old_data);
+
+        // The streams take chunks in order, so the ones before the failed
+        // chunk were fetched, and are not fetched again.
+        ranges.set(0);
+        fetch(destination);
+        expectContents(destination, data);
+
+        if(ranges.get() > chunks - FAILED_CHUNK + STREAMS)
+        {
+            throw new TestFailed("resumed copy read " + ranges.get() +
+                                 " ranges, the failed copy had fetched all " +
+                                 "but about " + (chunks - FAILED_CHUNK));
+        }
+
+        expectNoTemporary(destination);
+    }
+
+    /** Checks that a failed copy is started over, rather than resumed, when
+        the source file was rewritten since, even though its size is the
+        same.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testChangedSource() throws TestFailed
+    {
+        File    destination = new File(directory, "changed");
+        byte[]  new_data = new byte[FILE_SIZE];
+        int     chunks = (FILE_SIZE + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+        fetchFailing(destination);
+
+        new Random(1610).nextBytes(new_data);
+        data = new_data;
+        version++;
+
+        ranges.set(0);
+        fetch(destination);
+        expectContents(destination, new_data);
+
+        if(ranges.get() != chunks)
+        {
+            throw new TestFailed("copy of a changed file read " +
+                                 ranges.get() + " ranges, expected all " +
+                                 chunks + " chunks to be fetched again");
+        }
+
+        expectNoTemporary(destination);
+    }
+
+    /** Starts a copy to a destination that fails at FAILED_CHUNK. */
+    private void fetchFailing(File destination) throws TestFailed
+    {
+        failure_offset = FAILED_CHUNK * CHUNK_SIZE;
+
+        try
+        {
+            replicator.fetch("127.0.0.1", SOURCE_PORT, "/file", FILE_SIZE,
+                             version, destination);
+            throw new TestFailed("copy succeeded although a range failed");
+        }
+        catch(IOException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception from failed copy", t);
+        }
+        finally
+        {
+            failure_offset = -1;
+        }
+    }
+
+    /** Serves a range of the file, as the binary <code>storage_read</code>
+        does. */
+    private void serveRange(HttpExchange exchange) throws IOException
+    {
+        Map<String, String> query = query(exchange);
+        int     offset = Integer.parseInt(query.get("offset"));
+        int     length = Integer.parseInt(query.get("length"));
+        ranges.incrementAndGet();
+
+        try(OutputStream output = exchange.getResponseBody())
+        {
+            if(offset == failure_offset)
+            {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            exchange.sendResponseHeaders(200, length);
+            output.write(data, offset, length);
+        }
+    }
+
+    /** Copies the source file to a destination. */
+    private void fetch(File destination) throws TestFailed
+    {
+        try
+        {
+            replicator.fetch("127.0.0.1", SOURCE_PORT, "/file", FILE_SIZE,
+                             version, destination);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to copy to " + destination, t);
+        }
+    }
+
+    /** Checks that no temporary file or checkpoint was left next to a
+        destination. */
+    private void expectNoTemporary(File destination) throws TestFailed
+    {
+        for(String suffix : new String[] {Replicator.TEMPORARY_SUFFIX,
+                                          Replicator.CHECKPOINT_SUFFIX})
+        {
+            File    left = new File(destination.getParentFile(),
+                                    destination.getName() + suffix);
+
+            if(left.exists())
+                throw new TestFailed("copy left " + left + " behind");
+        }
+    }
+}
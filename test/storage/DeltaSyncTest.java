@@ -0,0 +1,238 @@
+package test.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import storage.DeltaSync;
+import storage.Replicator;
+import test.util.TestFailed;
+
+/** Tests delta copies of files to servers holding a stale replica.
+
+    <p>
+    The delta algorithm is tested directly on local files, and the replicator
+    against a stand-in source server that serves <code>storage_delta</code>.
+    Tests include:
+    <ul>
+    <li>Overwriting or appending to a file yields a delta that is applied to
+        the stale replica in place, and sends little more than the bytes
+        changed.</li>
+    <li>Inserting bytes, which moves every block after them, yields a delta
+        that is assembled in a separate file, and still sends little more
+        than the bytes inserted.</li>
+    <li>A stale replica with nothing in common with the file yields the whole
+        file.</li>
+    <li>A copy to a server holding a stale replica fetches only the delta, and
+        leaves no stale replica behind.</li>
+    </ul>
+ */
+public class DeltaSyncTest extends LocalFileTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server delta replication";
+
+    /** Port of the stand-in source server. */
+    private static final int    SOURCE_PORT = 7021;
+    /** Size of the test files. */
+    private static final int    FILE_SIZE = 200 * 1024 + 77;
+
+    /** Contents of the stale replica in each test. */
+    private final byte[]        old_data = new byte[FILE_SIZE];
+    /** Current contents of the file, served by the stand-in source. */
+    private volatile byte[]     new_data;
+
+    /** Creates the <code>DeltaSyncTest</code> object. */
+    public DeltaSyncTest()
+    {
+        super("dfs-delta");
+    }
+
+    /** Starts the stand-in source server. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        new Random(2718).nextBytes(old_data);
+        super.initialize();
+
+        startSource(SOURCE_PORT).createContext("/storage_delta",
+                                               this::serveDelta);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        int     block = DeltaSync.blockSize(FILE_SIZE);
+        byte[]  data;
+
+        // Overwrite a few bytes in the middle.
+        data = old_data.clone();
+        Arrays.fill(data, 50000, 50100, (byte)7);
+        testDelta("overwrite", data, true, 2 * block);
+
+        // Append to the end. The partial last block of the stale replica has
+        // no signature, so it is sent again.
+        data = Arrays.copyOf(old_data, FILE_SIZE + 3000);
+        testDelta("append", data, true, block + 3000);
+
+        // Insert at the start, moving every block.
+        data = new byte[FILE_SIZE + 10];
+        System.arraycopy(old_data, 0, data, 10, FILE_SIZE);
+        testDelta("insertion", data, false, 2 * block);
+
+        // Replace everything.
+        data = new byte[FILE_SIZE];
+        new Random(3141).nextBytes(data);
+        testDelta("replacement", data, true, FILE_SIZE);
+
+        testReplicator();
+    }
+
+    /** Computes the delta from the stale replica to new contents and applies
+        it, checking the result, where it was assembled, and how much was
+        sent.
+
+        @param change Description of the change, for messages.
+        @param data New contents of the file.
+        @param in_place Whether the delta is expected to be applied in
+                        place.
+        @param max_literal Most literal bytes the delta may send.
+        @throws TestFailed If the test fails.
+     */
+    private void testDelta(String change, byte[] data, boolean in_place,
+                           int max_literal) throws TestFailed
+    {
+        File    old_file = new File(directory, "old");
+        File    new_file = new File(directory, "new");
+        File    separate = new File(directory, "separate");
+
+        write(old_file, old_data);
+        write(new_file, data);
+
+        try(FileChannel old = FileChannel.open(old_file.toPath(),
+                                               StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+            FileChannel current = FileChannel.open(new_file.toPath(),
+                                                   StandardOpenOption.READ))
+        {
+            int                     block = DeltaSync.blockSize(old.size());
+            ByteArrayOutputStream   delta = new ByteArrayOutputStream();
+            long                    literal =
+                DeltaSync.delta(current, DeltaSync.signatures(old, block),
+                                block, delta);
+
+            if(literal > max_literal)
+            {
+                throw new TestFailed(change + " sent " + literal + " literal " +
+                                     "bytes, expected at most " + max_literal);
+            }
+
+            FileChannel result =
+                DeltaSync.apply(new ByteArrayInputStream(delta.toByteArray()),
+                                old, block,
+                                () -> FileChannel.open(separate.toPath(),
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING));
+
+            if((result == old) != in_place)
+            {
+                throw new TestFailed(change + " applied " +
+                                     (in_place ? "separately" : "in place") +
+                                     ", expected otherwise");
+            }
+
+            if(result != old)
+                result.close();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to apply delta for " + change, t);
+        }
+
+        expectContents(in_place ? old_file : separate, data);
+    }
+
+    /** Checks that a copy to a server with a stale replica is made by delta.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testReplicator() throws TestFailed
+    {
+        File        replica = new File(directory, "replica");
+        Replicator  replicator = new Replicator(64 * 1024, 2);
+
+        write(replica, old_data);
+        new_data = old_data.clone();
+        Arrays.fill(new_data, 100000, 100020, (byte)9);
+
+        try
+        {
+            if(!replicator.retire(replica))
+                throw new TestFailed("replica not retired");
+
+            if(replica.exists())
+                throw new TestFailed("retired replica still in place");
+
+            replicator.fetch("127.0.0.1", SOURCE_PORT, "/file",
+                             new_data.length, 1, replica);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to copy by delta", t);
+        }
+
+        expectContents(replica, new_data);
+
+        if(new File(directory, "replica" + Replicator.STALE_SUFFIX).exists())
+            throw new TestFailed("delta copy left the stale replica behind");
+
+        long    copies = replicator.statistics().get("delta_copies");
+        long    fetched = replicator.statistics().get("delta_fetched_bytes");
+
+        if(copies != 1)
+            throw new TestFailed("copy with a stale replica not made by delta");
+
+        if(fetched > 3 * DeltaSync.blockSize(FILE_SIZE))
+        {
+            throw new TestFailed("delta copy fetched " + fetched + " bytes " +
+                                 "for a 20 byte change");
+        }
+    }
+
+    /** Serves a delta of the current contents, as the storage server's
+        <code>storage_delta</code> does. */
+    private void serveDelta(HttpExchange exchange) throws IOException
+    {
+        String  query = exchange.getRequestURI().getQuery();
+        int     block = Integer.parseInt(
+            query.substring(query.indexOf("block_size=") + 11));
+        byte[]  signatures = exchange.getRequestBody().readAllBytes();
+        File    current = new File(directory, "current");
+
+        Files.write(current.toPath(), new_data);
+        exchange.sendResponseHeaders(200, 0);
+        try(FileChannel channel = FileChannel.open(current.toPath(),
+                                                   StandardOpenOption.READ);
+            OutputStream output = exchange.getResponseBody())
+        {
+            DeltaSync.delta(channel, signatures, block, output);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package test.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import test.util.TemporaryDirectory;
+import test.util.Test;
+import test.util.TestFailed;
+
+/** Base class for tests of storage server components that are run directly
+    on local files, without a storage server.
+
+    <p>
+    This class takes care of creating a temporary directory for the test files
+    on startup, and removing it on exit. Tests of copies can start a stand-in
+    source server, which is stopped on exit as well.
+ */
+abstract class LocalFileTest extends Test
+{
+    /** Name of the temporary directory, before the time it is created. */
+    private final String            name;
+    /** Temporary directory holding the test files. */
+    protected TemporaryDirectory    temporary = null;
+    /** Root of the temporary directory. */
+    protected File                  directory;
+    /** Stand-in source server, or <code>null</code> if none was started. */
+    private HttpServer              source = null;
+    /** Threads of the stand-in source server. */
+    private ExecutorService         source_threads = null;
+
+    /** Creates the test.
+
+        @param name Name of the temporary directory, such as
+                    <code>dfs-copy</code>.
+     */
+    protected LocalFileTest(String name)
+    {
+        this.name = name;
+    }
+
+    /** Creates the temporary directory.
+
+        @throws TestFailed If the directory cannot be created.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            temporary = TemporaryDirectory.create(name);
+            directory = temporary.root();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create temporary directory", e);
+        }
+    }
+
+    /** Stops the source server, if one was started, and removes the test
+        files. */
+    @Override
+    protected void clean()
+    {
+        if(source != null)
+        {
+            source.stop(0);
+            source = null;
+        }
+
+        if(source_threads != null)
+        {
+            source_threads.shutdownNow();
+            source_threads = null;
+        }
+
+        if(temporary != null)
+        {
+            temporary.remove();
+            temporary = null;
+        }
+    }
+
+    /** Starts a stand-in source server, serving each request on a thread of
+        its own, as storage servers do.
+
+        @param port Port on which the server listens.
+        @return The started server, to which the test adds the contexts it
+                serves.
+        @throws TestFailed If the server cannot be started.
+     */
+    protected HttpServer startSource(int port) throws TestFailed
+    {
+        try
+        {
+            source = HttpServer.create(new InetSocketAddress(port), 0);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to start stand-in source server", e);
+        }
+
+        source_threads = Executors.newCachedThreadPool();
+        source.setExecutor(source_threads);
+        source.start();
+        return source;
+    }
+
+    /** Returns the query string parameters of a request to the stand-in
+        source server. */
+    protected static Map<String, String> query(HttpExchange exchange)
+    {
+        Map<String, String> query = new HashMap<String, String>();
+        for(String pair : exchange.getRequestURI().getQuery().split("&"))
+        {
+            String[]    parts = pair.split("=", 2);
+            query.put(parts[0], parts.length > 1 ? parts[1] : "");
+        }
+
+        return query;
+    }
+
+    /** Writes a local file. */
+    protected static void write(File file, byte[] contents) throws TestFailed
+    {
+        try(FileOutputStream output = new FileOutputStream(file))
+        {
+            output.write(contents);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write " + file, e);
+        }
+    }
+
+    /** Checks the contents of a local file. */
+    protected static void expectContents(File file, byte[] expected)
+        throws TestFailed
+    {
+        try
+        {
+            if(!Arrays.equals(Files.readAllBytes(file.toPath()), expected))
+                throw new TestFailed(file + " has unexpected contents");
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to read " + file, e);
+        }
+    }
+}
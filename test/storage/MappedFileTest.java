@@ -0,0 +1,217 @@
+package test.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import storage.MappedFilePool;
+import test.util.TestFailed;
+
+/** Tests the pool of memory-mapped files that storage servers may serve reads
+    from.
+
+    <p>
+    The pool is tested directly, without a storage server. Tests include:
+    <ul>
+    <li>A mapped region holds the contents of its file, and is shared by
+        readers of the same file.</li>
+    <li>The total size mapped stays within the bound of the pool, least
+        recently used regions being dropped to make room, but never while they
+        are being read.</li>
+    <li>Invalidating a file, or a directory above it, drops its region, so
+        that the next read sees the file as it is now.</li>
+    </ul>
+ */
+public class MappedFileTest extends LocalFileTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server memory-mapped reads";
+
+    /** Bound of the pool under test, in bytes. */
+    private static final int    POOL_SIZE = 1000;
+    /** Size of each test file. Two of them do not fit in the pool together. */
+    private static final int    FILE_SIZE = 600;
+
+    /** Pool under test. */
+    private MappedFilePool      pool;
+
+    /** Creates the <code>MappedFileTest</code> object. */
+    public MappedFileTest()
+    {
+        super("dfs-mapped");
+    }
+
+    /** Creates the test files and the pool. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        super.initialize();
+
+        new File(directory, "dir").mkdirs();
+        fill(new File(directory, "first"), (byte)1, FILE_SIZE);
+        fill(new File(directory, "second"), (byte)2, FILE_SIZE);
+        fill(new File(directory, "dir/third"), (byte)3, FILE_SIZE);
+
+        pool = new MappedFilePool(POOL_SIZE);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testContents();
+        testBound();
+        testInvalidation();
+    }
+
+    /** Checks that a region holds the contents of its file, and that readers
+        of the same file share it.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testContents() throws TestFailed
+    {
+        MappedFilePool.Region   first = acquire("first");
+        MappedFilePool.Region   again = acquire("first");
+
+        if(first == null)
+            throw new TestFailed("file within the bound of the pool not mapped");
+
+        if(again != first)
+            throw new TestFailed("second reader of a file given another region");
+
+        if(first.size() != FILE_SIZE)
+        {
+            throw new TestFailed("region size " + first.size() + ", file " +
+                                 "size " + FILE_SIZE);
+        }
+
+        expectContents(first, (byte)1, FILE_SIZE);
+
+        pool.release(again);
+        pool.release(first);
+    }
+
+    /** Checks that the pool keeps within its bound.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testBound() throws TestFailed
+    {
+        // first is mapped but unused after testContents. While it is being
+        // read, second does not fit.
+        MappedFilePool.Region   first = acquire("first");
+
+        if(acquire("second") != null)
+        {
+            throw new TestFailed("file mapped beyond the bound of the pool " +
+                                 "while the region in the way was being read");
+        }
+
+        pool.release(first);
+
+        // Once first is released, it is dropped to make room.
+        MappedFilePool.Region   second = acquire("second");
+
+        if(second == null)
+        {
+            throw new TestFailed("unused region not dropped to make room for " +
+                                 "another");
+        }
+
+        expectContents(second, (byte)2, FILE_SIZE);
+        pool.release(second);
+    }
+
+    /** Checks that invalidating a file drops its region, including while it is
+        being read.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testInvalidation() throws TestFailed
+    {
+        // Grow second while it is mapped and being read. The old region stays
+        // usable until it is released, and the next reader sees the new size.
+        MappedFilePool.Region   before = acquire("second");
+
+        fill(new File(directory, "second"), (byte)4, FILE_SIZE + 100);
+
+        pool.invalidate(new File(directory, "second").getPath());
+        expectContents(before, (byte)4, FILE_SIZE);
+        pool.release(before);
+
+        MappedFilePool.Region   after = acquire("second");
+
+        if(after == null || after == before)
+            throw new TestFailed("invalidated file not mapped again");
+
+        if(after.size() != FILE_SIZE + 100)
+        {
+            throw new TestFailed("region of invalidated file has size " +
+                                 after.size() + ", file has size " +
+                                 (FILE_SIZE + 100));
+        }
+
+        pool.release(after);
+        pool.invalidate(new File(directory, "second").getPath());
+
+        // Invalidating a directory drops the regions of the files under it.
+        MappedFilePool.Region   third = acquire("dir/third");
+
+        pool.release(third);
+        pool.invalidate(new File(directory, "dir").getPath());
+
+        MappedFilePool.Region   third_again = acquire("dir/third");
+
+        if(third_again == third)
+        {
+            throw new TestFailed("region kept after the directory above it " +
+                                 "was invalidated");
+        }
+
+        pool.release(third_again);
+    }
+
+    /** Acquires the region of a test file. */
+    private MappedFilePool.Region acquire(String name) throws TestFailed
+    {
+        try
+        {
+            return pool.acquire(new File(directory, name).getPath());
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to map " + name, e);
+        }
+    }
+
+    /** Checks that the first bytes of a region all have the given value. */
+    private void expectContents(MappedFilePool.Region region, byte value,
+                                int length) throws TestFailed
+    {
+        ByteBuffer  slice = region.slice(0, length);
+        byte[]      data = new byte[length];
+        byte[]      expected = new byte[length];
+
+        slice.get(data);
+        Arrays.fill(expected, value);
+
+        if(!Arrays.equals(data, expected))
+            throw new TestFailed("region does not hold the file contents");
+    }
+
+    /** Writes a file consisting of a single repeated byte. */
+    private static void fill(File file, byte value, int length)
+        throws TestFailed
+    {
+        byte[]  data = new byte[length];
+
+        Arrays.fill(data, value);
+        write(file, data);
+    }
+}
@@ -0,0 +1,215 @@
+package test.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import storage.BlockChecksums;
+import storage.Replicator;
+import storage.StartupScan;
+import test.util.TestFailed;
+
+/** Tests the scan of the root directory of a storage server at startup.
+
+    <p>
+    The scan is tested directly on a local directory tree, without a naming
+    server. Tests include:
+    <ul>
+    <li>The listing holds every file once, with the files of each directory
+        together and in name order, followed by its subdirectories in name
+        order.</li>
+    <li>Duplicates given as ranges of positions in the listing, including
+        ranges that span several directories, delete exactly the files at
+        those positions, and prune the directories left empty.</li>
+    <li>Copies in progress, stale replicas and checksums are not listed,
+        and go with the files they belong to when those are deleted.</li>
+    <li>Duplicates given as paths are deleted as before.</li>
+    <li>Deleting every file prunes every directory, but keeps the root.</li>
+    </ul>
+ */
+public class StartupScanTest extends LocalFileTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server startup scan";
+
+    /** Files of the tree, in the order the listing must have them. */
+    private static final String[]   LISTING = new String[]
+    {
+        "/a", "/b",
+        "/one/x", "/one/y", "/one/z",
+        "/one/deep/p", "/one/deep/q",
+        "/one/deep/deeper/r",
+        "/three/s",
+        "/two/t", "/two/u"
+    };
+
+    /** Creates the <code>StartupScanTest</code> object. */
+    public StartupScanTest()
+    {
+        super("dfs-scan");
+    }
+
+    /** Creates the tree, adding the files in an order other than the
+        listing's. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        super.initialize();
+
+        try
+        {
+            List<String>    shuffled = new ArrayList<String>(
+                Arrays.asList(LISTING));
+            Collections.reverse(shuffled);
+            for(String path : shuffled)
+                temporary.add(path.substring(1).split("/"));
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create test directory tree", e);
+        }
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testListing();
+            testSkipped();
+            testRanges();
+            testPaths();
+            testPruning();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to scan test directory tree", t);
+        }
+    }
+
+    /** Checks the order of the listing. */
+    private void testListing() throws Throwable
+    {
+        List<String>            found = new ArrayList<String>();
+        StartupScan.Listing     listing =
+            new StartupScan(4).scan(directory.toPath(), found::add);
+
+        if(!found.equals(Arrays.asList(LISTING)))
+        {
+            throw new TestFailed("listing is " + found + ", expected " +
+                                 Arrays.asList(LISTING));
+        }
+
+        if(listing.total() != LISTING.length)
+            throw new TestFailed("listing counted " + listing.total() +
+                                 " files");
+    }
+
+    /** Checks that files that are not files of the file system are left
+        out of the listing. */
+    private void testSkipped() throws Throwable
+    {
+        temporary.add(new String[] {"a" + Replicator.TEMPORARY_SUFFIX});
+        temporary.add(new String[] {"two", "t" + Replicator.STALE_SUFFIX});
+        temporary.add(new String[] {"three",
+                                    "s" + Replicator.CHECKPOINT_SUFFIX});
+        temporary.add(new String[] {"one", "deep", "deeper",
+                                    "r" + BlockChecksums.SUFFIX});
+
+        testListing();
+    }
+
+    /** Checks that ranges of positions delete the files at them. */
+    private void testRanges() throws Throwable
+    {
+        StartupScan             scan = new StartupScan(4);
+        StartupScan.Listing     listing =
+            scan.scan(directory.toPath(), path -> { });
+
+        // /b to /one/y, across two directories, and the whole of
+        // /one/deep/deeper and /three, which are then left empty.
+        long[]                  ranges = new long[] {1, 3, 7, 2};
+        scan.delete(directory.toPath(),
+                    new StartupScan.Duplicates(listing, null, ranges),
+                    new Replicator(64 * 1024, 2),
+                    new BlockChecksums(4, false));
+
+        expectFiles("/a", "/one/z", "/one/deep/p", "/one/deep/q", "/two/t",
+                    "/two/u");
+
+        if(new File(directory, "one/deep/deeper").exists() ||
+           new File(directory, "three").exists())
+        {
+            throw new TestFailed("directories left empty were not pruned");
+        }
+    }
+
+    /** Checks that paths delete the files at them. */
+    private void testPaths() throws Throwable
+    {
+        StartupScan             scan = new StartupScan(4);
+        StartupScan.Listing     listing =
+            scan.scan(directory.toPath(), path -> { });
+
+        scan.delete(directory.toPath(),
+                    new StartupScan.Duplicates(
+                        listing, Arrays.asList("/one/deep/q", "/two/t"), null),
+                    new Replicator(64 * 1024, 2),
+                    new BlockChecksums(4, false));
+
+        expectFiles("/a", "/one/z", "/one/deep/p", "/two/u");
+
+        if(new File(directory, "two/t" + Replicator.STALE_SUFFIX).exists())
+            throw new TestFailed("stale replica of a deleted file was kept");
+    }
+
+    /** Checks that deleting every file prunes every directory, and nothing
+        else. */
+    private void testPruning() throws Throwable
+    {
+        StartupScan             scan = new StartupScan(4);
+        StartupScan.Listing     listing =
+            scan.scan(directory.toPath(), path -> { });
+
+        scan.delete(directory.toPath(),
+                    new StartupScan.Duplicates(
+                        listing, Arrays.asList("/a", "/one/z", "/one/deep/p",
+                                               "/two/u"), null),
+                    new Replicator(64 * 1024, 2),
+                    new BlockChecksums(4, false));
+
+        if(!directory.isDirectory())
+            throw new TestFailed("root was pruned");
+
+        String[]        left = directory.list();
+        if(left.length != 0)
+        {
+            throw new TestFailed("root still holds " + Arrays.asList(left));
+        }
+    }
+
+    /** Checks that the tree holds exactly the given files. */
+    private void expectFiles(String... expected) throws Throwable
+    {
+        Set<String>     found = new TreeSet<String>();
+        new StartupScan(4).scan(directory.toPath(), found::add);
+
+        Set<String>     wanted = new TreeSet<String>(Arrays.asList(expected));
+        if(!found.equals(wanted))
+        {
+            throw new TestFailed("tree holds " + found + ", expected " +
+                                 wanted);
+        }
+    }
+}
@@ -0,0 +1,726 @@
+package test.storage;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+import jsonhelper.BooleanReturn;
+import jsonhelper.DataReturn;
+import jsonhelper.ExceptionReturn;
+import jsonhelper.PathRequest;
+import jsonhelper.ReadRequest;
+import jsonhelper.SizeReturn;
+import jsonhelper.WriteRequest;
+import jsonhelper.WriteReturn;
+import storage.BlockChecksums;
+import test.DFSException;
+import test.common.Path;
+import test.util.TestFailed;
+
+/** Tests the binary variants of the storage server file access methods.
+
+    <p>
+    This test starts a storage server and a special testing naming server, and
+    fills a file on the storage server directly. It then reads the file through
+    the binary variant of <code>read</code>, which is a <code>GET</code> on
+    <code>/storage_read</code> answered with the raw bytes, and writes it
+    through the binary variant of <code>write</code>, which is a
+    <code>PUT</code> on <code>/storage_write</code> carrying the raw bytes.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>The binary <code>read</code> returns exactly the requested range, and
+        the same bytes as the JSON <code>read</code>.</li>
+    <li>The binary <code>read</code> reads to the end of the file when no
+        length is given.</li>
+    <li>The binary <code>read</code> reports out-of-bounds ranges, missing
+        files and directories with the same exceptions as the JSON
+        <code>read</code>.</li>
+    <li>The binary <code>write</code> writes at the given offset, both within
+        the file and past its end, and reports the number of bytes written and
+        the new length of the file.</li>
+    <li>The binary <code>write</code> rejects negative offsets and missing
+        files.</li>
+    <li>When an upload is cut off part way, the block checksums served by
+        <code>storage_checksums</code> still describe what reached the
+        disk.</li>
+    <li>Both variants of <code>read</code> and <code>write</code> work at
+        offsets beyond 4 GB. The large file is sparse, so the test needs
+        neither the disk space nor the time to fill it.</li>
+    </ul>
+ */
+public class StreamingTest extends StorageTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server binary file access";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {AccessTest.class};
+
+    /** File read and written in the test. */
+    private final Path          stream_file = new Path("/stream/file");
+    /** Directory holding the file. */
+    private final Path          stream_directory = new Path("/stream");
+    /** File that is not present on the storage server. */
+    private final Path          absent_file = new Path("/absent");
+    /** Sparse file larger than 4 GB. */
+    private final Path          sparse_file = new Path("/stream/sparse");
+
+    /** Length of the sparse file. */
+    private static final long   SPARSE_SIZE = 5L << 30;
+    /** Offset beyond 4 GB at which data is placed in the sparse file. */
+    private static final long   SPARSE_OFFSET = (4L << 30) + 12345;
+    /** Data placed in the sparse file. */
+    private final byte[]        sparse_data = "beyond four gigabytes".getBytes();
+
+    /** Contents of the file, large enough to take many network buffers. */
+    private final byte[]        file_data = new byte[300000];
+
+    /** Client used for the binary requests. */
+    private final HttpClient    client = HttpClient.newHttpClient();
+
+    /** Creates the <code>StreamingTest</code> object. */
+    public StreamingTest()
+    {
+        super(new String[][] {new String[] {"stream", "file"},
+                              new String[] {"stream", "sparse"}}, null);
+
+        new Random(14736).nextBytes(file_data);
+    }
+
+    /** Tests the binary access methods.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        fill();
+        testReadRanges();
+        testReadBounds();
+        testWrite();
+        testCutOffWrite();
+        testLargeOffsets();
+    }
+
+    /** Writes the test data into the file directly on the local filesystem.
+
+        @throws TestFailed If the file cannot be written.
+     */
+    private void fill() throws TestFailed
+    {
+        File    direct_access = new File(directory.root(), "stream");
+        direct_access = new File(direct_access, "file");
+
+        try(FileOutputStream stream = new FileOutputStream(direct_access))
+        {
+            stream.write(file_data);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to fill test file directly", e);
+        }
+
+        File    sparse_access = new File(directory.root(), "stream");
+        sparse_access = new File(sparse_access, "sparse");
+
+        try(RandomAccessFile file = new RandomAccessFile(sparse_access, "rw"))
+        {
+            file.setLength(SPARSE_SIZE);
+            file.seek(SPARSE_OFFSET);
+            file.write(sparse_data);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create sparse test file directly",
+                                 e);
+        }
+    }
+
+    /** Reads several ranges of the file and compares them with the data and
+        with the JSON <code>read</code>.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testReadRanges() throws TestFailed
+    {
+        long[][]    ranges = new long[][] {{0, file_data.length},
+                                           {1, 1},
+                                           {4095, 4097},
+                                           {file_data.length - 10, 10},
+                                           {file_data.length, 0}};
+
+        for(long[] range : ranges)
+        {
+            int     offset = (int)range[0];
+            int     length = (int)range[1];
+            byte[]  expected = Arrays.copyOfRange(file_data, offset,
+                                                  offset + length);
+            byte[]  streamed = readStream(stream_file, "&offset=" + offset +
+                                          "&length=" + length);
+
+            if(!Arrays.equals(streamed, expected))
+            {
+                throw new TestFailed("binary read of " + length +
+                                     " bytes at offset " + offset +
+                                     " returned incorrect data");
+            }
+
+            if(!Arrays.equals(readJson(stream_file, offset, length), streamed))
+            {
+                throw new TestFailed("binary and JSON reads of " + length +
+                                     " bytes at offset " + offset + " differ");
+            }
+        }
+
+        // Without a length, the read goes on to the end of the file.
+        byte[]  rest = readStream(stream_file, "&offset=100");
+        if(!Arrays.equals(rest, Arrays.copyOfRange(file_data, 100,
+                                                   file_data.length)))
+        {
+            throw new TestFailed("binary read without a length did not " +
+                                 "return the rest of the file");
+        }
+    }
+
+    /** Checks the exceptions reported by the binary <code>read</code>.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testReadBounds() throws TestFailed
+    {
+        expectException(get(stream_file, "&offset=-1&length=1"),
+                        DFSException.IndexOutOfBoundsException,
+                        "read at negative offset");
+        expectException(get(stream_file, "&offset=0&length=-1"),
+                        DFSException.IndexOutOfBoundsException,
+                        "read of negative length");
+        expectException(get(stream_file, "&offset=0&length=" +
+                            (file_data.length + 1)),
+                        DFSException.IndexOutOfBoundsException,
+                        "read past the end of the file");
+        expectException(get(stream_file, "&offset=" + (file_data.length + 1)),
+                        DFSException.IndexOutOfBoundsException,
+                        "read at offset past the end of the file");
+        expectException(get(absent_file, ""),
+                        DFSException.FileNotFoundException,
+                        "read of missing file");
+        expectException(get(stream_directory, ""),
+                        DFSException.FileNotFoundException,
+                        "read of directory");
+    }
+
+    /** Reads and writes the sparse file at offsets beyond 4 GB.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testLargeOffsets() throws TestFailed
+    {
+        HttpResponse<String>    response;
+
+        try
+        {
+            response = getResponse("/storage_size", client_stub.server_port,
+                                   new PathRequest(sparse_file.toString()));
+            long    size = gson.fromJson(response.body(), SizeReturn.class).size;
+            if(size != SPARSE_SIZE)
+            {
+                throw new TestFailed("size of sparse file reported as " +
+                                     size);
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to retrieve size of sparse file", t);
+        }
+
+        // The data, with some of the hole on either side.
+        byte[]  expected = new byte[sparse_data.length + 20];
+        System.arraycopy(sparse_data, 0, expected, 10, sparse_data.length);
+
+        if(!Arrays.equals(readJson(sparse_file, SPARSE_OFFSET - 10,
+                                   expected.length), expected))
+        {
+            throw new TestFailed("JSON read beyond 4 GB returned incorrect " +
+                                 "data");
+        }
+
+        if(!Arrays.equals(readStream(sparse_file, "&offset=" +
+                                     (SPARSE_OFFSET - 10) + "&length=" +
+                                     expected.length), expected))
+        {
+            throw new TestFailed("binary read beyond 4 GB returned incorrect " +
+                                 "data");
+        }
+
+        // Write further on with both variants, and read the data back with
+        // the other one.
+        long    json_offset = SPARSE_OFFSET + (1L << 29);
+        long    binary_offset = json_offset + (1L << 28);
+        byte[]  json_data = "written as json".getBytes();
+        byte[]  binary_data = "written as bytes".getBytes();
+
+        try
+        {
+            WriteRequest writeRequest = new WriteRequest(
+                sparse_file.toString(), json_offset,
+                Base64.getEncoder().encodeToString(json_data));
+            response = getResponse("/storage_write", client_stub.server_port,
+                                   writeRequest);
+            if(!gson.fromJson(response.body(), BooleanReturn.class).success)
+                throw new TestFailed("JSON write beyond 4 GB failed");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to write beyond 4 GB through JSON " +
+                                 "write", t);
+        }
+
+        WriteReturn     result = writeStream(sparse_file, binary_offset,
+                                             binary_data);
+        if(result.length != SPARSE_SIZE)
+        {
+            throw new TestFailed("binary write inside the sparse file " +
+                                 "changed its length to " + result.length);
+        }
+
+        if(!Arrays.equals(readStream(sparse_file, "&offset=" + json_offset +
+                                     "&length=" + json_data.length),
+                          json_data))
+        {
+            throw new TestFailed("data written beyond 4 GB through JSON " +
+                                 "write read back incorrectly");
+        }
+
+        if(!Arrays.equals(readJson(sparse_file, binary_offset,
+                                   binary_data.length), binary_data))
+        {
+            throw new TestFailed("data written beyond 4 GB through binary " +
+                                 "write read back incorrectly");
+        }
+
+        // Reads past the end of the large file are still rejected.
+        try
+        {
+            ReadRequest readRequest = new ReadRequest(sparse_file.toString(),
+                                                      SPARSE_SIZE - 1, 2);
+            response = getResponse("/storage_read", client_stub.server_port,
+                                   readRequest);
+            String  exception_type =
+                gson.fromJson(response.body(), ExceptionReturn.class)
+                    .exception_type;
+            if(exception_type == null ||
+               DFSException.valueOf(exception_type) !=
+                   DFSException.IndexOutOfBoundsException)
+            {
+                throw new TestFailed("JSON read past the end of the sparse " +
+                                     "file was not rejected");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("JSON read past the end of the sparse file " +
+                                 "raised unexpected exception", t);
+        }
+    }
+
+    /** Reads a range of a file through the JSON <code>read</code>.
+
+        @param path File to read.
+        @param offset Offset of the range.
+        @param length Length of the range.
+        @return The bytes read.
+        @throws TestFailed If the read fails.
+     */
+    private byte[] readJson(Path path, long offset, int length)
+        throws TestFailed
+    {
+        try
+        {
+            ReadRequest readRequest =
+                new ReadRequest(path.toString(), offset, length);
+            HttpResponse<String> response =
+                getResponse("/storage_read", client_stub.server_port,
+                            readRequest);
+            String  data = gson.fromJson(response.body(), DataReturn.class).data;
+
+            if(data == null)
+            {
+                throw new TestFailed("JSON read of " + path + " failed: " +
+                                     response.body());
+            }
+
+            return Base64.getDecoder().decode(data);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read " + path + " through JSON " +
+                                 "read", t);
+        }
+    }
+
+    /** Writes through the binary <code>write</code>, inside the file and past
+        its end, and reads the result back.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testWrite() throws TestFailed
+    {
+        Random  random = new Random(15440);
+        byte[]  inside = new byte[200000];
+        byte[]  beyond = new byte[50000];
+        random.nextBytes(inside);
+        random.nextBytes(beyond);
+
+        // Overwrite part of the file.
+        WriteReturn     result = writeStream(stream_file, 1000, inside);
+        if(result.bytes_written != inside.length ||
+           result.length != file_data.length)
+        {
+            throw new TestFailed("binary write inside the file reported " +
+                                 result.bytes_written + " bytes written and " +
+                                 "length " + result.length);
+        }
+
+        // Extend the file, leaving no gap.
+        result = writeStream(stream_file, file_data.length, beyond);
+        if(result.bytes_written != beyond.length ||
+           result.length != file_data.length + beyond.length)
+        {
+            throw new TestFailed("binary write past the end of the file " +
+                                 "reported " + result.bytes_written +
+                                 " bytes written and length " + result.length);
+        }
+
+        byte[]  expected = Arrays.copyOf(file_data,
+                                         file_data.length + beyond.length);
+        System.arraycopy(inside, 0, expected, 1000, inside.length);
+        System.arraycopy(beyond, 0, expected, file_data.length, beyond.length);
+
+        if(!Arrays.equals(readStream(stream_file, ""), expected))
+            throw new TestFailed("file has incorrect contents after writing");
+
+        // Bad arguments.
+        expectException(put(stream_file, -1, new byte[1]),
+                        DFSException.IndexOutOfBoundsException,
+                        "write at negative offset");
+        expectException(put(absent_file, 0, new byte[1]),
+                        DFSException.FileNotFoundException,
+                        "write to missing file");
+    }
+
+    /** Cuts off a binary <code>write</code> part way and checks the block
+        checksums of the file against what was written.
+
+        <p>
+        The request announces more bytes than it sends before the connection
+        is closed, so the storage server fails the write after some of the
+        data has reached the disk. The checksums of the blocks that data
+        touched must be recomputed all the same.
+
+        @throws TestFailed If the checksums do not match the file.
+     */
+    private void testCutOffWrite() throws TestFailed
+    {
+        byte[]  sent = new byte[BlockChecksums.BLOCK_SIZE + 30000];
+        new Random(27182).nextBytes(sent);
+
+        String  head = "PUT /storage_write?path=" +
+                       URLEncoder.encode(stream_file.toString(),
+                                         StandardCharsets.UTF_8) +
+                       "&offset=0 HTTP/1.1\r\n" +
+                       "Host: localhost:" + client_stub.server_port + "\r\n" +
+                       "Content-Type: application/octet-stream\r\n" +
+                       "Content-Length: " + (2 * sent.length) + "\r\n\r\n";
+
+        try(Socket socket = new Socket("localhost", client_stub.server_port))
+        {
+            OutputStream    output = socket.getOutputStream();
+            output.write(head.getBytes(StandardCharsets.US_ASCII));
+            output.write(sent);
+            output.flush();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to send cut-off binary write", e);
+        }
+
+        File    direct_access = new File(directory.root(), "stream");
+        direct_access = new File(direct_access, "file");
+        int     blocks = sent.length / BlockChecksums.BLOCK_SIZE + 1;
+
+        // The server notices the closed connection on its own schedule. Only
+        // once everything sent is on disk are the checksums final.
+        long    deadline = System.currentTimeMillis() + 3000;
+        while(true)
+        {
+            byte[]  contents = readDirect(direct_access);
+            long[]  served = servedChecksums(stream_file, blocks);
+
+            if(Arrays.equals(Arrays.copyOf(contents, sent.length), sent) &&
+               Arrays.equals(checksums(contents, blocks), served))
+            {
+                return;
+            }
+
+            if(System.currentTimeMillis() > deadline)
+            {
+                throw new TestFailed("block checksums do not match the file " +
+                                     "after a cut-off binary write");
+            }
+
+            try
+            {
+                Thread.sleep(20);
+            }
+            catch(InterruptedException e) { }
+        }
+    }
+
+    /** Reads a file directly from the local filesystem.
+
+        @param file File to read.
+        @return The contents of the file.
+        @throws TestFailed If the file cannot be read.
+     */
+    private byte[] readDirect(File file) throws TestFailed
+    {
+        try
+        {
+            return Files.readAllBytes(file.toPath());
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to read test file directly", e);
+        }
+    }
+
+    /** Computes the checksums of the leading blocks of file contents, in the
+        form <code>storage_checksums</code> serves them.
+
+        @param contents Contents of the file.
+        @param blocks Number of blocks to checksum.
+        @return The checksums.
+     */
+    private long[] checksums(byte[] contents, int blocks)
+    {
+        long[]  checksums = new long[blocks];
+        for(int block = 0; block < blocks; ++block)
+        {
+            int     start = block * BlockChecksums.BLOCK_SIZE;
+            int     end = Math.min(start + BlockChecksums.BLOCK_SIZE,
+                                   contents.length);
+            CRC32C  crc = new CRC32C();
+            crc.update(contents, start, end - start);
+            checksums[block] = (1L << 32) | crc.getValue();
+        }
+
+        return checksums;
+    }
+
+    /** Retrieves the leading block checksums of a file from the storage
+        server.
+
+        @param path File whose checksums are retrieved.
+        @param blocks Number of checksums to return.
+        @return The checksums, zero where the server has none.
+        @throws TestFailed If the request fails.
+     */
+    private long[] servedChecksums(Path path, int blocks) throws TestFailed
+    {
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create("http://localhost:" + client_stub.server_port +
+                            "/storage_checksums?path=" +
+                            URLEncoder.encode(path.toString(),
+                                              StandardCharsets.UTF_8)))
+            .GET()
+            .build();
+
+        HttpResponse<byte[]>    response;
+        try
+        {
+            response = client.send(request,
+                                   HttpResponse.BodyHandlers.ofByteArray());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to retrieve block checksums", t);
+        }
+
+        if(response.statusCode() != 200)
+        {
+            throw new TestFailed("retrieving block checksums failed: " +
+                                 new String(response.body()));
+        }
+
+        ByteBuffer  body = ByteBuffer.wrap(response.body());
+        body.getLong();
+
+        long[]  checksums = new long[blocks];
+        for(int block = 0; block < blocks && body.remaining() >= 8; ++block)
+            checksums[block] = body.getLong();
+
+        return checksums;
+    }
+
+    /** Sends a binary <code>write</code> request.
+
+        @param path File to write.
+        @param offset Offset at which to write.
+        @param data Data to write.
+        @return The response.
+        @throws TestFailed If the request cannot be sent.
+     */
+    private HttpResponse<byte[]> put(Path path, long offset, byte[] data)
+        throws TestFailed
+    {
+        String  query = "path=" + URLEncoder.encode(path.toString(),
+                                                    StandardCharsets.UTF_8) +
+                        "&offset=" + offset;
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create("http://localhost:" + client_stub.server_port +
+                            "/storage_write?" + query))
+            .setHeader("Content-Type", "application/octet-stream")
+            .PUT(HttpRequest.BodyPublishers.ofByteArray(data))
+            .build();
+
+        try
+        {
+            return client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to send binary write request", t);
+        }
+    }
+
+    /** Writes data to a file through the binary <code>write</code>.
+
+        @param path File to write.
+        @param offset Offset at which to write.
+        @param data Data to write.
+        @return The result reported by the storage server.
+        @throws TestFailed If the write fails.
+     */
+    private WriteReturn writeStream(Path path, long offset, byte[] data)
+        throws TestFailed
+    {
+        HttpResponse<byte[]>    response = put(path, offset, data);
+
+        if(response.statusCode() != 200)
+        {
+            throw new TestFailed("binary write to " + path + " failed: " +
+                                 new String(response.body()));
+        }
+
+        WriteReturn     result =
+            gson.fromJson(new String(response.body()), WriteReturn.class);
+        if(!result.success)
+            throw new TestFailed("binary write to " + path + " failed");
+
+        return result;
+    }
+
+    /** Sends a binary <code>read</code> request.
+
+        @param path File to read.
+        @param range Query string parameters following the path.
+        @return The response.
+        @throws TestFailed If the request cannot be sent.
+     */
+    private HttpResponse<byte[]> get(Path path, String range) throws TestFailed
+    {
+        String  query = "path=" + URLEncoder.encode(path.toString(),
+                                                    StandardCharsets.UTF_8) +
+                        range;
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create("http://localhost:" + client_stub.server_port +
+                            "/storage_read?" + query))
+            .GET()
+            .build();
+
+        try
+        {
+            return client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to send binary read request", t);
+        }
+    }
+
+    /** Reads a range of a file through the binary <code>read</code>.
+
+        @param path File to read.
+        @param range Query string parameters following the path.
+        @return The bytes read.
+        @throws TestFailed If the read fails.
+     */
+    private byte[] readStream(Path path, String range) throws TestFailed
+    {
+        HttpResponse<byte[]>    response = get(path, range);
+
+        if(response.statusCode() != 200)
+        {
+            throw new TestFailed("binary read of " + path + " failed: " +
+                                 new String(response.body()));
+        }
+
+        if(response.body().length > 0 &&
+           !"application/octet-stream".equals(
+               response.headers().firstValue("Content-Type").orElse(null)))
+        {
+            throw new TestFailed("binary read did not return " +
+                                 "application/octet-stream");
+        }
+
+        return response.body();
+    }
+
+    /** Checks that a binary request fails with the given exception.
+
+        @param response Response to the request.
+        @param expected Exception expected.
+        @param description Description of the failing case.
+        @throws TestFailed If the request did not fail as expected.
+     */
+    private void expectException(HttpResponse<byte[]> response,
+                                 DFSException expected, String description)
+        throws TestFailed
+    {
+        if(response.statusCode() == 200)
+            throw new TestFailed("binary request accepted " + description);
+
+        String                  exception_type =
+            gson.fromJson(new String(response.body()), ExceptionReturn.class)
+                .exception_type;
+
+        if(exception_type == null)
+        {
+            throw new TestFailed("binary request rejected " + description +
+                                 " without an exception");
+        }
+
+        if(DFSException.valueOf(exception_type) != expected)
+        {
+            throw new TestFailed("binary request raised unexpected " +
+                                 "exception " + exception_type + " for " +
+                                 description);
+        }
+    }
+}
@@ -50,6 +50,22 @@ public class TemporaryDirectory
         throw new FileNotFoundException("unable to create temporary directory " + attempt.toString());
     }
 
+    /** Creates a temporary directory under the directory given by
+        <code>java.io.tmpdir</code>, named after the test using it and the
+        current time.
+
+        @param name Name of the directory, before the time.
+        @return The new temporary directory.
+        @throws FileNotFoundException If the directory cannot be created.
+     */
+    public static TemporaryDirectory create(String name)
+        throws FileNotFoundException
+    {
+        return new TemporaryDirectory(
+            new File(System.getProperty("java.io.tmpdir"),
+                     name + "-" + System.nanoTime()).getPath());
+    }
+
     /** Recursively deletes a directory.
 
         @param file The directory to be deleted.